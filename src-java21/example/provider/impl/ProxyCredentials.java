@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.spi.GSSCredentialSpi;
+import sun.security.jgss.spi.GSSNameSpi;
+
+/**
+ * Recognizes the delegated and impersonated (S4U2Proxy) credentials of the built-in Kerberos mechanism, for
+ * {@link ProxyTicketCache}.
+ * <p/>
+ * The Java 21 variant in the multi-release JAR: {@code Krb5ProxyCredential} is no longer public, so its {@code self}
+ * field is read through a method handle looked up once, which needs the {@code sun.security.jgss.krb5} package opened
+ * like {@link Krb5ContextAccess} does. Without that, no credential is recognized and the cache isn't used.
+ */
+final class ProxyCredentials {
+
+    private static final Logger LOGGER = Logger.getLogger(ProxyCredentials.class.getCanonicalName());
+
+    private static final Class<?> PROXY_CREDENTIAL;
+
+    // Krb5ProxyCredential.self, as (GSSCredentialSpi)GSSCredentialSpi
+    private static final MethodHandle SELF;
+
+    static {
+        Class<?> proxyCredential = null;
+        MethodHandle self = null;
+        try {
+            proxyCredential = Class.forName("sun.security.jgss.krb5.Krb5ProxyCredential");
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(proxyCredential, MethodHandles.lookup());
+            self = lookup.unreflectGetter(proxyCredential.getField("self"))
+                .asType(MethodType.methodType(GSSCredentialSpi.class, GSSCredentialSpi.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, e, () -> "Proxy credentials can't be recognized");
+        }
+        PROXY_CREDENTIAL = proxyCredential;
+        SELF = self;
+    }
+
+    private ProxyCredentials() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Get the name of the middle service whose ticket the credential was created with, or null if it isn't a proxy
+     * credential.
+     */
+    static GSSNameSpi getServiceName(GSSCredentialSpi cred) throws GSSException {
+        if (SELF == null || cred == null || cred.getClass() != PROXY_CREDENTIAL) {
+            return null;
+        }
+        try {
+            return ((GSSCredentialSpi) SELF.invokeExact(cred)).getName();
+        } catch (GSSException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
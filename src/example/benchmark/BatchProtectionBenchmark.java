@@ -0,0 +1,120 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.benchmark;
+
+import example.provider.CustomKerberosJgssProvider;
+import example.provider.impl.CustomGSSContextSpiImpl;
+import example.provider.impl.CustomKrb5MechFactory;
+import example.provider.impl.MessageSlice;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import org.ietf.jgss.MessageProp;
+import sun.security.jgss.GSSCaller;
+
+/**
+ * Compares protecting a flush of small records one call at a time against the batch operations of
+ * {@link CustomGSSContextSpiImpl}, e.g. {@link CustomGSSContextSpiImpl#getMIC(List, MessageProp)}.
+ * <p/>
+ * Establishing a context needs a KDC, so the benchmark starts from a hand-made exported context, see
+ * {@link BenchmarkUtils#createExportedContext(boolean, byte[], int, int)}.
+ */
+public class BatchProtectionBenchmark {
+
+    private static final int RECORDS = 1000;
+
+    private static final int RECORD_SIZE = 256;
+
+    private static final int WARMUP_ITERATIONS = 200;
+
+    private static final int ITERATIONS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        CustomKerberosJgssProvider.install();
+        CustomKrb5MechFactory factory = CustomKerberosJgssProvider.getMechFactory(GSSCaller.CALLER_ACCEPT);
+
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        CustomGSSContextSpiImpl initiator =
+            factory.getMechanismContext(BenchmarkUtils.createExportedContext(true, key, 0, 0));
+        CustomGSSContextSpiImpl acceptor =
+            factory.getMechanismContext(BenchmarkUtils.createExportedContext(false, key, 0, 0));
+
+        // The records of a flush, as slices of one buffer
+        byte[] buffer = new byte[RECORDS * RECORD_SIZE];
+        random.nextBytes(buffer);
+        List<MessageSlice> records = new ArrayList<>(RECORDS);
+        for (int i = 0; i < RECORDS; i++) {
+            records.add(new MessageSlice(buffer, i * RECORD_SIZE, RECORD_SIZE));
+        }
+
+        // Check that the batch tokens verify in order, i.e. that their sequence numbers follow the records
+        List<byte[]> mics = initiator.getMIC(records, new MessageProp(0, false));
+        List<MessageSlice> micSlices = new ArrayList<>(RECORDS);
+        for (int i = 0; i < RECORDS; i++) {
+            MessageProp prop = new MessageProp(0, false);
+            MessageSlice record = records.get(i);
+            byte[] mic = mics.get(i);
+            acceptor.verifyMIC(mic, 0, mic.length, record.getBuffer(), record.getOffset(), record.getLength(), prop);
+            if (prop.isGapToken() || prop.isUnseqToken() || prop.isDuplicateToken()) {
+                throw new IllegalStateException("Batch token " + i + " is out of sequence");
+            }
+            micSlices.add(MessageSlice.of(mic));
+        }
+
+        double loop = BenchmarkUtils.measure("getMIC() per record", WARMUP_ITERATIONS, ITERATIONS, () -> {
+            for (MessageSlice record : records) {
+                initiator.getMIC(record.getBuffer(), record.getOffset(), record.getLength(), new MessageProp(0, false));
+            }
+        });
+        double batch = BenchmarkUtils.measure("getMIC(List)", WARMUP_ITERATIONS, ITERATIONS,
+            () -> initiator.getMIC(records, new MessageProp(0, false)));
+        System.out.println(String.format("getMIC speedup: %.2fx", loop / batch));
+
+        loop = BenchmarkUtils.measure("wrap() per record", WARMUP_ITERATIONS, ITERATIONS, () -> {
+            for (MessageSlice record : records) {
+                initiator.wrap(record.getBuffer(), record.getOffset(), record.getLength(), new MessageProp(0, true));
+            }
+        });
+        batch = BenchmarkUtils.measure("wrap(List)", WARMUP_ITERATIONS, ITERATIONS,
+            () -> initiator.wrap(records, new MessageProp(0, true)));
+        System.out.println(String.format("wrap speedup: %.2fx", loop / batch));
+
+        // Verifying the same tokens again only adds duplicate flags, which doesn't change the cost
+        loop = BenchmarkUtils.measure("verifyMIC() per record", WARMUP_ITERATIONS, ITERATIONS, () -> {
+            for (int i = 0; i < RECORDS; i++) {
+                MessageSlice record = records.get(i);
+                byte[] mic = mics.get(i);
+                acceptor.verifyMIC(mic, 0, mic.length, record.getBuffer(), record.getOffset(), record.getLength(),
+                    new MessageProp(0, false));
+            }
+        });
+        batch = BenchmarkUtils.measure("verifyMIC(List)", WARMUP_ITERATIONS, ITERATIONS,
+            () -> acceptor.verifyMIC(micSlices, records));
+        System.out.println(String.format("verifyMIC speedup: %.2fx", loop / batch));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Locale;
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.kerberos.KeyTab;
+import sun.security.krb5.EncryptedData;
+import sun.security.krb5.EncryptionKey;
+import sun.security.krb5.PrincipalName;
+import sun.security.krb5.internal.EncTicketPart;
+import sun.security.krb5.internal.KerberosTime;
+import sun.security.krb5.internal.Ticket;
+import sun.security.krb5.internal.TicketFlags;
+import sun.security.krb5.internal.TransitedEncoding;
+import sun.security.krb5.internal.crypto.KeyUsage;
+
+/**
+ * Minimal timing helpers for the benchmarks in this package. The project has no dependencies, so JMH isn't used, the
+ * numbers are only meant for rough comparisons between the alternatives measured by each benchmark.
+ */
+final class BenchmarkUtils {
+
+    // ExportedContext.FLAG_* for a context with mutual authentication, replay and sequence detection, conf and integ
+    private static final int FLAGS = 0x04 | 0x08 | 0x10 | 0x20 | 0x40;
+
+    private static final int FLAG_INITIATOR = 0x01;
+
+    private BenchmarkUtils() {
+        throw new AssertionError();
+    }
+
+    /**
+     * A single benchmarked operation.
+     */
+    interface Operation {
+
+        void run() throws Exception;
+    }
+
+    /**
+     * Run {@code operation} {@code warmupIterations} times, then measure {@code iterations} runs and print the average
+     * time per run.
+     *
+     * @return the average time per run in nanoseconds
+     */
+    static double measure(String name, int warmupIterations, int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            operation.run();
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+
+        double nanosPerOp = (double) (System.nanoTime() - start) / iterations;
+        System.out.println(String.format(Locale.ROOT, "%-50s %12.1f ns/op", name, nanosPerOp));
+        return nanosPerOp;
+    }
+
+    /**
+     * Create an exported context of an AES256 session between {@code user@EXAMPLE.COM} and
+     * {@code HTTP/server.example.com@EXAMPLE.COM}, in the format documented in
+     * {@code example.provider.impl.ExportedContext}, since establishing a real one needs a KDC. The initiator and
+     * acceptor contexts created with the same key and matching sequence numbers work together.
+     */
+    static byte[] createExportedContext(boolean initiator, byte[] key, int mySeqNumber, int peerSeqNumber)
+        throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(1); // version
+        out.writeByte(initiator ? FLAGS | FLAG_INITIATOR : FLAGS);
+        out.writeByte(initiator ? 1 : 2); // initiator or acceptor subkey
+        out.writeShort(18); // aes256-cts-hmac-sha1-96
+        out.writeShort(key.length);
+        out.write(key);
+        out.writeInt(mySeqNumber);
+        out.writeInt(peerSeqNumber);
+        out.writeLong(System.currentTimeMillis() + 10L * 60L * 60L * 1000L);
+        writeString(out, "user@EXAMPLE.COM");
+        writeString(out, "HTTP/server.example.com@EXAMPLE.COM");
+        out.writeByte(-1); // no ticket flags
+        out.writeShort(-1); // no auth time
+        out.writeShort(-1); // no authorization data
+        return baos.toByteArray();
+    }
+
+    /**
+     * Create the {@link Subject}s of {@code user@EXAMPLE.COM} and {@code HTTP/server.example.com@EXAMPLE.COM}, so that
+     * contexts can be established between them without a KDC: the client gets an AES256 service ticket made up here,
+     * encrypted with the key of the server in a temporary keytab. Each side only finds its credentials when running as
+     * its {@link Subject}, see {@link Subject#doAs(Subject, java.security.PrivilegedExceptionAction)}.
+     * <p/>
+     * This sets the realm and the KDC, so it must be called before the Kerberos configuration is first loaded. It also
+     * disables the replay cache, since it would otherwise fill up with the authenticators of the benchmarked contexts.
+     *
+     * @return the client and the server {@link Subject}, in this order
+     */
+    static Subject[] createSubjects() throws Exception {
+        System.setProperty("java.security.krb5.realm", "EXAMPLE.COM");
+        System.setProperty("java.security.krb5.kdc", "localhost");
+        System.setProperty("sun.security.krb5.rcache", "none");
+
+        PrincipalName user = new PrincipalName("user@EXAMPLE.COM");
+        PrincipalName server = new PrincipalName("HTTP/server.example.com@EXAMPLE.COM");
+        PrincipalName tgs = new PrincipalName("krbtgt/EXAMPLE.COM@EXAMPLE.COM");
+
+        File keyTabFile = File.createTempFile("benchmark", ".keytab");
+        keyTabFile.deleteOnExit();
+        // create() only keeps an existing file
+        keyTabFile.delete();
+        sun.security.krb5.internal.ktab.KeyTab keyTab =
+            sun.security.krb5.internal.ktab.KeyTab.create(keyTabFile.getPath());
+        keyTab.addEntry(server, "password".toCharArray(), 1, false);
+        keyTab.save();
+        EncryptionKey serverKey = null;
+        for (EncryptionKey key : EncryptionKey.acquireSecretKeys(server, keyTabFile.getPath())) {
+            if (key.getEType() == EncryptedData.ETYPE_AES256_CTS_HMAC_SHA1_96) {
+                serverKey = key;
+            }
+        }
+        if (serverKey == null) {
+            throw new IllegalStateException("AES256 is not available");
+        }
+
+        byte[] sessionKey = new byte[32];
+        new SecureRandom().nextBytes(sessionKey);
+        long now = System.currentTimeMillis();
+        KerberosTime start = new KerberosTime(now);
+        KerberosTime end = new KerberosTime(now + 10L * 60L * 60L * 1000L);
+        boolean[] flags = new boolean[32];
+        EncTicketPart encTicketPart = new EncTicketPart(new TicketFlags(flags),
+            new EncryptionKey(sessionKey, serverKey.getEType(), null), user, new TransitedEncoding(1, new byte[0]),
+            start, start, end, null, null, null);
+        Ticket serviceTicket = new Ticket(server,
+            new EncryptedData(serverKey, encTicketPart.asn1Encode(), KeyUsage.KU_TICKET));
+        // The initiator credential is looked up before the service ticket, but the TGT is never used
+        Ticket tgt = new Ticket(tgs, new EncryptedData(serverKey.getEType(), 1, new byte[64]));
+
+        KerberosPrincipal clientPrincipal = new KerberosPrincipal(user.getName());
+        Subject client = new Subject();
+        client.getPrincipals().add(clientPrincipal);
+        client.getPrivateCredentials().add(new KerberosTicket(tgt.asn1Encode(), clientPrincipal,
+            new KerberosPrincipal(tgs.getName()), new byte[32], serverKey.getEType(), flags,
+            start.toDate(), start.toDate(), end.toDate(), null, null));
+        client.getPrivateCredentials().add(new KerberosTicket(serviceTicket.asn1Encode(), clientPrincipal,
+            new KerberosPrincipal(server.getName()), sessionKey, serverKey.getEType(), flags, start.toDate(),
+            start.toDate(), end.toDate(), null, null));
+
+        KerberosPrincipal serverPrincipal = new KerberosPrincipal(server.getName());
+        Subject service = new Subject();
+        service.getPrincipals().add(serverPrincipal);
+        service.getPrivateCredentials().add(KeyTab.getInstance(serverPrincipal, keyTabFile));
+
+        return new Subject[] {client, service};
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
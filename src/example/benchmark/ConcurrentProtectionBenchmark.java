@@ -0,0 +1,138 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.benchmark;
+
+import example.provider.Configurations;
+import example.provider.CustomKerberosJgssProvider;
+import example.provider.impl.CustomGSSContextSpiImpl;
+import example.provider.impl.CustomKrb5MechFactory;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.ietf.jgss.MessageProp;
+import sun.security.jgss.GSSCaller;
+
+/**
+ * Measures the throughput of many threads sending MICs on the same context, with the context shared under a lock, as
+ * needed without {@link Configurations#isConcurrentProtection()}, against sharing it without one.
+ * <p/>
+ * Establishing a context needs a KDC, so the benchmark starts from a hand-made exported context, see
+ * {@link BenchmarkUtils#createExportedContext(boolean, byte[], int, int)}. The results only show scaling if the
+ * machine has several cores.
+ */
+public class ConcurrentProtectionBenchmark {
+
+    private static final int MESSAGE_SIZE = 256;
+
+    private static final int WARMUP_OPERATIONS = 20_000;
+
+    private static final int OPERATIONS = 100_000;
+
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    interface Sender {
+
+        byte[] send(byte[] message) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("concurrent.protection", "true");
+        CustomKerberosJgssProvider.install();
+        CustomKrb5MechFactory factory = CustomKerberosJgssProvider.getMechFactory(GSSCaller.CALLER_ACCEPT);
+
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        CustomGSSContextSpiImpl initiator =
+            factory.getMechanismContext(BenchmarkUtils.createExportedContext(true, key, 0, 0));
+        CustomGSSContextSpiImpl acceptor =
+            factory.getMechanismContext(BenchmarkUtils.createExportedContext(false, key, 0, 0));
+        byte[] message = new byte[MESSAGE_SIZE];
+        random.nextBytes(message);
+
+        // Check that concurrently sent tokens are valid and have all the sequence numbers, each once
+        List<byte[]> mics = run(4, 1000, m -> initiator.getMIC(m, 0, m.length, new MessageProp(0, false)), message);
+        BitSet seqNumbers = new BitSet();
+        for (byte[] mic : mics) {
+            acceptor.verifyMIC(mic, 0, mic.length, message, 0, message.length, new MessageProp(0, false));
+            // RFC 4121 MIC tokens have the sequence number in the clear, in the last 4 bytes of the 8 byte field
+            seqNumbers.set(ByteBuffer.wrap(mic, 12, 4).getInt());
+        }
+        if (seqNumbers.cardinality() != mics.size() || seqNumbers.length() != mics.size()) {
+            throw new IllegalStateException("Concurrently sent tokens share sequence numbers");
+        }
+
+        Sender unlocked = m -> initiator.getMIC(m, 0, m.length, new MessageProp(0, false));
+        Sender locked = m -> {
+            synchronized (initiator) {
+                return initiator.getMIC(m, 0, m.length, new MessageProp(0, false));
+            }
+        };
+        for (int threads : THREADS) {
+            measure("getMIC() locked, " + threads + " threads", threads, locked, message);
+            measure("getMIC() concurrent, " + threads + " threads", threads, unlocked, message);
+        }
+    }
+
+    private static void measure(String name, int threads, Sender sender, byte[] message) throws Exception {
+        run(threads, WARMUP_OPERATIONS / threads, sender, message);
+        long start = System.nanoTime();
+        run(threads, OPERATIONS / threads, sender, message);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%-50s %12.0f ops/s", name, OPERATIONS / seconds));
+    }
+
+    private static List<byte[]> run(int threads, int operationsPerThread, Sender sender, byte[] message)
+        throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<List<byte[]>>> tasks = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                tasks.add(() -> {
+                    List<byte[]> tokens = new ArrayList<>(operationsPerThread);
+                    for (int j = 0; j < operationsPerThread; j++) {
+                        tokens.add(sender.send(message));
+                    }
+                    return tokens;
+                });
+            }
+            List<byte[]> tokens = new ArrayList<>();
+            for (Future<List<byte[]>> future : executor.invokeAll(tasks)) {
+                tokens.addAll(future.get());
+            }
+            return tokens;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
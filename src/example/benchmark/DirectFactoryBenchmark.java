@@ -0,0 +1,64 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.benchmark;
+
+import example.provider.CustomKerberosJgssProvider;
+import example.provider.impl.CustomKrb5MechFactory;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+import sun.security.jgss.GSSCaller;
+
+/**
+ * Compares the per-call overhead of creating mechanism names through {@link GSSManager} against the direct factory
+ * returned by {@link CustomKerberosJgssProvider#getMechFactory(GSSCaller)}.
+ * <p/>
+ * Names are used because they can be created without a KDC, but the {@link GSSManager} overhead (provider lookup and
+ * wrapping) is the same for credentials and contexts.
+ */
+public class DirectFactoryBenchmark {
+
+    private static final String NAME = "user@EXAMPLE.COM";
+
+    private static final int WARMUP_ITERATIONS = 100_000;
+
+    private static final int ITERATIONS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        CustomKerberosJgssProvider.install();
+
+        Oid krb5Mech = new Oid("1.2.840.113554.1.2.2");
+        GSSManager sharedManager = GSSManager.getInstance();
+        CustomKrb5MechFactory factory = CustomKerberosJgssProvider.getMechFactory(GSSCaller.CALLER_INITIATE);
+
+        BenchmarkUtils.measure("GSSManager.getInstance().createName()", WARMUP_ITERATIONS, ITERATIONS,
+            () -> GSSManager.getInstance().createName(NAME, GSSName.NT_USER_NAME, krb5Mech));
+        BenchmarkUtils.measure("shared GSSManager.createName()", WARMUP_ITERATIONS, ITERATIONS,
+            () -> sharedManager.createName(NAME, GSSName.NT_USER_NAME, krb5Mech));
+        BenchmarkUtils.measure("CustomKrb5MechFactory.getNameElement()", WARMUP_ITERATIONS, ITERATIONS,
+            () -> factory.getNameElement(NAME, GSSName.NT_USER_NAME));
+    }
+}
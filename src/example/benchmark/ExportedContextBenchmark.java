@@ -0,0 +1,76 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.benchmark;
+
+import example.provider.CustomKerberosJgssProvider;
+import example.provider.impl.CustomGSSContextSpiImpl;
+import example.provider.impl.CustomKrb5MechFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import org.ietf.jgss.MessageProp;
+import sun.security.jgss.GSSCaller;
+
+/**
+ * Measures the latency of exporting and importing established contexts, and the size of the exported tokens.
+ * <p/>
+ * Establishing a context needs a KDC, so the benchmark starts from a hand-made exported context, see
+ * {@link BenchmarkUtils#createExportedContext(boolean, byte[], int, int)}.
+ */
+public class ExportedContextBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 50_000;
+
+    private static final int ITERATIONS = 500_000;
+
+    public static void main(String[] args) throws Exception {
+        CustomKerberosJgssProvider.install();
+        CustomKrb5MechFactory factory = CustomKerberosJgssProvider.getMechFactory(GSSCaller.CALLER_ACCEPT);
+
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        byte[] initiatorToken = BenchmarkUtils.createExportedContext(true, key, 1000, 2000);
+        byte[] acceptorToken = BenchmarkUtils.createExportedContext(false, key, 2000, 1000);
+
+        // Check that imported contexts actually work together and survive a round trip
+        CustomGSSContextSpiImpl initiator = factory.getMechanismContext(initiatorToken);
+        CustomGSSContextSpiImpl acceptor = factory.getMechanismContext(acceptorToken);
+        byte[] message = "Hello".getBytes(StandardCharsets.UTF_8);
+        byte[] wrapped = initiator.wrap(message, 0, message.length, new MessageProp(0, true));
+        byte[] unwrapped = acceptor.unwrap(wrapped, 0, wrapped.length, new MessageProp(0, true));
+        if (!Arrays.equals(message, unwrapped)) {
+            throw new IllegalStateException("Imported contexts don't interoperate");
+        }
+
+        byte[] reexported = initiator.export();
+        System.out.println("Exported context size: " + reexported.length + " bytes");
+
+        BenchmarkUtils.measure("import", WARMUP_ITERATIONS, ITERATIONS,
+            () -> factory.getMechanismContext(initiatorToken));
+        BenchmarkUtils.measure("import + export", WARMUP_ITERATIONS, ITERATIONS,
+            () -> factory.getMechanismContext(initiatorToken).export());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.benchmark;
+
+import example.provider.CustomKerberosJgssProvider;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+import javax.security.auth.Subject;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.MessageProp;
+import org.ietf.jgss.Oid;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.GSSHeader;
+import sun.security.jgss.SunProvider;
+
+/**
+ * Checks that the raw token mode (see {@link CustomKerberosJgssProvider#isRawTokenMode()}) interoperates with the
+ * built-in provider: contexts are established between the two in both directions, for Kerberos and SPNEGO, and
+ * messages protected by one are accepted by the other. The Kerberos tokens sent by either side must also be complete
+ * GSS tokens, whose header {@link GSSHeader} parses the way {@link sun.security.jgss.GSSContextImpl} does.
+ * <p/>
+ * Run with {@code -Draw.gss.tokens=true}, it fails otherwise. Establishing a context needs a KDC, so the check uses
+ * a made-up service ticket instead, see {@link BenchmarkUtils#createSubjects()}.
+ */
+public class RawTokenInteropCheck {
+
+    private static final String KRB5_MECH = "1.2.840.113554.1.2.2";
+
+    private static final byte[] MESSAGE = "raw token interop".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        Subject[] subjects = BenchmarkUtils.createSubjects();
+        CustomKerberosJgssProvider.install();
+        if (!CustomKerberosJgssProvider.isRawTokenMode()) {
+            throw new IllegalStateException("Raw token mode not enabled, run with -Draw.gss.tokens=true");
+        }
+
+        Oid krb5Mech = new Oid(KRB5_MECH);
+        Oid spNegoMech = new Oid("1.3.6.1.5.5.2");
+        GSSManager manager = GSSManager.getInstance();
+        GSSManager builtInManager = GSSManager.getInstance();
+        builtInManager.addProviderAtFront(new SunProvider(), krb5Mech);
+        builtInManager.addProviderAtFront(new SunProvider(), spNegoMech);
+
+        for (Oid mech : new Oid[] {krb5Mech, spNegoMech}) {
+            check("custom initiator, built-in acceptor", manager, builtInManager, mech, subjects);
+            check("built-in initiator, custom acceptor", builtInManager, manager, mech, subjects);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void check(String label, GSSManager initiatorManager, GSSManager acceptorManager, Oid mech,
+        Subject[] subjects) throws Exception {
+        GSSName server = initiatorManager.createName("HTTP/server.example.com@EXAMPLE.COM", GSSName.NT_USER_NAME);
+        GSSContext initiator = initiatorManager.createContext(server, mech, null, GSSContext.DEFAULT_LIFETIME);
+        initiator.requestMutualAuth(true);
+        initiator.requestConf(true);
+        GSSContext acceptor = acceptorManager.createContext((GSSCredential) null);
+        try {
+            int tokens = 0;
+            byte[] token = Subject.doAs(subjects[0],
+                (PrivilegedExceptionAction<byte[]>) () -> initiator.initSecContext(new byte[0], 0, 0));
+            while (token != null) {
+                checkFraming(token, mech, tokens++);
+                byte[] request = token;
+                byte[] response = Subject.doAs(subjects[1],
+                    (PrivilegedExceptionAction<byte[]>) () -> acceptor.acceptSecContext(request, 0, request.length));
+                if (response == null || initiator.isEstablished()) {
+                    break;
+                }
+                checkFraming(response, mech, tokens++);
+                token = initiator.initSecContext(response, 0, response.length);
+            }
+            if (!initiator.isEstablished() || !acceptor.isEstablished()) {
+                throw new IllegalStateException(label + ": context not established");
+            }
+            if (!initiator.getMutualAuthState()) {
+                throw new IllegalStateException(label + ": mutual authentication not done");
+            }
+
+            checkProtection(initiator, acceptor);
+            checkProtection(acceptor, initiator);
+            System.out.println(mech + ", " + label + ": established with " + tokens + " tokens, source "
+                + acceptor.getSrcName());
+        } finally {
+            initiator.dispose();
+            acceptor.dispose();
+        }
+    }
+
+    /**
+     * Check that a Kerberos token has a complete GSS header. Only the first SPNEGO token has one.
+     */
+    private static void checkFraming(byte[] token, Oid mech, int index) throws IOException, GSSException {
+        if (!mech.toString().equals(KRB5_MECH) && index > 0) {
+            return;
+        }
+        GSSHeader header = new GSSHeader(new ByteArrayInputStream(token));
+        if (!header.getOid().toString().equals(mech.toString())) {
+            throw new IllegalStateException("Token " + index + " is for " + header.getOid() + " instead of " + mech);
+        }
+        if (header.getLength() + header.getMechTokenLength() != token.length) {
+            throw new IllegalStateException("Token " + index + " has " + token.length + " bytes, its header says "
+                + (header.getLength() + header.getMechTokenLength()));
+        }
+    }
+
+    private static void checkProtection(GSSContext sender, GSSContext receiver) throws GSSException {
+        byte[] wrapped = sender.wrap(MESSAGE, 0, MESSAGE.length, new MessageProp(0, true));
+        MessageProp prop = new MessageProp(0, false);
+        byte[] unwrapped = receiver.unwrap(wrapped, 0, wrapped.length, prop);
+        if (!Arrays.equals(unwrapped, MESSAGE) || !prop.getPrivacy()) {
+            throw new IllegalStateException("Wrapped message not received as sent");
+        }
+
+        byte[] mic = sender.getMIC(MESSAGE, 0, MESSAGE.length, new MessageProp(0, false));
+        receiver.verifyMIC(mic, 0, mic.length, MESSAGE, 0, MESSAGE.length, new MessageProp(0, false));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.benchmark;
+
+import example.provider.CustomKerberosJgssProvider;
+import example.provider.impl.CustomSaslBase;
+import example.provider.impl.CustomSaslFactory;
+import example.provider.impl.MessageSlice;
+import java.security.PrivilegedExceptionAction;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.sasl.AuthorizeCallback;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslClientFactory;
+import javax.security.sasl.SaslServer;
+import javax.security.sasl.SaslServerFactory;
+
+// implementation classes - a real implementation wouldn't use these
+import com.sun.security.sasl.gsskerb.FactoryImpl;
+
+/**
+ * Compares sending messages through the security layer of the SASL GSSAPI mechanism of the provider, see
+ * {@link CustomSaslBase#wrapFrames(byte[], int, int)}, against the built-in one, whose frames the application splits,
+ * prefixes with their lengths and copies itself, as e.g. Kafka and ZooKeeper do. Both mechanisms use the provider's
+ * Kerberos contexts, so the difference is the framing, the buffer handling and the frame sizes: the built-in one
+ * advertises 65536 byte buffers by default, the provider's one
+ * {@link example.provider.Configurations#getSaslMaxBuffer()}.
+ * <p/>
+ * Each operation wraps a message on the client and unwraps it on the server.
+ * <p/>
+ * Establishing a context needs a KDC, so the benchmark uses a made-up service ticket instead, see
+ * {@link BenchmarkUtils#createSubjects()}.
+ */
+public class SaslBenchmark {
+
+    private static final int[] MESSAGE_SIZES = {1024, 256 * 1024};
+
+    // The number of bytes sent in the measured iterations for each size
+    private static final int VOLUME = 256 << 20;
+
+    private static final String PROTOCOL = "HTTP";
+
+    private static final String SERVER_NAME = "server.example.com";
+
+    public static void main(String[] args) throws Exception {
+        Subject[] subjects = BenchmarkUtils.createSubjects();
+        CustomKerberosJgssProvider.install();
+
+        SecureRandom random = new SecureRandom();
+        FactoryImpl builtInFactory = new FactoryImpl();
+        CustomSaslFactory customFactory = new CustomSaslFactory();
+
+        for (String qop : new String[] {"auth-int", "auth-conf"}) {
+            for (int size : MESSAGE_SIZES) {
+                byte[] message = new byte[size];
+                random.nextBytes(message);
+                int iterations = VOLUME / size;
+
+                Session builtInSession = establish(builtInFactory, builtInFactory, qop, subjects);
+                byte[] frames = new byte[2 * size + 4096];
+                byte[] received = new byte[size];
+                double builtIn = BenchmarkUtils.measure("built-in " + qop + ", " + size + " bytes", iterations / 4,
+                    iterations, () -> sendBuiltIn(builtInSession, message, frames, received));
+
+                Session customSession = establish(customFactory, customFactory, qop, subjects);
+                double custom = BenchmarkUtils.measure("CustomSaslFactory " + qop + ", " + size + " bytes",
+                    iterations / 4, iterations, () -> sendCustom(customSession, message, received));
+
+                System.out.println(String.format(Locale.ROOT, "%s, %d bytes: %.1f MB/s built-in, %.1f MB/s custom",
+                    qop, size, size * 1000.0 / builtIn, size * 1000.0 / custom));
+            }
+        }
+    }
+
+    static Session establish(SaslClientFactory clientFactory, SaslServerFactory serverFactory, String qop,
+        Subject[] subjects) throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Sasl.QOP, qop);
+        props.put(Sasl.SERVER_AUTH, "true");
+
+        SaslClient client = Subject.doAs(subjects[0], (PrivilegedExceptionAction<SaslClient>) () ->
+            clientFactory.createSaslClient(new String[] {"GSSAPI"}, null, PROTOCOL, SERVER_NAME, props, null));
+        SaslServer server = Subject.doAs(subjects[1], (PrivilegedExceptionAction<SaslServer>) () ->
+            serverFactory.createSaslServer("GSSAPI", PROTOCOL, SERVER_NAME, props, SaslBenchmark::authorize));
+
+        byte[] response = Subject.doAs(subjects[0],
+            (PrivilegedExceptionAction<byte[]>) () -> client.evaluateChallenge(new byte[0]));
+        while (true) {
+            byte[] request = response;
+            byte[] challenge = Subject.doAs(subjects[1],
+                (PrivilegedExceptionAction<byte[]>) () -> server.evaluateResponse(request));
+            if (server.isComplete()) {
+                break;
+            }
+            response = client.evaluateChallenge(challenge);
+        }
+        if (!client.isComplete() || !qop.equals(server.getNegotiatedProperty(Sasl.QOP))) {
+            throw new IllegalStateException("Authentication not completed with " + qop);
+        }
+
+        return new Session(client, server);
+    }
+
+    private static void authorize(Callback[] callbacks) {
+        for (Callback callback : callbacks) {
+            if (callback instanceof AuthorizeCallback) {
+                AuthorizeCallback authorize = (AuthorizeCallback) callback;
+                authorize.setAuthorized(authorize.getAuthenticationID().equals(authorize.getAuthorizationID()));
+            }
+        }
+    }
+
+    private static void sendBuiltIn(Session session, byte[] message, byte[] frames, byte[] received)
+        throws Exception {
+        // The application splits the message to fit the server's buffer, and frames the tokens
+        SaslClient client = session.client;
+        SaslServer server = session.server;
+        int rawSendSize = session.rawSendSize;
+        int length = 0;
+        for (int offset = 0; offset < message.length; offset += rawSendSize) {
+            byte[] token = client.wrap(message, offset, Math.min(rawSendSize, message.length - offset));
+            writeLength(token.length, frames, length);
+            System.arraycopy(token, 0, frames, length + 4, token.length);
+            length += 4 + token.length;
+        }
+
+        int receivedLength = 0;
+        for (int offset = 0; offset < length; ) {
+            int tokenLength = readLength(frames, offset);
+            byte[] data = server.unwrap(frames, offset + 4, tokenLength);
+            System.arraycopy(data, 0, received, receivedLength, data.length);
+            receivedLength += data.length;
+            offset += 4 + tokenLength;
+        }
+        check(receivedLength, message);
+    }
+
+    private static void sendCustom(Session session, byte[] message, byte[] received) throws Exception {
+        CustomSaslBase client = (CustomSaslBase) session.client;
+        CustomSaslBase server = (CustomSaslBase) session.server;
+        MessageSlice frames = client.wrapFrames(message, 0, message.length);
+        int receivedLength = 0;
+        for (int offset = frames.getOffset(), end = offset + frames.getLength(); offset < end; ) {
+            int frameLength = 4 + readLength(frames.getBuffer(), offset);
+            MessageSlice data = server.unwrapFrame(frames.getBuffer(), offset, frameLength);
+            System.arraycopy(data.getBuffer(), data.getOffset(), received, receivedLength, data.getLength());
+            receivedLength += data.getLength();
+            server.release(data);
+            offset += frameLength;
+        }
+        client.release(frames);
+        check(receivedLength, message);
+    }
+
+    private static void check(int receivedLength, byte[] message) {
+        if (receivedLength != message.length) {
+            throw new IllegalStateException("Received " + receivedLength + " of " + message.length + " bytes");
+        }
+    }
+
+    private static void writeLength(int length, byte[] buffer, int offset) {
+        buffer[offset] = (byte) (length >>> 24);
+        buffer[offset + 1] = (byte) (length >>> 16);
+        buffer[offset + 2] = (byte) (length >>> 8);
+        buffer[offset + 3] = (byte) length;
+    }
+
+    private static int readLength(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16 | (buffer[offset + 2] & 0xFF) << 8
+            | buffer[offset + 3] & 0xFF;
+    }
+
+    static final class Session {
+
+        final SaslClient client;
+
+        final SaslServer server;
+
+        final int rawSendSize;
+
+        Session(SaslClient client, SaslServer server) {
+            this.client = client;
+            this.server = server;
+            this.rawSendSize = Integer.parseInt((String) client.getNegotiatedProperty(Sasl.RAW_SEND_SIZE));
+        }
+    }
+}
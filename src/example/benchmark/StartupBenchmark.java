@@ -0,0 +1,100 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.benchmark;
+
+import example.provider.CustomKerberosJgssProvider;
+import example.provider.impl.CustomSaslBase;
+import example.provider.impl.CustomSaslFactory;
+import example.provider.impl.MessageSlice;
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.util.Locale;
+import javax.security.auth.Subject;
+
+/**
+ * Measures the startup of the provider and the warm-up of the per-message path, to compare the Java 8 classes with the
+ * version-specific ones of the multi-release JAR on newer JVMs, see the README. Each run only measures a cold JVM
+ * once, so it's meant to be started several times, on each Java version.
+ * <p/>
+ * The startup steps are installing the provider, establishing the first SASL session, which initializes the token
+ * framing and the access to the built-in Kerberos context, and sending the first message. The warm-up curve is the
+ * average latency of sending a message in consecutive batches of growing size, while the JIT compiles the path.
+ */
+public class StartupBenchmark {
+
+    private static final int MESSAGE_SIZE = 1024;
+
+    private static final int[] BATCHES = {1, 10, 100, 1_000, 10_000, 100_000};
+
+    public static void main(String[] args) throws Exception {
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        System.out.println(String.format(Locale.ROOT, "%-50s %12d ms", "JVM uptime at main", uptime));
+
+        Subject[] subjects = BenchmarkUtils.createSubjects();
+
+        long start = System.nanoTime();
+        CustomKerberosJgssProvider.install();
+        start = report("install", start);
+
+        CustomSaslFactory factory = new CustomSaslFactory();
+        SaslBenchmark.Session session = SaslBenchmark.establish(factory, factory, "auth-conf", subjects);
+        start = report("first SASL session", start);
+
+        byte[] message = new byte[MESSAGE_SIZE];
+        new SecureRandom().nextBytes(message);
+        byte[] received = new byte[MESSAGE_SIZE];
+        send(session, message, received);
+        report("first message", start);
+
+        for (int batch : BATCHES) {
+            start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                send(session, message, received);
+            }
+            double nanosPerOp = (double) (System.nanoTime() - start) / batch;
+            System.out.println(String.format(Locale.ROOT, "%-50s %12.1f ns/op", "batch of " + batch, nanosPerOp));
+        }
+    }
+
+    private static long report(String step, long start) {
+        long end = System.nanoTime();
+        System.out.println(String.format(Locale.ROOT, "%-50s %12.3f ms", step, (end - start) / 1e6));
+        return end;
+    }
+
+    private static void send(SaslBenchmark.Session session, byte[] message, byte[] received) throws Exception {
+        CustomSaslBase client = (CustomSaslBase) session.client;
+        CustomSaslBase server = (CustomSaslBase) session.server;
+        MessageSlice frame = client.wrapFrames(message, 0, message.length);
+        MessageSlice data = server.unwrapFrame(frame.getBuffer(), frame.getOffset(), frame.getLength());
+        if (data.getLength() != message.length) {
+            throw new IllegalStateException("Received " + data.getLength() + " of " + message.length + " bytes");
+        }
+        System.arraycopy(data.getBuffer(), data.getOffset(), received, 0, data.getLength());
+        server.release(data);
+        client.release(frame);
+    }
+}
@@ -26,11 +26,17 @@
 package example.provider;
 
 import com.sun.security.auth.module.Krb5LoginModule;
+import example.provider.impl.EncTypeCalibrator;
+import example.provider.impl.KdcLocator;
+import example.provider.impl.NameResolver;
+import example.provider.impl.PreauthCache;
+import example.provider.impl.PreauthKrb5LoginModule;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.security.auth.login.AppConfigurationEntry;
 import javax.security.auth.login.Configuration;
-import sun.security.krb5.Realm;
 import sun.security.krb5.RealmException;
 
 /**
@@ -41,7 +47,13 @@ public class Configurations {
 
     private static String ticketCachePath = System.getenv("KRB5CCNAME");
 
-    private static String ticketCachePathForJaasLogin = ticketCachePath;
+    private static volatile String ticketCachePathForJaasLogin = ticketCachePath;
+
+    // The default realm and the user principal in it, rebuilt when the realm changes
+    private static volatile String[] userPrincipal;
+
+    // Replaced as a whole on each change, see setLoginModuleOptions
+    private static volatile Map<String, Map<String, ?>> loginModuleOptions = Collections.emptyMap();
 
     private static final DecoratedConfiguration configuration;
 
@@ -55,6 +67,26 @@ public class Configurations {
      */
     public static void setTicketCachePathForJaasLogin(String jaasTicketCachePath) {
         ticketCachePathForJaasLogin = jaasTicketCachePath;
+        configuration.invalidate();
+    }
+
+    /**
+     * Set the options of the {@link Krb5LoginModule} for the given application name (e.g.
+     * {@code com.sun.security.jgss.krb5.initiate}) from code, without a JAAS configuration file. They take precedence
+     * over the options in the file, and if it has no {@link Krb5LoginModule} for the name, a required one is added.
+     * The ticket cache path set by {@link #setTicketCachePathForJaasLogin(String)} still takes precedence over them.
+     *
+     * @param options the options, or null to remove the ones set before
+     */
+    public static synchronized void setLoginModuleOptions(String name, Map<String, ?> options) {
+        Map<String, Map<String, ?>> updated = new HashMap<>(loginModuleOptions);
+        if (options == null) {
+            updated.remove(name);
+        } else {
+            updated.put(name, Collections.unmodifiableMap(new HashMap<>(options)));
+        }
+        loginModuleOptions = Collections.unmodifiableMap(updated);
+        configuration.invalidate();
     }
 
     /**
@@ -78,12 +110,217 @@ public class Configurations {
         return Boolean.getBoolean("fake.krb5.cc");
     }
 
+    /**
+     * Whether the provider should be registered under the name of the native provider, so that the calling code passes
+     * and expects complete GSS tokens, including their header. See
+     * {@link CustomKerberosJgssProvider#isRawTokenMode()}.
+     */
+    public static boolean isRawTokenMode() {
+        return Boolean.getBoolean("raw.gss.tokens");
+    }
+
+    /**
+     * Whether the provider should register the built-in SPNEGO mechanism, which looks up the Kerberos mechanism through
+     * {@link org.ietf.jgss.GSSManager} for each token, instead of its own, see
+     * {@link example.provider.impl.CustomSpNegoMechFactory}.
+     */
+    public static boolean isBuiltInSpNego() {
+        return Boolean.getBoolean("builtin.spnego");
+    }
+
+    /**
+     * The maximum number of impersonated (S4U2Self) credentials kept for reuse, 0 disables the cache.
+     */
+    public static int getImpersonationCacheSize() {
+        return Integer.getInteger("impersonation.cache.size", 1000);
+    }
+
+    /**
+     * The maximum number of constrained delegation (S4U2Proxy) service tickets kept for reuse, 0 disables the cache.
+     */
+    public static int getProxyTicketCacheSize() {
+        return Integer.getInteger("proxy.ticket.cache.size", 1000);
+    }
+
+    /**
+     * The maximum number of bytes the tickets in {@link example.provider.impl.CredentialStore#getDefault()} may take.
+     */
+    public static long getCredentialStoreBudget() {
+        return Long.getLong("credential.store.budget", 64L * 1024 * 1024);
+    }
+
+    /**
+     * The path of the ccache file the service tickets are persisted to, or null if they aren't persisted. See
+     * {@link example.provider.impl.ServiceTicketCache}.
+     */
+    public static String getServiceTicketCachePath() {
+        return System.getProperty("service.ticket.cache");
+    }
+
+    /**
+     * Whether the provider should read the ticket-granting tickets from the FILE: ccache at
+     * {@link #getTicketCachePath()} itself, parsing only the entries added since the last read, instead of the
+     * delegate parsing the whole file each time. See {@link example.provider.impl.CCacheReader}.
+     */
+    public static boolean isIncrementalCCacheReader() {
+        return Boolean.getBoolean("incremental.ccache");
+    }
+
+    /**
+     * How long the results of the name lookups are cached before being refreshed in the background, see
+     * {@link NameResolver}.
+     */
+    public static long getNameResolverTtlSeconds() {
+        return Long.getLong("name.resolver.ttl", 300);
+    }
+
+    /**
+     * How long the failed or empty name lookups are cached, see {@link NameResolver}.
+     */
+    public static long getNameResolverNegativeTtlSeconds() {
+        return Long.getLong("name.resolver.negative.ttl", 30);
+    }
+
+    /**
+     * Whether the KDCs of realms looked up with DNS are cached by the provider, see {@link KdcLocator}.
+     */
+    public static boolean isKdcLocator() {
+        return Boolean.getBoolean("kdc.locator");
+    }
+
+    /**
+     * The DNS server used to look up the KDCs, e.g. {@code dns://127.0.0.1:5353}, or null for the system ones.
+     */
+    public static String getKdcLocatorDnsUrl() {
+        return System.getProperty("kdc.locator.dns");
+    }
+
+    /**
+     * How long the looked up KDCs are cached before being refreshed in the background, see {@link KdcLocator}.
+     */
+    public static long getKdcLocatorTtlSeconds() {
+        return Long.getLong("kdc.locator.ttl", 300);
+    }
+
+    /**
+     * Whether the encryption types requested for service tickets are ordered by their measured cost, see
+     * {@link EncTypeCalibrator}.
+     */
+    public static boolean isEncTypeCalibration() {
+        return Boolean.getBoolean("enctype.calibration");
+    }
+
+    /**
+     * The file the measured costs of the encryption types are kept in, so that they aren't measured again on each
+     * start, or null to always measure them.
+     */
+    public static String getEncTypeCalibrationPath() {
+        return System.getProperty("enctype.calibration.file");
+    }
+
+    /**
+     * Whether the keytab logins of initiators are pre-authenticated right away with the encryption type the KDC asked
+     * for on the previous login, see {@link PreauthCache}.
+     */
+    public static boolean isPreauthCache() {
+        return Boolean.getBoolean("preauth.cache");
+    }
+
+    /**
+     * Whether established contexts can send tokens from many threads at once without any locking, see
+     * {@link example.provider.impl.ConcurrentProtection}.
+     */
+    public static boolean isConcurrentProtection() {
+        return Boolean.getBoolean("concurrent.protection");
+    }
+
+    /**
+     * Whether the tokens received on contexts with replay or sequence detection are tracked in a sliding window of
+     * sequence numbers that many threads can check at once, see {@link example.provider.impl.ReplayWindow}.
+     */
+    public static boolean isReplayWindow() {
+        return Boolean.getBoolean("replay.window");
+    }
+
+    /**
+     * The number of sequence numbers behind the latest one received for which duplicates are still detected, see
+     * {@link #isReplayWindow()}. Rounded up to fill
+     * the words of the window, at least 64.
+     */
+    public static int getReplayWindowSize() {
+        return Integer.getInteger("replay.window.size", 1024);
+    }
+
+    /**
+     * The service principals (e.g. {@code HTTP/web.example.com@EXAMPLE.COM}) for which initiator contexts are created
+     * with their first token in advance, separated by commas, see {@link example.provider.impl.InitiatorContextPool}.
+     * Empty if none.
+     */
+    public static String getInitiatorPoolTargets() {
+        return System.getProperty("initiator.pool.targets", "");
+    }
+
+    /**
+     * The number of contexts kept ready for each target and set of requested flags, see
+     * {@link #getInitiatorPoolTargets()}.
+     */
+    public static int getInitiatorPoolSize() {
+        return Integer.getInteger("initiator.pool.size", 2);
+    }
+
+    /**
+     * How long a context is kept ready before it's replaced, which must be well within the clock skew the acceptors
+     * allow for the authenticator of its first token, see {@link #getInitiatorPoolTargets()}.
+     */
+    public static long getInitiatorPoolMaxAgeSeconds() {
+        return Long.getLong("initiator.pool.max.age", 60);
+    }
+
+    /**
+     * How long the session cookies issued after a successful HTTP Negotiate authentication are accepted instead of a
+     * new Kerberos token, 0 disables them, see {@link example.provider.impl.NegotiateAuthenticator}.
+     */
+    public static long getNegotiateSessionLifetimeSeconds() {
+        return Long.getLong("negotiate.session.lifetime", 300);
+    }
+
+    /**
+     * The maximum number of TLS sessions whose channel bindings are kept for reuse, 0 disables the cache, see
+     * {@link example.provider.impl.TlsChannelBindingCache}.
+     */
+    public static int getChannelBindingCacheSize() {
+        return Integer.getInteger("channel.binding.cache.size", 10000);
+    }
+
+    /**
+     * Whether to register the built-in SASL GSSAPI mechanism instead of the provider's
+     * {@link example.provider.impl.CustomSaslFactory}.
+     */
+    public static boolean isBuiltInSasl() {
+        return Boolean.getBoolean("builtin.sasl");
+    }
+
+    /**
+     * The largest wrapped SASL GSSAPI frame that {@link example.provider.impl.CustomSaslFactory}'s mechanism
+     * advertises to receive when the application doesn't set {@link javax.security.sasl.Sasl#MAX_BUFFER}. Much larger
+     * than the JDK's 65536 bytes, so that bulk data takes fewer frames; the protocol allows up to 16 MiB - 1.
+     */
+    public static int getSaslMaxBuffer() {
+        return Integer.getInteger("sasl.max.buffer", 1 << 20);
+    }
+
     public static String getUserPrincipal() throws RealmException {
-        return System.getProperty("user.name") + "@" + getDefaultRealm();
+        String realm = getDefaultRealm();
+        String[] principal = userPrincipal;
+        if (principal == null || !principal[0].equals(realm)) {
+            principal = new String[] {realm, System.getProperty("user.name") + "@" + realm};
+            userPrincipal = principal;
+        }
+        return principal[1];
     }
 
     public static String getDefaultRealm() throws RealmException {
-        return Realm.getDefault().toString();
+        return NameResolver.getDefaultRealm();
     }
 
     public static boolean isWindows() {
@@ -92,24 +329,71 @@ public class Configurations {
 
     private static class DecoratedConfiguration extends Configuration {
 
-        // NOTE: a real implementation may also allow setting the individual login module configurations from code,
-        // although that's only really necessary if the standard JGSS provider is used, since a real native provider
-        // would usually ignore them. In this minimal demonstration we just ensure the fake ticket cache is
-        // appropriately propagated.
+        // NOTE: setting the login module options from code is only really necessary if the standard JGSS provider is
+        // used, since a real native provider would usually ignore them. In this minimal demonstration we mainly ensure
+        // the fake ticket cache is appropriately propagated.
+
+        // Cached for the names the delegate has no entries for, since the cache can't hold nulls
+        private static final AppConfigurationEntry[] NONE = new AppConfigurationEntry[0];
+
+        private static final String KRB5_LOGIN_MODULE_NAME = Krb5LoginModule.class.getName();
+
+        private static final String KRB5_LOGIN_MODULE_SIMPLE_NAME = Krb5LoginModule.class.getSimpleName();
+
+        private static final String PREAUTH_LOGIN_MODULE_NAME = PreauthKrb5LoginModule.class.getName();
 
         private final Configuration delegate;
 
+        // The decorated entries per application name, replaced with an empty map whenever the decoration changes, so
+        // that the lookups don't need locking. The delegate's entries only change on refresh().
+        private volatile ConcurrentHashMap<String, AppConfigurationEntry[]> entries = new ConcurrentHashMap<>();
+
         DecoratedConfiguration(Configuration delegate) {
             this.delegate = delegate;
         }
 
         @Override
         public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
-            return decorate(delegate.getAppConfigurationEntry(name));
+            if (name == null) {
+                return delegate.getAppConfigurationEntry(null);
+            }
+
+            // Read before decorating, so that entries decorated with outdated settings end up in a discarded map
+            ConcurrentHashMap<String, AppConfigurationEntry[]> cache = entries;
+            AppConfigurationEntry[] decorated = cache.get(name);
+            if (decorated == null) {
+                decorated = decorate(name, delegate.getAppConfigurationEntry(name));
+                cache.putIfAbsent(name, decorated);
+            }
+
+            // The entries themselves are immutable, only the array needs to be protected
+            return decorated == NONE ? null : decorated.clone();
+        }
+
+        @Override
+        public void refresh() {
+            delegate.refresh();
+            invalidate();
+        }
+
+        void invalidate() {
+            entries = new ConcurrentHashMap<>();
         }
 
-        private static AppConfigurationEntry[] decorate(AppConfigurationEntry[] original) {
-            if (ticketCachePathForJaasLogin == null) {
+        private static AppConfigurationEntry[] decorate(String name, AppConfigurationEntry[] original) {
+            Map<String, ?> options = loginModuleOptions.get(name);
+            String ticketCache = ticketCachePathForJaasLogin;
+
+            if (original == null || original.length == 0) {
+                if (options == null) {
+                    return original == null ? NONE : original;
+                }
+                original = new AppConfigurationEntry[] {new AppConfigurationEntry(KRB5_LOGIN_MODULE_NAME,
+                    AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, options)};
+            }
+
+            boolean preauthCache = PreauthCache.isEnabled();
+            if (options == null && ticketCache == null && !preauthCache) {
                 return original;
             }
 
@@ -118,8 +402,8 @@ public class Configurations {
             for (int i = 0; i < original.length; i++) {
                 AppConfigurationEntry entry = original[i];
 
-                if (entry.getLoginModuleName().equals(Krb5LoginModule.class.getSimpleName())) {
-                    entry = decorate(entry);
+                if (isKrb5LoginModule(entry.getLoginModuleName())) {
+                    entry = decorate(entry, options, ticketCache, preauthCache);
                 }
 
                 decorated[i] = entry;
@@ -128,14 +412,25 @@ public class Configurations {
             return decorated;
         }
 
-        private static AppConfigurationEntry decorate(AppConfigurationEntry entry) {
-            return new AppConfigurationEntry(entry.getLoginModuleName(), entry.getControlFlag(),
-                decorate(entry.getOptions()));
+        private static boolean isKrb5LoginModule(String loginModuleName) {
+            return loginModuleName.equals(KRB5_LOGIN_MODULE_NAME)
+                || loginModuleName.equals(KRB5_LOGIN_MODULE_SIMPLE_NAME);
         }
 
-        private static Map<String, ?> decorate(Map<String, ?> options) {
-            Map<String, Object> map = new HashMap<>(options);
-            map.put("ticketCache", ticketCachePathForJaasLogin);
+        private static AppConfigurationEntry decorate(AppConfigurationEntry entry, Map<String, ?> options,
+            String ticketCache, boolean preauthCache) {
+            return new AppConfigurationEntry(preauthCache ? PREAUTH_LOGIN_MODULE_NAME : entry.getLoginModuleName(),
+                entry.getControlFlag(), decorate(entry.getOptions(), options, ticketCache));
+        }
+
+        private static Map<String, ?> decorate(Map<String, ?> original, Map<String, ?> options, String ticketCache) {
+            Map<String, Object> map = new HashMap<>(original);
+            if (options != null) {
+                map.putAll(options);
+            }
+            if (ticketCache != null) {
+                map.put("ticketCache", ticketCache);
+            }
             return map;
         }
     }
@@ -26,19 +26,32 @@
 package example.provider;
 
 import example.provider.impl.CustomKrb5MechFactory;
+import example.provider.impl.CustomSaslFactory;
+import example.provider.impl.CustomSpNegoMechFactory;
+import example.provider.impl.EncTypeCalibrator;
+import example.provider.impl.InitiatorContextPool;
+import example.provider.impl.NegotiateAuthenticator;
+import example.provider.impl.PreauthCache;
+import example.provider.impl.ProxyTicketCache;
+import example.provider.impl.ReplayWindow;
+import example.provider.impl.ServiceTicketCache;
+import example.provider.impl.TlsChannelBindingCache;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.Provider;
 import java.security.Security;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import sun.security.jgss.GSSCaller;
 
 /**
  * A security {@link Provider} for KRB5 and SPNEGO mechanisms meant to replace {@link sun.security.jgss.SunProvider}.
  * <p/>
  * This version is created for demonstration purposes, it delegates internally to the builtin classes. The provided
- * SPNEGO implementation is the same one that the {@link sun.security.jgss.SunProvider} provides, because replacing it
- * is not necessary.
+ * SPNEGO implementation calls the KRB5 one directly, and establishes contexts in a single round trip when the acceptor
+ * prefers KRB5, see {@link CustomSpNegoMechFactory}. The one that the {@link sun.security.jgss.SunProvider} provides
+ * can still be registered instead, see {@link Configurations#isBuiltInSpNego()}. The SASL GSSAPI mechanism is provided
+ * too, see {@link CustomSaslFactory}.
  * <p/>
  * Calling the {@link #install()} method replaces the builtin {@link sun.security.jgss.SunProvider} with this one in
  * {@link Security}.
@@ -54,9 +67,11 @@ public final class CustomKerberosJgssProvider extends Provider {
     // NOTE: in a native provider, we'd use the Sun native provider's name, because this changes the calling code's
     // behavior in a way that's easier to work with. (See `mechCtxt.getProvider().getName().equals("SunNativeGSS")`
     // conditions in sun.security.jgss.GSSContextImpl.) Since we now only delegate to the regular provider, we don't
-    // do this to match its expectations.
+    // do this by default to match its expectations, only in the raw token mode, see isRawTokenMode().
     public static final String NAME_CUSTOM_JGSS = "CustomJGSS";
 
+    private static final String NAME = Configurations.isRawTokenMode() ? NAME_SUN_NATIVE_JGSS : NAME_CUSTOM_JGSS;
+
     private static final String INFO = "Custom JGSS (Kerberos v5, SPNEGO)";
 
     /**
@@ -88,7 +103,7 @@ public final class CustomKerberosJgssProvider extends Provider {
         // No separate check needed, because if the below fails, the above will throw the next time
         try {
             // Trigger init and throw anything that comes out of it
-            new CustomKrb5MechFactory(null);
+            CustomKrb5MechFactory.getInstance(null);
         } catch (Throwable t) {
             initThrowable = t;
         }
@@ -119,8 +134,100 @@ public final class CustomKerberosJgssProvider extends Provider {
     }
 
     /**
-     * Replace the {@link sun.security.jgss.SunProvider} with an instance of this one in {@link Security}. All further
-     * calls to this method are a no-op.
+     * Whether this provider is registered under the name of the native provider ({@value #NAME_SUN_NATIVE_JGSS}), as
+     * requested by {@link Configurations#isRawTokenMode()}.
+     * <p/>
+     * In this mode {@link sun.security.jgss.GSSContextImpl} neither strips off the GSS header of incoming context
+     * establishment tokens (except for the first token on the acceptor side), nor adds it to the outgoing ones, so the
+     * provider reads and writes complete tokens. This way each header is encoded and decoded exactly once, instead of
+     * the calling code stripping it off for the provider to add it back, as a native implementation would need it (see
+     * example.provider.impl.IOUtils). The tokens on the wire are the same in both modes, so the peer may use
+     * any provider.
+     * <p/>
+     * It also enables context export and import through {@link org.ietf.jgss.GSSManager}, which are only allowed for
+     * the native provider.
+     */
+    public static boolean isRawTokenMode() {
+        return NAME.equals(NAME_SUN_NATIVE_JGSS);
+    }
+
+    /**
+     * Get the shared mechanism factory for the given caller, installing the provider if it's not yet installed.
+     * <p/>
+     * This is a fast path for creating names, credentials and contexts directly, bypassing
+     * {@link org.ietf.jgss.GSSManager}, which looks up the mechanism factory in the registered {@link Provider}s, and
+     * wraps the created elements in its own classes. The elements returned by the factory are the mechanism-level
+     * ones, they are meant to be used by code that's aware of the JGSS SPI.
+     *
+     * @param caller the caller (e.g. {@link GSSCaller#CALLER_INITIATE}), or null if unknown
+     */
+    public static CustomKrb5MechFactory getMechFactory(GSSCaller caller) {
+        install();
+        return CustomKrb5MechFactory.getInstance(caller);
+    }
+
+    /**
+     * Get the usage counters of the cache of constrained delegation (S4U2Proxy) service tickets, see
+     * {@link Configurations#getProxyTicketCacheSize()}.
+     */
+    public static CacheStatistics getProxyTicketCacheStatistics() {
+        return ProxyTicketCache.getStatistics();
+    }
+
+    /**
+     * Get the usage counters of the cached pre-authentication encryption types of keytab logins, see
+     * {@link Configurations#isPreauthCache()}.
+     */
+    public static CacheStatistics getPreauthCacheStatistics() {
+        return PreauthCache.getStatistics();
+    }
+
+    /**
+     * Get the usage counters of the initiator contexts created in advance for the hot targets, see
+     * {@link Configurations#getInitiatorPoolTargets()}.
+     */
+    public static CacheStatistics getInitiatorContextPoolStatistics() {
+        return InitiatorContextPool.getStatistics();
+    }
+
+    /**
+     * Get the usage counters of the channel bindings kept per TLS session, see
+     * {@link example.provider.impl.TlsChannelBindingCache}. A miss means hashing the server certificate.
+     */
+    public static CacheStatistics getChannelBindingCacheStatistics() {
+        return TlsChannelBindingCache.getStatistics();
+    }
+
+    /**
+     * Get the counters and latencies of the HTTP Negotiate authentications, see
+     * {@link example.provider.impl.NegotiateAuthenticator}.
+     */
+    public static NegotiateStatistics getNegotiateStatistics() {
+        return NegotiateAuthenticator.getStatistics();
+    }
+
+    /**
+     * Get the counters of the tokens received out of order on all the contexts whose sequence numbers are tracked by
+     * the provider, see {@link Configurations#isReplayWindow()}.
+     */
+    public static ReplayStatistics getReplayStatistics() {
+        return ReplayWindow.getTotalStatistics();
+    }
+
+    /**
+     * Get the measured costs and the resulting order of the encryption types requested for service tickets, or null if
+     * they aren't calibrated, see {@link Configurations#isEncTypeCalibration()}.
+     */
+    public static EncryptionTypeCalibration getEncryptionTypeCalibration() {
+        return EncTypeCalibrator.getCalibration();
+    }
+
+    /**
+     * Replace the {@link sun.security.jgss.SunProvider} with an instance of this one in {@link Security}, and preload
+     * the persisted service tickets, see {@link Configurations#getServiceTicketCachePath()}, and calibrate the
+     * encryption types, see {@link Configurations#isEncTypeCalibration()}, and start creating the initiator contexts
+     * of the hot targets, see {@link Configurations#getInitiatorPoolTargets()}. All further calls to this method are
+     * a no-op.
      */
     public static void install() {
         // Don't try to install if we know it's going to fail
@@ -133,6 +240,9 @@ public final class CustomKerberosJgssProvider extends Provider {
                     try {
                         String jaasTicketCachePath = LoginModuleUtils.fakeCredentialsCache();
                         ensureInitialized();
+                        ServiceTicketCache.preload();
+                        EncTypeCalibrator.calibrate();
+                        InitiatorContextPool.start();
                         if (!isReallyInstalled()) {
                             Security.removeProvider(NAME_SUNJGSS);
                             Security.removeProvider(NAME_SUN_NATIVE_JGSS);
@@ -179,7 +289,8 @@ public final class CustomKerberosJgssProvider extends Provider {
         // Since we may reuse the name of the native provider, it's not enough to just check that we are installed, we
         // also check that the default is not installed. If our provider was added via a security config without
         // removing the default provider (which is a bad idea anyway), we'll reinstall it as a result.
-        return Security.getProvider(NAME_CUSTOM_JGSS) != null && Security.getProvider(NAME_SUNJGSS) == null;
+        return Security.getProvider(NAME) instanceof CustomKerberosJgssProvider
+            && Security.getProvider(NAME_SUNJGSS) == null;
     }
 
     /**
@@ -196,7 +307,7 @@ public final class CustomKerberosJgssProvider extends Provider {
     }
 
     private CustomKerberosJgssProvider(boolean ensureInstalled) {
-        super(NAME_CUSTOM_JGSS, 1.8d, INFO);
+        super(NAME, 1.8d, INFO);
 
         if (ensureInstalled) {
             install();
@@ -204,10 +315,20 @@ public final class CustomKerberosJgssProvider extends Provider {
 
         AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
             put("GssApiMechanism.1.2.840.113554.1.2.2", CustomKrb5MechFactory.class.getName());
-            // NOTE: the built-in SPNEGO provider uses the registered KRB5 provider for generating tokens
-            // One minor issue with it is that it returns the SunProvider from its getProvider() method, but
-            // that appears not to cause issues.
-            put("GssApiMechanism.1.3.6.1.5.5.2", "sun.security.jgss.spnego.SpNegoMechFactory");
+            if (Configurations.isBuiltInSpNego()) {
+                // NOTE: the built-in SPNEGO provider uses the registered KRB5 provider for generating tokens
+                // One minor issue with it is that it returns the SunProvider from its getProvider() method, but
+                // that appears not to cause issues.
+                put("GssApiMechanism.1.3.6.1.5.5.2", "sun.security.jgss.spnego.SpNegoMechFactory");
+            } else {
+                put("GssApiMechanism.1.3.6.1.5.5.2", CustomSpNegoMechFactory.class.getName());
+            }
+            if (!Configurations.isBuiltInSasl()) {
+                // NOTE: the built-in SASL mechanisms are registered by another provider (SunSASL), which is looked up
+                // after this one if it's installed in front of it
+                put("SaslClientFactory.GSSAPI", CustomSaslFactory.class.getName());
+                put("SaslServerFactory.GSSAPI", CustomSaslFactory.class.getName());
+            }
             return null;
         });
     }
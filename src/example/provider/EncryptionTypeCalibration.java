@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The measured costs of the encryption types, and the resulting order in which they're requested for service tickets,
+ * see {@link Configurations#isEncTypeCalibration()}.
+ */
+public final class EncryptionTypeCalibration {
+
+    private final List<String> order;
+
+    private final Map<String, Long> costs;
+
+    private final boolean loaded;
+
+    /**
+     * @param order the names of the requested encryption types, in the order they're requested
+     * @param costs the nanoseconds per protect and unprotect of a token, by encryption type name
+     * @param loaded whether the costs were loaded from a previous calibration, rather than measured
+     */
+    public EncryptionTypeCalibration(List<String> order, Map<String, Long> costs, boolean loaded) {
+        this.order = Collections.unmodifiableList(order);
+        this.costs = Collections.unmodifiableMap(new LinkedHashMap<>(costs));
+        this.loaded = loaded;
+    }
+
+    /**
+     * The names of the requested encryption types (e.g. {@code aes128-cts-hmac-sha1-96}), cheapest first among those
+     * that were measured.
+     */
+    public List<String> getOrder() {
+        return order;
+    }
+
+    /**
+     * The nanoseconds taken to protect and unprotect a token of each measured encryption type.
+     */
+    public Map<String, Long> getCosts() {
+        return costs;
+    }
+
+    /**
+     * Whether the costs were loaded from a previous calibration.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    @Override
+    public String toString() {
+        return "order=" + order + ", costs=" + costs + ", loaded=" + loaded;
+    }
+}
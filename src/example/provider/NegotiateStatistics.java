@@ -0,0 +1,100 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider;
+
+/**
+ * A snapshot of the counters and latencies of the HTTP Negotiate authentications, see
+ * {@link example.provider.impl.NegotiateAuthenticator}.
+ */
+public final class NegotiateStatistics {
+
+    private final long accepts;
+
+    private final long acceptNanos;
+
+    private final long sessionHits;
+
+    private final long sessionHitNanos;
+
+    private final long failures;
+
+    public NegotiateStatistics(long accepts, long acceptNanos, long sessionHits, long sessionHitNanos, long failures) {
+        this.accepts = accepts;
+        this.acceptNanos = acceptNanos;
+        this.sessionHits = sessionHits;
+        this.sessionHitNanos = sessionHitNanos;
+        this.failures = failures;
+    }
+
+    /**
+     * The number of requests authenticated by accepting a Kerberos token.
+     */
+    public long getAccepts() {
+        return accepts;
+    }
+
+    /**
+     * The average time it took to authenticate a request by accepting a Kerberos token, or 0 if there were none.
+     */
+    public double getAverageAcceptNanos() {
+        return accepts == 0 ? 0 : (double) acceptNanos / accepts;
+    }
+
+    /**
+     * The number of requests authenticated by their session cookie.
+     */
+    public long getSessionHits() {
+        return sessionHits;
+    }
+
+    /**
+     * The average time it took to authenticate a request by its session cookie, or 0 if there were none.
+     */
+    public double getAverageSessionHitNanos() {
+        return sessionHits == 0 ? 0 : (double) sessionHitNanos / sessionHits;
+    }
+
+    /**
+     * The ratio of session hits to all authenticated requests, or 0 if there were none.
+     */
+    public double getSessionHitRate() {
+        long total = accepts + sessionHits;
+        return total == 0 ? 0 : (double) sessionHits / total;
+    }
+
+    /**
+     * The number of requests whose token couldn't be accepted.
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("accepts=%d, averageAcceptNanos=%.0f, sessionHits=%d, averageSessionHitNanos=%.0f, "
+            + "failures=%d", accepts, getAverageAcceptNanos(), sessionHits, getAverageSessionHitNanos(), failures);
+    }
+}
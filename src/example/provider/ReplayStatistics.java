@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider;
+
+/**
+ * A snapshot of the counters of the tokens received out of order, as flagged in their
+ * {@link org.ietf.jgss.MessageProp}s.
+ */
+public final class ReplayStatistics {
+
+    private final long duplicates;
+
+    private final long oldTokens;
+
+    private final long unsequenced;
+
+    private final long gaps;
+
+    public ReplayStatistics(long duplicates, long oldTokens, long unsequenced, long gaps) {
+        this.duplicates = duplicates;
+        this.oldTokens = oldTokens;
+        this.unsequenced = unsequenced;
+        this.gaps = gaps;
+    }
+
+    /**
+     * The number of tokens that had already been received.
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * The number of tokens too old to tell whether they had already been received.
+     */
+    public long getOldTokens() {
+        return oldTokens;
+    }
+
+    /**
+     * The number of tokens received after a later one.
+     */
+    public long getUnsequenced() {
+        return unsequenced;
+    }
+
+    /**
+     * The number of tokens received before some earlier ones.
+     */
+    public long getGaps() {
+        return gaps;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("duplicates=%d, oldTokens=%d, unsequenced=%d, gaps=%d", duplicates, oldTokens,
+            unsequenced, gaps);
+    }
+}
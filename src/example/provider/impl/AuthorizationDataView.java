@@ -0,0 +1,407 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import com.sun.security.jgss.AuthorizationDataEntry;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.ietf.jgss.GSSException;
+
+/**
+ * A lazily decoding view of the authorization data of the ticket a context was accepted with, see
+ * {@link CustomGSSContextSpiImpl#getAuthorizationData()}.
+ * <p/>
+ * Nothing is decoded until it's asked for: the PAC is only located in the authorization data when first needed, its
+ * buffers are returned as read-only slices of the original data without copying, and the SIDs are only parsed from the
+ * logon information buffer once, on first use.
+ * <p/>
+ * NOTE: like the built-in provider, this doesn't verify the PAC signatures, it relies on the ticket having been
+ * decrypted with the service key.
+ */
+public final class AuthorizationDataView {
+
+    /**
+     * AD-IF-RELEVANT, the container of the PAC in tickets issued by Active Directory.
+     */
+    public static final int AD_IF_RELEVANT = 1;
+
+    /**
+     * AD-WIN2K-PAC
+     */
+    public static final int AD_WIN2K_PAC = 128;
+
+    /**
+     * The PAC buffer type of the logon information (KERB_VALIDATION_INFO), which contains the group memberships.
+     */
+    public static final int PAC_LOGON_INFO = 1;
+
+    private static final ByteBuffer NO_PAC = ByteBuffer.allocate(0);
+
+    // Offsets in the fixed part of the NDR encoded KERB_VALIDATION_INFO, see MS-PAC 2.5
+    private static final int LOGON_INFO_HEADER_SIZE = 20; // common and private type serialization headers + referent
+
+    private static final int LOGON_INFO_STRINGS = 48;
+
+    private static final int LOGON_INFO_USER_ID = 100;
+
+    private static final int LOGON_INFO_GROUP_IDS = 112;
+
+    private static final int LOGON_INFO_LOGON_SERVER = 136;
+
+    private static final int LOGON_INFO_LOGON_DOMAIN_NAME = 144;
+
+    private static final int LOGON_INFO_LOGON_DOMAIN_ID = 152;
+
+    private static final int LOGON_INFO_EXTRA_SIDS = 200;
+
+    private static final int LOGON_INFO_RESOURCE_GROUP_DOMAIN_SID = 204;
+
+    private static final int LOGON_INFO_RESOURCE_GROUP_IDS = 212;
+
+    private static final int LOGON_INFO_FIXED_SIZE = 216;
+
+    private final AuthorizationDataEntry[] entries;
+
+    // Memoized results, computed on first use. These are immutable, so racy initialization is fine.
+    private ByteBuffer pac;
+
+    private LogonInfo logonInfo;
+
+    /**
+     * Create a view of the given authorization data entries, e.g. as returned by
+     * {@link com.sun.security.jgss.ExtendedGSSContext#inquireSecContext}. The array is not copied, so it must not be
+     * modified afterwards.
+     */
+    public static AuthorizationDataView of(AuthorizationDataEntry[] entries) {
+        return new AuthorizationDataView(entries == null ? new AuthorizationDataEntry[0] : entries);
+    }
+
+    private AuthorizationDataView(AuthorizationDataEntry[] entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Get a copy of the top-level authorization data entries.
+     */
+    public AuthorizationDataEntry[] getEntries() {
+        return entries.clone();
+    }
+
+    /**
+     * Get the PAC as a read-only, little-endian slice of the authorization data, or null if there's no PAC.
+     */
+    public ByteBuffer getPac() throws GSSException {
+        ByteBuffer result = pac;
+        if (result == null) {
+            result = findPac();
+            pac = result;
+        }
+        return result == NO_PAC ? null : result.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Get a buffer of the PAC as a read-only, little-endian slice of the authorization data, or null if there's no PAC
+     * or no buffer of the given type in it.
+     *
+     * @param type the PAC buffer type, e.g. {@link #PAC_LOGON_INFO}
+     */
+    public ByteBuffer getPacBuffer(int type) throws GSSException {
+        ByteBuffer pacBuffer = getPac();
+        if (pacBuffer == null) {
+            return null;
+        }
+
+        try {
+            int count = pacBuffer.getInt(0);
+            for (int i = 0; i < count; i++) {
+                int infoOffset = 8 + i * 16;
+                if (pacBuffer.getInt(infoOffset) == type) {
+                    int size = pacBuffer.getInt(infoOffset + 4);
+                    long offset = pacBuffer.getLong(infoOffset + 8);
+                    if (size < 0 || offset < 0 || offset + size > pacBuffer.limit()) {
+                        throw malformed("PAC buffer out of bounds", null);
+                    }
+                    pacBuffer.position((int) offset);
+                    pacBuffer.limit((int) offset + size);
+                    return pacBuffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            throw malformed("Malformed PAC", e);
+        }
+    }
+
+    /**
+     * Get the SID of the user from the PAC, or null if there's no logon information in the authorization data.
+     */
+    public String getUserSid() throws GSSException {
+        LogonInfo info = getLogonInfo();
+        return info == null ? null : info.userSid;
+    }
+
+    /**
+     * Get the SIDs of all groups the user is a member of according to the PAC, including the extra SIDs and resource
+     * groups, or an empty list if there's no logon information in the authorization data. The list is parsed once and
+     * then shared, it's unmodifiable.
+     */
+    public List<String> getGroupSids() throws GSSException {
+        LogonInfo info = getLogonInfo();
+        return info == null ? Collections.<String>emptyList() : info.groupSids;
+    }
+
+    private LogonInfo getLogonInfo() throws GSSException {
+        LogonInfo result = logonInfo;
+        if (result == null) {
+            ByteBuffer buffer = getPacBuffer(PAC_LOGON_INFO);
+            result = buffer == null ? LogonInfo.NONE : LogonInfo.parse(buffer);
+            logonInfo = result;
+        }
+        return result == LogonInfo.NONE ? null : result;
+    }
+
+    private ByteBuffer findPac() throws GSSException {
+        for (AuthorizationDataEntry entry : entries) {
+            byte[] data = entry.getData();
+            if (entry.getType() == AD_WIN2K_PAC) {
+                return ByteBuffer.wrap(data).asReadOnlyBuffer();
+            } else if (entry.getType() == AD_IF_RELEVANT) {
+                ByteBuffer found = findPacInAuthorizationData(data);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return NO_PAC;
+    }
+
+    /**
+     * Walk the DER encoded AuthorizationData in place, without decoding anything but the tags and lengths:
+     * <pre>
+     * AuthorizationData ::= SEQUENCE OF SEQUENCE { ad-type [0] Int32, ad-data [1] OCTET STRING }
+     * </pre>
+     */
+    private static ByteBuffer findPacInAuthorizationData(byte[] der) throws GSSException {
+        try {
+            int[] cursor = {0};
+            int end = enter(der, cursor, 0x30);
+            while (cursor[0] < end) {
+                int entryEnd = enter(der, cursor, 0x30);
+                int typeEnd = enter(der, cursor, 0xA0);
+                int intEnd = enter(der, cursor, 0x02);
+                int type = 0;
+                for (int i = cursor[0]; i < intEnd; i++) {
+                    type = (type << 8) | (der[i] & 0xFF);
+                }
+                cursor[0] = typeEnd;
+                enter(der, cursor, 0xA1);
+                int dataEnd = enter(der, cursor, 0x04);
+                if (type == AD_WIN2K_PAC) {
+                    return ByteBuffer.wrap(der, cursor[0], dataEnd - cursor[0]).slice().asReadOnlyBuffer();
+                }
+                cursor[0] = entryEnd;
+            }
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            throw malformed("Malformed authorization data", e);
+        }
+    }
+
+    /**
+     * Check the tag at the cursor, move the cursor to the contents, and return the end of the contents.
+     */
+    private static int enter(byte[] der, int[] cursor, int tag) throws GSSException {
+        int pos = cursor[0];
+        if ((der[pos++] & 0xFF) != tag) {
+            throw malformed("Unexpected DER tag in authorization data", null);
+        }
+        int length = der[pos++] & 0xFF;
+        if (length > 0x80) {
+            int lengthBytes = length & 0x7F;
+            if (lengthBytes > 3) {
+                throw malformed("DER length too large in authorization data", null);
+            }
+            length = 0;
+            for (int i = 0; i < lengthBytes; i++) {
+                length = (length << 8) | (der[pos++] & 0xFF);
+            }
+        } else if (length == 0x80) {
+            throw malformed("Indefinite DER length in authorization data", null);
+        }
+        if (pos + length > der.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        cursor[0] = pos;
+        return pos + length;
+    }
+
+    private static GSSException malformed(String message, Throwable cause) {
+        GSSException e = new GSSException(GSSException.DEFECTIVE_TOKEN, -1, message);
+        if (cause != null) {
+            e.initCause(cause);
+        }
+        return e;
+    }
+
+    /**
+     * The SIDs from the NDR encoded KERB_VALIDATION_INFO structure.
+     */
+    private static final class LogonInfo {
+
+        static final LogonInfo NONE = new LogonInfo(null, Collections.<String>emptyList());
+
+        final String userSid;
+
+        final List<String> groupSids;
+
+        private LogonInfo(String userSid, List<String> groupSids) {
+            this.userSid = userSid;
+            this.groupSids = groupSids;
+        }
+
+        static LogonInfo parse(ByteBuffer buffer) throws GSSException {
+            try {
+                return parseUnchecked(buffer);
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw malformed("Malformed PAC logon information", e);
+            }
+        }
+
+        private static LogonInfo parseUnchecked(ByteBuffer buffer) {
+            int base = LOGON_INFO_HEADER_SIZE;
+            if (buffer.limit() < base + LOGON_INFO_FIXED_SIZE) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            // The pointees follow the fixed part in the order of their pointers, so the ones before the SIDs need to
+            // be skipped
+            buffer.position(base + LOGON_INFO_FIXED_SIZE);
+            for (int i = 0; i < 6; i++) {
+                skipString(buffer, base + LOGON_INFO_STRINGS + i * 8);
+            }
+
+            int userId = buffer.getInt(base + LOGON_INFO_USER_ID);
+            int[] groupIds = buffer.getInt(base + LOGON_INFO_GROUP_IDS) != 0 ? readGroupIds(buffer) : new int[0];
+            skipString(buffer, base + LOGON_INFO_LOGON_SERVER);
+            skipString(buffer, base + LOGON_INFO_LOGON_DOMAIN_NAME);
+            String domainSid = buffer.getInt(base + LOGON_INFO_LOGON_DOMAIN_ID) != 0 ? readSid(buffer) : null;
+
+            List<String> groupSids = new ArrayList<>(groupIds.length);
+            if (domainSid != null) {
+                for (int groupId : groupIds) {
+                    groupSids.add(domainSid + "-" + (groupId & 0xFFFFFFFFL));
+                }
+            }
+
+            if (buffer.getInt(base + LOGON_INFO_EXTRA_SIDS) != 0) {
+                align(buffer);
+                int count = buffer.getInt();
+                int[] pointers = new int[count];
+                for (int i = 0; i < count; i++) {
+                    pointers[i] = buffer.getInt();
+                    buffer.getInt(); // attributes
+                }
+                for (int pointer : pointers) {
+                    if (pointer != 0) {
+                        groupSids.add(readSid(buffer));
+                    }
+                }
+            }
+
+            String resourceDomainSid =
+                buffer.getInt(base + LOGON_INFO_RESOURCE_GROUP_DOMAIN_SID) != 0 ? readSid(buffer) : null;
+            if (buffer.getInt(base + LOGON_INFO_RESOURCE_GROUP_IDS) != 0) {
+                int[] resourceGroupIds = readGroupIds(buffer);
+                if (resourceDomainSid != null) {
+                    for (int groupId : resourceGroupIds) {
+                        groupSids.add(resourceDomainSid + "-" + (groupId & 0xFFFFFFFFL));
+                    }
+                }
+            }
+
+            String userSid = domainSid == null ? null : domainSid + "-" + (userId & 0xFFFFFFFFL);
+            return new LogonInfo(userSid, Collections.unmodifiableList(groupSids));
+        }
+
+        /**
+         * Skip the conformant varying array of the RPC_UNICODE_STRING at the given offset, if it's not null.
+         */
+        private static void skipString(ByteBuffer buffer, int stringOffset) {
+            if (buffer.getInt(stringOffset + 4) == 0) {
+                return;
+            }
+            align(buffer);
+            buffer.getInt(); // maximum count
+            buffer.getInt(); // offset
+            int actualCount = buffer.getInt();
+            buffer.position(buffer.position() + actualCount * 2);
+        }
+
+        /**
+         * Read the relative ids from a conformant array of GROUP_MEMBERSHIP structures.
+         */
+        private static int[] readGroupIds(ByteBuffer buffer) {
+            align(buffer);
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 8) {
+                throw new IndexOutOfBoundsException();
+            }
+            int[] groupIds = new int[count];
+            for (int i = 0; i < count; i++) {
+                groupIds[i] = buffer.getInt();
+                buffer.getInt(); // attributes
+            }
+            return groupIds;
+        }
+
+        /**
+         * Read an RPC_SID in its string form, e.g. S-1-5-21-1004336348-1177238915-682003330-512
+         */
+        private static String readSid(ByteBuffer buffer) {
+            align(buffer);
+            buffer.getInt(); // maximum count
+            int revision = buffer.get() & 0xFF;
+            int subAuthorityCount = buffer.get() & 0xFF;
+            long authority = 0;
+            for (int i = 0; i < 6; i++) {
+                authority = (authority << 8) | (buffer.get() & 0xFF);
+            }
+            StringBuilder sid = new StringBuilder(16 + subAuthorityCount * 11);
+            sid.append("S-").append(revision).append('-').append(authority);
+            for (int i = 0; i < subAuthorityCount; i++) {
+                sid.append('-').append(buffer.getInt() & 0xFFFFFFFFL);
+            }
+            return sid.toString();
+        }
+
+        private static void align(ByteBuffer buffer) {
+            buffer.position((buffer.position() + 3) & ~3);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+import sun.security.jgss.spi.GSSContextSpi;
+
+/**
+ * The batch operations of {@link CustomGSSContextSpiImpl}, which spread the work over the common fork-join pool.
+ * <p/>
+ * The tokens of a batch get consecutive sequence numbers in the order of the messages, regardless of which thread
+ * creates them: the numbers are taken from the context up front, and each task creates its part of the tokens with its
+ * own copy of the context starting at the right number (see {@link Krb5ContextAccess#copy(ExportedContext, int)}).
+ * Tokens are verified with the context itself, since that's where the replay and sequence detection state is, so when
+ * verified in parallel, in-order tokens may be reported as out of order in their {@link MessageProp}.
+ * <p/>
+ * Small batches, and all batches if the context can't be copied, are processed sequentially by the calling thread.
+ * If any message fails, the failure of the first one is thrown.
+ * <p/>
+ * NOTE: a real implementation would hand the whole batch to its native code, which could reserve the sequence numbers
+ * without copying the context.
+ */
+final class BatchProtection {
+
+    // Below this many messages per task, the overhead of forking and copying the context outweighs the parallelism
+    private static final int MIN_CHUNK = 32;
+
+    interface Protector {
+
+        byte[] protect(GSSContextSpi context, MessageSlice message, MessageProp msgProp) throws GSSException;
+    }
+
+    private interface Leaf {
+
+        void run(int from, int to) throws GSSException;
+    }
+
+    private BatchProtection() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Create the tokens of the messages with the protector, each with a copy of {@code msgProp}, and set the privacy
+     * state of the first one in {@code msgProp}.
+     *
+     * @param concurrent where the sequence numbers are taken from instead of the delegate, or null
+     */
+    static List<byte[]> protect(GSSContextSpi delegate, ConcurrentProtection concurrent, List<MessageSlice> messages,
+        MessageProp msgProp, Protector protector) throws GSSException {
+        int count = messages.size();
+        byte[][] tokens = new byte[count][];
+        MessageProp[] props = new MessageProp[count];
+        for (int i = 0; i < count; i++) {
+            props[i] = new MessageProp(msgProp.getQOP(), msgProp.getPrivacy());
+        }
+        if (count == 0) {
+            return Arrays.asList(tokens);
+        }
+
+        int chunk = chunkSize(count);
+        if (chunk >= count || !Krb5ContextAccess.isAvailable()) {
+            for (int i = 0; i < count; i++) {
+                MessageSlice message = messages.get(i);
+                MessageProp prop = props[i];
+                tokens[i] = concurrent == null ? protector.protect(delegate, message, prop)
+                    : concurrent.send(context -> protector.protect(context, message, prop));
+            }
+        } else {
+            ExportedContext state;
+            int first;
+            if (concurrent == null) {
+                state = Krb5ContextAccess.capture(delegate, GSSContext.INDEFINITE_LIFETIME);
+                first = Krb5ContextAccess.reserveSequenceNumbers(delegate, count);
+            } else {
+                state = concurrent.getState();
+                first = concurrent.reserveSequenceNumbers(count);
+            }
+            run(count, chunk, (from, to) -> {
+                GSSContextSpi copy = Krb5ContextAccess.copy(state, first + from);
+                try {
+                    for (int i = from; i < to; i++) {
+                        tokens[i] = protector.protect(copy, messages.get(i), props[i]);
+                    }
+                } finally {
+                    copy.dispose();
+                }
+            });
+        }
+
+        msgProp.setPrivacy(props[0].getPrivacy());
+        return Arrays.asList(tokens);
+    }
+
+    /**
+     * Verify the tokens of the messages with the delegate, recording their sequence numbers in the window if the
+     * context has one.
+     *
+     * @return the properties of each token
+     */
+    static List<MessageProp> verifyMIC(GSSContextSpi delegate, ReplayWindow window, List<MessageSlice> tokens,
+        List<MessageSlice> messages) throws GSSException {
+        int count = tokens.size();
+        if (messages.size() != count) {
+            throw new IllegalArgumentException(count + " tokens for " + messages.size() + " messages");
+        }
+
+        MessageProp[] props = new MessageProp[count];
+        Leaf leaf = (from, to) -> {
+            for (int i = from; i < to; i++) {
+                MessageSlice token = tokens.get(i);
+                MessageSlice message = messages.get(i);
+                props[i] = new MessageProp(0, false);
+                delegate.verifyMIC(token.getBuffer(), token.getOffset(), token.getLength(), message.getBuffer(),
+                    message.getOffset(), message.getLength(), props[i]);
+                if (window != null) {
+                    window.check(token.getBuffer(), token.getOffset(), props[i]);
+                }
+            }
+        };
+
+        int chunk = chunkSize(count);
+        if (chunk >= count) {
+            leaf.run(0, count);
+        } else {
+            run(count, chunk, leaf);
+        }
+        return Arrays.asList(props);
+    }
+
+    private static int chunkSize(int count) {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (parallelism <= 1) {
+            return count;
+        }
+        // A few tasks per thread, so that a slow one doesn't hold up the batch
+        return Math.max(MIN_CHUNK, (count + parallelism * 4 - 1) / (parallelism * 4));
+    }
+
+    private static void run(int count, int chunk, Leaf leaf) throws GSSException {
+        GSSException[] failures = new GSSException[count];
+        ForkJoinPool.commonPool().invoke(new Task(leaf, 0, count, chunk, failures));
+        for (GSSException failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static final class Task extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Leaf leaf;
+
+        private final int from;
+
+        private final int to;
+
+        private final int chunk;
+
+        // Indexed by the first message of the failed task, so that the first failure can be found
+        private final GSSException[] failures;
+
+        Task(Leaf leaf, int from, int to, int chunk, GSSException[] failures) {
+            this.leaf = leaf;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                try {
+                    leaf.run(from, to);
+                } catch (GSSException e) {
+                    failures[from] = e;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Task(leaf, from, middle, chunk, failures), new Task(leaf, middle, to, chunk, failures));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of byte arrays in power of two sizes, for {@link CustomSaslBase}, which wraps and unwraps each frame into a
+ * buffer of its own, instead of new arrays that are as large as the frames: with the large frames it negotiates, these
+ * would be allocated directly in the old generation.
+ * <p/>
+ * Requests for larger buffers than the largest size are served by new arrays, which aren't pooled when released, nor
+ * are arrays that haven't been acquired from a pool. Only a bounded number of arrays are kept of each size, the rest
+ * is left to the garbage collector. The used part of the arrays is cleared when they're released, so that the data
+ * of one user, e.g. decrypted plaintext, can't be read by the next.
+ */
+final class BufferPool {
+
+    private static final int MIN_SHIFT = 10;
+
+    private final List<ArrayBlockingQueue<byte[]>> pools;
+
+    /**
+     * @param maxSize the size of the largest arrays pooled, rounded up to a power of two
+     * @param capacity the number of arrays kept of each size
+     */
+    BufferPool(int maxSize, int capacity) {
+        int classes = Math.max(sizeClass(maxSize) + 1, 1);
+        pools = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++) {
+            pools.add(new ArrayBlockingQueue<>(capacity));
+        }
+    }
+
+    /**
+     * Get a zeroed array of at least the given size.
+     */
+    byte[] acquire(int minSize) {
+        int sizeClass = sizeClass(minSize);
+        if (sizeClass >= pools.size()) {
+            return new byte[minSize];
+        }
+        byte[] buffer = pools.get(sizeClass).poll();
+        return buffer != null ? buffer : new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    /**
+     * Clear the used part of an array and return it to the pool, after which it must no longer be used by the caller.
+     *
+     * @param used the length of the part of the array that may have been written to, from its start
+     */
+    void release(byte[] buffer, int used) {
+        int sizeClass = sizeClass(buffer.length);
+        if (sizeClass < pools.size() && buffer.length == 1 << (sizeClass + MIN_SHIFT)) {
+            Arrays.fill(buffer, 0, Math.min(used, buffer.length), (byte) 0);
+            pools.get(sizeClass).offer(buffer);
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
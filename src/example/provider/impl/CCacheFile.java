@@ -0,0 +1,364 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.krb5.Credentials;
+import sun.security.krb5.EncryptionKey;
+import sun.security.krb5.KrbException;
+import sun.security.krb5.PrincipalName;
+import sun.security.krb5.Realm;
+import sun.security.krb5.internal.HostAddress;
+import sun.security.krb5.internal.HostAddresses;
+import sun.security.krb5.internal.KerberosTime;
+import sun.security.krb5.internal.Ticket;
+import sun.security.krb5.internal.TicketFlags;
+
+/**
+ * Reads and writes files in the MIT credentials cache (FILE: ccache) format, versions 3 and 4, so that they can also
+ * be used with klist and the native libraries.
+ * <p/>
+ * Files are read through a read-only mapping, entries without a ticket (e.g. the configuration entries of MIT
+ * Kerberos) are skipped. Files are written to a temporary file next to the target which is then moved in place
+ * atomically, so readers never see a partial file, and concurrent writers simply replace each other's files.
+ */
+final class CCacheFile {
+
+    static final int VERSION_3 = 0x0503;
+
+    static final int VERSION_4 = 0x0504;
+
+    private static final int ADDRESS_TYPE_INET = 2;
+
+    private static final int ADDRESS_TYPE_INET6 = 24;
+
+    private CCacheFile() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Read the default principal and the credentials in a file, or return empty contents if it doesn't exist.
+     */
+    static Contents read(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return new Contents(null, Collections.emptyList());
+        }
+
+        List<Credentials> result = new ArrayList<>();
+        Header header = readHeader(buffer);
+        while (buffer.hasRemaining()) {
+            Credentials credentials = readCredentials(buffer, header.version);
+            if (credentials != null) {
+                result.add(credentials);
+            }
+        }
+        return new Contents(header.defaultPrincipal, result);
+    }
+
+    /**
+     * Replace the file with one containing the credentials, readable only by the owner where supported.
+     *
+     * @param defaultPrincipal the principal recorded as the default one of the cache
+     */
+    static void write(Path file, PrincipalName defaultPrincipal, Collection<Credentials> credentials)
+        throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeShort(VERSION_4);
+            // No header tags
+            out.writeShort(0);
+            writePrincipal(out, defaultPrincipal);
+            for (Credentials c : credentials) {
+                writeCredentials(out, c);
+            }
+        }
+
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temp,
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system, the temp file is created with the default permissions
+            }
+            Files.write(temp, bytes.toByteArray());
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Read the header at the start of the buffer.
+     */
+    static Header readHeader(ByteBuffer buffer) throws IOException {
+        try {
+            int start = buffer.position();
+            int version = buffer.getShort() & 0xffff;
+            if (version != VERSION_3 && version != VERSION_4) {
+                throw new IOException("Unsupported ccache version " + Integer.toHexString(version));
+            }
+            if (version == VERSION_4) {
+                skip(buffer, buffer.getShort() & 0xffff);
+            }
+            PrincipalName defaultPrincipal = readPrincipal(buffer);
+            return new Header(version, defaultPrincipal, buffer.position() - start);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated ccache header", e);
+        }
+    }
+
+    /**
+     * Read the next entry of the buffer, or return null if it has no ticket.
+     */
+    static Credentials readCredentials(ByteBuffer buffer, int version) throws IOException {
+        try {
+            PrincipalName client = readPrincipal(buffer);
+            PrincipalName server = readPrincipal(buffer);
+            int keyType = buffer.getShort();
+            if (version == VERSION_3) {
+                // The key type is recorded twice
+                buffer.getShort();
+            }
+            byte[] key = readData(buffer);
+            KerberosTime authTime = readTime(buffer);
+            KerberosTime startTime = readTime(buffer);
+            KerberosTime endTime = readTime(buffer);
+            KerberosTime renewTill = readTime(buffer);
+            // is_skey
+            buffer.get();
+            boolean[] flags = toFlags(buffer.getInt());
+            HostAddresses addresses = readAddresses(buffer);
+            // Authorization data, only used by the KDC
+            int authzCount = buffer.getInt();
+            for (int i = 0; i < authzCount; i++) {
+                buffer.getShort();
+                skip(buffer, buffer.getInt());
+            }
+            byte[] ticket = readData(buffer);
+            // Second ticket
+            skip(buffer, buffer.getInt());
+
+            if (ticket.length == 0 || client == null || server == null || endTime == null) {
+                return null;
+            }
+            return new Credentials(new Ticket(ticket), client, null, server, null, new EncryptionKey(keyType, key),
+                new TicketFlags(flags), authTime, startTime, endTime, renewTill, addresses);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated ccache entry", e);
+        } catch (KrbException e) {
+            throw new IOException("Malformed ccache entry", e);
+        }
+    }
+
+    static final class Contents {
+
+        // Null if the cache has none, or doesn't exist
+        final PrincipalName defaultPrincipal;
+
+        final List<Credentials> credentials;
+
+        Contents(PrincipalName defaultPrincipal, List<Credentials> credentials) {
+            this.defaultPrincipal = defaultPrincipal;
+            this.credentials = credentials;
+        }
+    }
+
+    static final class Header {
+
+        final int version;
+
+        // Null if the cache has none
+        final PrincipalName defaultPrincipal;
+
+        // The number of bytes the header takes at the start of the file
+        final int length;
+
+        Header(int version, PrincipalName defaultPrincipal, int length) {
+            this.version = version;
+            this.defaultPrincipal = defaultPrincipal;
+            this.length = length;
+        }
+    }
+
+    private static void writeCredentials(DataOutputStream out, Credentials c) throws IOException {
+        writePrincipal(out, c.getClient());
+        writePrincipal(out, c.getServer());
+        EncryptionKey key = c.getSessionKey();
+        out.writeShort(key.getEType());
+        writeData(out, key.getBytes());
+        writeTime(out, c.getAuthTime() != null ? c.getAuthTime() : c.getStartTime());
+        writeTime(out, c.getStartTime());
+        writeTime(out, c.getEndTime());
+        writeTime(out, c.getRenewTill());
+        out.writeByte(0);
+        out.writeInt(fromFlags(c.getFlags()));
+        InetAddress[] addresses = c.getClientAddresses();
+        if (addresses == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(addresses.length);
+            for (InetAddress address : addresses) {
+                out.writeShort(address instanceof Inet6Address ? ADDRESS_TYPE_INET6 : ADDRESS_TYPE_INET);
+                writeData(out, address.getAddress());
+            }
+        }
+        // No authorization data
+        out.writeInt(0);
+        writeData(out, c.getEncoded());
+        // No second ticket
+        out.writeInt(0);
+    }
+
+    private static PrincipalName readPrincipal(ByteBuffer buffer) throws IOException {
+        int nameType = buffer.getInt();
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String realm = readString(buffer);
+        String[] components = new String[count];
+        for (int i = 0; i < count; i++) {
+            components[i] = readString(buffer);
+        }
+        if (count == 0) {
+            return null;
+        }
+        try {
+            return new PrincipalName(nameType, components, new Realm(realm));
+        } catch (KrbException e) {
+            throw new IOException("Malformed principal in ccache", e);
+        }
+    }
+
+    private static void writePrincipal(DataOutputStream out, PrincipalName name) throws IOException {
+        String[] components = name.getNameStrings();
+        out.writeInt(name.getNameType());
+        out.writeInt(components.length);
+        writeData(out, name.getRealmString().getBytes(StandardCharsets.UTF_8));
+        for (String component : components) {
+            writeData(out, component.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static HostAddresses readAddresses(ByteBuffer buffer) throws IOException, KrbException {
+        int count = buffer.getInt();
+        if (count <= 0) {
+            return null;
+        }
+        if (count > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        HostAddress[] addresses = new HostAddress[count];
+        for (int i = 0; i < count; i++) {
+            int type = buffer.getShort();
+            addresses[i] = new HostAddress(type, readData(buffer));
+        }
+        return new HostAddresses(addresses);
+    }
+
+    private static KerberosTime readTime(ByteBuffer buffer) {
+        long seconds = buffer.getInt() & 0xffffffffL;
+        return seconds == 0 ? null : new KerberosTime(seconds * 1000);
+    }
+
+    private static void writeTime(DataOutputStream out, Date time) throws IOException {
+        out.writeInt(time == null ? 0 : (int) (time.getTime() / 1000));
+    }
+
+    // The flags are stored as the bits of the ASN.1 bit string, starting from the most significant one
+
+    private static boolean[] toFlags(int bits) {
+        boolean[] flags = new boolean[Integer.SIZE];
+        for (int i = 0; i < flags.length; i++) {
+            flags[i] = (bits & 1 << (Integer.SIZE - 1 - i)) != 0;
+        }
+        return flags;
+    }
+
+    private static int fromFlags(boolean[] flags) {
+        int bits = 0;
+        if (flags != null) {
+            for (int i = 0; i < flags.length && i < Integer.SIZE; i++) {
+                bits |= flags[i] ? 1 << (Integer.SIZE - 1 - i) : 0;
+            }
+        }
+        return bits;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        return new String(readData(buffer), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readData(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+
+    private static void writeData(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static void skip(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buffer.position(buffer.position() + length);
+    }
+}
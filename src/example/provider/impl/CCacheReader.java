@@ -0,0 +1,272 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.Configurations;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.AccessController;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.GSSCaller;
+import sun.security.jgss.GSSUtil;
+import sun.security.jgss.spi.GSSCredentialSpi;
+import sun.security.jgss.spi.GSSNameSpi;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5NameElement;
+import sun.security.krb5.Credentials;
+import sun.security.krb5.PrincipalName;
+import sun.security.krb5.internal.ccache.FileCredentialsCache;
+import sun.security.krb5.internal.crypto.EType;
+
+/**
+ * Reads the ticket-granting tickets from the FILE: ccache at {@link Configurations#getTicketCachePath()}, keeping
+ * the parsed entries between the reads, instead of the delegate logging in and parsing the whole file each time an
+ * initiator credential is acquired.
+ * <p/>
+ * The file is only parsed again if its inode, size or modification time has changed. If it's the same file that has
+ * only grown, as when a ticket is added by the Kerberos libraries, only the appended entries are parsed, provided
+ * that the bytes parsed before are unchanged, which is checked with their checksum: a file may also be initialized
+ * again in place and then grow past its previous size. Entries changed in place without changing the size (e.g. ones
+ * removed by MIT Kerberos, which zeroes their times) are detected by the modification time, and cause a full parse.
+ * Where the file system has no inodes (e.g. on Windows) only the size and modification time are compared, and a file
+ * that has grown is parsed in full, since it can't be told from a replaced one.
+ * <p/>
+ * This is only used when enabled by {@link Configurations#isIncrementalCCacheReader()}, and only when the delegate
+ * would read the ccache too: when it may log in (javax.security.auth.useSubjectCredsOnly is false), there are no
+ * tickets in the caller's {@link Subject}, and there's no {@link SecurityManager} to check permissions. So it doesn't
+ * respect a login configuration that's set up to use a keytab instead of the ccache.
+ * <p/>
+ * NOTE: a real implementation would simply use its native library's ccache, this one needs
+ * {@link Krb5CredentialAccess} to create the delegate's elements.
+ */
+final class CCacheReader {
+
+    private static final Logger LOGGER = Logger.getLogger(CCacheReader.class.getCanonicalName());
+
+    private static final String FILE_PREFIX = "FILE:";
+
+    private static final boolean ENABLED = Configurations.isIncrementalCCacheReader();
+
+    private static volatile CCacheReader instance;
+
+    private final Path file;
+
+    // guarded by this
+    private Object fileKey;
+
+    // guarded by this
+    private FileTime lastModified;
+
+    // guarded by this
+    private long size = -1;
+
+    // guarded by this, the CRC-32 of the bytes parsed, to check that the file has only been appended to
+    private long parsedChecksum;
+
+    // guarded by this
+    private CCacheFile.Header parsedHeader;
+
+    // guarded by this, the offset of the first entry that hasn't been parsed yet
+    private long parsed;
+
+    // guarded by this, in the order of the file
+    private final List<Credentials> entries = new ArrayList<>();
+
+    private CCacheReader(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the initiator credential element of the given principal (or the default principal of the ccache if null)
+     * from the ccache, or return null if the delegate should acquire it, see the class description.
+     */
+    static GSSCredentialSpi acquireInitiatorCredential(GSSCaller caller, GSSNameSpi name) throws GSSException {
+        if (!ENABLED || !Krb5CredentialAccess.isAvailable() || System.getSecurityManager() != null
+            || GSSUtil.useSubjectCredsOnly(caller == null ? GSSCaller.CALLER_UNKNOWN : caller)
+            || (name != null && !(name instanceof Krb5NameElement))) {
+            return null;
+        }
+
+        Subject subject = Subject.getSubject(AccessController.getContext());
+        if (subject != null && !subject.getPrivateCredentials(KerberosTicket.class).isEmpty()) {
+            return null;
+        }
+
+        CCacheReader reader = getInstance();
+        if (reader == null) {
+            return null;
+        }
+
+        Credentials tgt;
+        try {
+            tgt = reader.getInitialCredentials(name == null ? null : ((Krb5NameElement) name).getKrb5PrincipalName());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to read " + reader.file + ", falling back to the delegate");
+            return null;
+        }
+        return tgt == null ? null : Krb5CredentialAccess.fromCredentials(tgt);
+    }
+
+    private static CCacheReader getInstance() {
+        CCacheReader reader = instance;
+        if (reader == null) {
+            String path = Configurations.getTicketCachePath();
+            if (path == null) {
+                path = FileCredentialsCache.getDefaultCacheName();
+            }
+            if (path == null) {
+                return null;
+            }
+            if (path.startsWith(FILE_PREFIX)) {
+                path = path.substring(FILE_PREFIX.length());
+            } else if (path.matches("[A-Za-z]+:.*") && !Configurations.isWindows()) {
+                // Other types of caches, e.g. KEYRING: or KCM:
+                return null;
+            }
+            reader = new CCacheReader(Paths.get(path));
+            instance = reader;
+        }
+        return reader;
+    }
+
+    /**
+     * Get the newest valid ticket-granting ticket of the principal for its own realm.
+     *
+     * @param client the principal, or null for the default principal of the ccache
+     */
+    synchronized Credentials getInitialCredentials(PrincipalName client) throws IOException {
+        refresh();
+        if (parsedHeader == null) {
+            return null;
+        }
+
+        if (client == null) {
+            client = parsedHeader.defaultPrincipal;
+            if (client == null) {
+                return null;
+            }
+        }
+
+        String tgs = "krbtgt/" + client.getRealmString() + "@" + client.getRealmString();
+        long now = System.currentTimeMillis();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Credentials c = entries.get(i);
+            if (c.getClient().equals(client) && c.getServer().getName().equals(tgs)
+                && c.getEndTime().getTime() > now && EType.isSupported(c.getSessionKey().getEType())) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    // guarded by this
+    private void refresh() throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            reset();
+            return;
+        }
+
+        Object newFileKey = attributes.fileKey();
+        long newSize = attributes.size();
+        FileTime newLastModified = attributes.lastModifiedTime();
+        boolean sameFile = parsedHeader != null && newFileKey != null && newFileKey.equals(fileKey);
+        boolean unknownFile = parsedHeader != null && newFileKey == null && fileKey == null;
+        if ((sameFile || unknownFile) && newSize == size && newLastModified.equals(lastModified)) {
+            return;
+        }
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            reset();
+            return;
+        }
+
+        // A ccache initialized again in place keeps its inode, and its header if it has the same default principal
+        if (!sameFile || buffer.limit() <= size || checksum(buffer, parsed) != parsedChecksum) {
+            reset();
+            parsedHeader = CCacheFile.readHeader(buffer);
+            parsed = buffer.position();
+        }
+
+        // Only parse the complete entries, the last one may be in the middle of being written
+        buffer.position((int) parsed);
+        try {
+            while (buffer.hasRemaining()) {
+                Credentials c = CCacheFile.readCredentials(buffer, parsedHeader.version);
+                if (c != null) {
+                    entries.add(c);
+                }
+                parsed = buffer.position();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, e, () -> "Stopped reading " + file + " at an incomplete entry");
+        }
+
+        fileKey = newFileKey;
+        size = buffer.limit();
+        lastModified = newLastModified;
+        parsedChecksum = checksum(buffer, parsed);
+    }
+
+    private static long checksum(ByteBuffer buffer, long length) {
+        CRC32 crc = new CRC32();
+        crc.update((ByteBuffer) buffer.duplicate().position(0).limit((int) length));
+        return crc.getValue();
+    }
+
+    // guarded by this
+    private void reset() {
+        fileKey = null;
+        lastModified = null;
+        size = -1;
+        parsedChecksum = 0;
+        parsedHeader = null;
+        parsed = 0;
+        entries.clear();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.Configurations;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.spi.GSSContextSpi;
+
+/**
+ * Lets many threads send tokens (wrap and getMIC) on the same established context at once, when enabled by
+ * {@link Configurations#isConcurrentProtection()}.
+ * <p/>
+ * The sequence numbers are handed out by an atomic counter instead of the delegate's lock, and each thread creates its
+ * tokens with its own copy of the context (see {@link Krb5ContextAccess#copy(ExportedContext, int)}), set to the
+ * number it got, so the threads share no cipher state. The delegate itself is no longer used for sending, so its own
+ * sequence number is only brought up to date when the context is exported. Receiving tokens still goes through the
+ * delegate, or {@link ReplayWindow} if that keeps the replay and sequence detection state instead.
+ * <p/>
+ * The copies are disposed with the context, and the threads only keep an emptied holder of their copy afterwards, so
+ * that long-lived threads don't accumulate the session keys of the contexts they've sent tokens with.
+ * <p/>
+ * NOTE: a real implementation would do this in its native code, with an atomic counter in the native context.
+ */
+final class ConcurrentProtection {
+
+    interface Operation<T> {
+
+        T apply(GSSContextSpi context) throws GSSException;
+    }
+
+    private final ExportedContext state;
+
+    private final AtomicInteger nextSeqNumber;
+
+    private final ThreadLocal<AtomicReference<GSSContextSpi>> copies = new ThreadLocal<>();
+
+    // The holders of all the threads' copies, to dispose them with the context
+    private final Queue<AtomicReference<GSSContextSpi>> allCopies = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean disposed;
+
+    /**
+     * @param delegate an established context, which isn't used for sending afterwards
+     */
+    ConcurrentProtection(GSSContextSpi delegate) throws GSSException {
+        state = Krb5ContextAccess.capture(delegate, GSSContext.INDEFINITE_LIFETIME);
+        nextSeqNumber = new AtomicInteger(state.mySeqNumber);
+    }
+
+    /**
+     * Whether the contexts can be used by many threads at once.
+     */
+    static boolean isEnabled() {
+        return Configurations.isConcurrentProtection() && Krb5ContextAccess.isAvailable();
+    }
+
+    /**
+     * Create a token with the calling thread's copy of the context, with the next sequence number.
+     */
+    <T> T send(Operation<T> operation) throws GSSException {
+        GSSContextSpi copy = getCopy();
+        Krb5ContextAccess.setMySequenceNumber(copy, nextSeqNumber.getAndIncrement());
+        return operation.apply(copy);
+    }
+
+    /**
+     * Take the next sequence numbers for tokens created by other copies of the context, see {@link #getState()}.
+     *
+     * @return the first of the {@code count} sequence numbers taken
+     */
+    int reserveSequenceNumbers(int count) throws GSSException {
+        checkNotDisposed();
+        return nextSeqNumber.getAndAdd(count);
+    }
+
+    /**
+     * Get the next sequence number to send.
+     */
+    int getMySequenceNumber() {
+        return nextSeqNumber.get();
+    }
+
+    ExportedContext getState() {
+        return state;
+    }
+
+    /**
+     * Dispose the copies of the context, after which no more tokens can be sent.
+     */
+    void dispose() throws GSSException {
+        disposed = true;
+        GSSException failure = null;
+        AtomicReference<GSSContextSpi> holder;
+        while ((holder = allCopies.poll()) != null) {
+            GSSContextSpi copy = holder.getAndSet(null);
+            if (copy != null) {
+                try {
+                    copy.dispose();
+                } catch (GSSException e) {
+                    failure = failure == null ? e : failure;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private GSSContextSpi getCopy() throws GSSException {
+        checkNotDisposed();
+        AtomicReference<GSSContextSpi> holder = copies.get();
+        GSSContextSpi copy = holder == null ? null : holder.get();
+        if (copy == null) {
+            copy = Krb5ContextAccess.copy(state, 0);
+            holder = new AtomicReference<>(copy);
+            copies.set(holder);
+            allCopies.add(holder);
+            if (disposed) {
+                // Disposed while creating the copy, which dispose() may have missed
+                dispose();
+                checkNotDisposed();
+            }
+        }
+        return copy;
+    }
+
+    private void checkNotDisposed() throws GSSException {
+        if (disposed) {
+            throw new GSSException(GSSException.NO_CONTEXT, -1, "Context disposed");
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.Configurations;
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.DestroyFailedException;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.spi.GSSCredentialSpi;
+
+/**
+ * A store of ticket-granting credentials of many principals, e.g. the ones forwarded to a gateway acting on behalf
+ * of its users, bounded by the memory their tickets take.
+ * <p/>
+ * The tickets are kept in direct buffers, outside the heap, and credential elements are only created from them when
+ * requested with {@link #get(String)}. The store keeps track of the elements it has created, and disposes of them
+ * when their entry is removed, i.e. explicitly, when the ticket expires, or when the least recently used entries are
+ * evicted to stay within the memory budget. So the elements mustn't be used after that, and should be disposed of by
+ * the caller as soon as they're not needed.
+ * <p/>
+ * NOTE: a real implementation would keep the material in its native memory, this one needs
+ * {@link Krb5CredentialAccess} to recreate the delegate's elements.
+ */
+public final class CredentialStore implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(CredentialStore.class.getCanonicalName());
+
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final long NO_TIME = -1;
+
+    private static volatile CredentialStore defaultInstance;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final long budget;
+
+    private final AtomicLong used = new AtomicLong();
+
+    private final Object evictionLock = new Object();
+
+    /**
+     * @param budget the maximum number of bytes the ticket material may take
+     */
+    public CredentialStore(long budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Invalid budget " + budget);
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * Get the store shared by the whole process, with the budget of {@link Configurations#getCredentialStoreBudget()}.
+     */
+    public static CredentialStore getDefault() {
+        CredentialStore store = defaultInstance;
+        if (store == null) {
+            synchronized (CredentialStore.class) {
+                store = defaultInstance;
+                if (store == null) {
+                    store = new CredentialStore(Configurations.getCredentialStoreBudget());
+                    defaultInstance = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Store a copy of the ticket-granting ticket of a credential, e.g. a forwarded one from
+     * {@link CustomGSSContextSpiImpl#getDelegCred()}, replacing any previous one of the same principal. The caller
+     * still owns the credential passed in.
+     *
+     * @return the principal the ticket is stored under
+     */
+    public String put(GSSCredentialSpi credential) throws GSSException {
+        GSSCredentialSpi element = CustomGSSCredentialSpiImpl.unwrap(credential);
+        if (!(element instanceof KerberosTicket)) {
+            throw new GSSException(GSSException.NO_CRED, -1, "Only ticket-granting credentials can be stored");
+        }
+        if (!Krb5CredentialAccess.isAvailable()) {
+            throw new GSSException(GSSException.UNAVAILABLE, -1,
+                "Credential elements can't be created from tickets, see " + Krb5CredentialAccess.class.getName());
+        }
+
+        KerberosTicket ticket = (KerberosTicket) element;
+        long expiresAt = ticket.getEndTime().getTime() - EXPIRY_MARGIN_MILLIS;
+        Entry entry = new Entry(encode(ticket), expiresAt);
+        String principal = ticket.getClient().getName();
+
+        used.addAndGet(entry.size());
+        Entry previous = entries.put(principal, entry);
+        if (previous != null) {
+            release(previous);
+        }
+
+        if (used.get() > budget) {
+            evict();
+        }
+        return principal;
+    }
+
+    /**
+     * Create a credential element of the principal, or return null if there's no valid ticket for it. The element is
+     * disposed of when the entry is removed, see the class description.
+     */
+    public CustomGSSCredentialSpiImpl get(String principal) throws GSSException {
+        Entry entry = entries.get(principal);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            remove(principal, entry);
+            return null;
+        }
+
+        entry.lastAccess = System.nanoTime();
+        KerberosTicket ticket = entry.decode();
+        if (ticket == null) {
+            // Released concurrently
+            return null;
+        }
+
+        StoredCredential stored;
+        try {
+            stored = new StoredCredential(entry, Krb5CredentialAccess.fromTicket(ticket));
+        } finally {
+            destroy(ticket);
+        }
+
+        entry.elements.add(stored);
+        if (entry.released) {
+            // Released concurrently, after which new elements aren't disposed by the store
+            stored.dispose();
+            return null;
+        }
+        return stored;
+    }
+
+    /**
+     * Remove the ticket of the principal, disposing of the elements created from it.
+     */
+    public void remove(String principal) {
+        Entry entry = entries.remove(principal);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    /**
+     * The number of principals with a ticket in the store.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * The number of bytes the ticket material takes.
+     */
+    public long getMemoryUsage() {
+        return used.get();
+    }
+
+    /**
+     * Remove all tickets, disposing of all elements created from them.
+     */
+    @Override
+    public void close() {
+        for (String principal : entries.keySet()) {
+            remove(principal);
+        }
+    }
+
+    private void remove(String principal, Entry entry) {
+        if (entries.remove(principal, entry)) {
+            release(entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        if (entry.release()) {
+            used.addAndGet(-entry.size());
+        }
+    }
+
+    private void evict() {
+        synchronized (evictionLock) {
+            if (used.get() <= budget) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (e.getValue().expiresAt <= now) {
+                    remove(e.getKey(), e.getValue());
+                }
+            }
+
+            // Free 10% of the budget, so that the next insertions don't have to evict again
+            long target = budget - budget / 10;
+            if (used.get() <= target) {
+                return;
+            }
+
+            List<Map.Entry<String, Entry>> candidates = new ArrayList<>(entries.entrySet());
+            candidates.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+            for (Map.Entry<String, Entry> e : candidates) {
+                if (used.get() <= target) {
+                    break;
+                }
+                remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * The layout of the ticket material:
+     * <pre>
+     * long     auth, start, end and renew till times in milliseconds since the epoch, -1 if unknown
+     * int      session key type
+     * int      ticket flags as bits from the least significant
+     * short    client name length, followed by the UTF-8 principal name
+     * short    server name length, followed by the UTF-8 principal name
+     * short    session key length, followed by the key bytes
+     * int      ticket length, followed by the ASN.1 encoded ticket
+     * short    number of client addresses (-1 if unknown), each a byte length and the address bytes
+     * </pre>
+     */
+    private static ByteBuffer encode(KerberosTicket ticket) {
+        byte[] client = ticket.getClient().getName().getBytes(StandardCharsets.UTF_8);
+        byte[] server = ticket.getServer().getName().getBytes(StandardCharsets.UTF_8);
+        byte[] sessionKey = ticket.getSessionKey().getEncoded();
+        byte[] encoded = ticket.getEncoded();
+        InetAddress[] addresses = ticket.getClientAddresses();
+
+        int size = 4 * 8 + 4 + 4 + 2 + client.length + 2 + server.length + 2 + sessionKey.length + 4 + encoded.length
+            + 2;
+        if (addresses != null) {
+            for (InetAddress address : addresses) {
+                size += 1 + address.getAddress().length;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.putLong(timeOf(ticket.getAuthTime()));
+        buffer.putLong(timeOf(ticket.getStartTime()));
+        buffer.putLong(timeOf(ticket.getEndTime()));
+        buffer.putLong(timeOf(ticket.getRenewTill()));
+        buffer.putInt(ticket.getSessionKeyType());
+        buffer.putInt(flagsOf(ticket.getFlags()));
+        buffer.putShort((short) client.length).put(client);
+        buffer.putShort((short) server.length).put(server);
+        buffer.putShort((short) sessionKey.length).put(sessionKey);
+        buffer.putInt(encoded.length).put(encoded);
+        if (addresses == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) addresses.length);
+            for (InetAddress address : addresses) {
+                byte[] bytes = address.getAddress();
+                buffer.put((byte) bytes.length).put(bytes);
+            }
+        }
+        Arrays.fill(sessionKey, (byte) 0);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static KerberosTicket decode(ByteBuffer buffer) throws GSSException {
+        byte[] sessionKey = null;
+        try {
+            Date authTime = dateOf(buffer.getLong());
+            Date startTime = dateOf(buffer.getLong());
+            Date endTime = dateOf(buffer.getLong());
+            Date renewTill = dateOf(buffer.getLong());
+            int keyType = buffer.getInt();
+            int flags = buffer.getInt();
+            String client = getString(buffer);
+            String server = getString(buffer);
+            sessionKey = getBytes(buffer, buffer.getShort());
+            byte[] encoded = getBytes(buffer, buffer.getInt());
+            InetAddress[] addresses = null;
+            int addressCount = buffer.getShort();
+            if (addressCount >= 0) {
+                addresses = new InetAddress[addressCount];
+                for (int i = 0; i < addressCount; i++) {
+                    addresses[i] = InetAddress.getByAddress(getBytes(buffer, buffer.get()));
+                }
+            }
+            return new KerberosTicket(encoded, new KerberosPrincipal(client),
+                new KerberosPrincipal(server, KerberosPrincipal.KRB_NT_SRV_INST), sessionKey, keyType,
+                flagsOf(flags), authTime, startTime, endTime, renewTill, addresses);
+        } catch (BufferUnderflowException | IllegalArgumentException | UnknownHostException e) {
+            throw (GSSException) new GSSException(GSSException.DEFECTIVE_CREDENTIAL, -1, "Corrupt ticket material")
+                .initCause(e);
+        } finally {
+            if (sessionKey != null) {
+                Arrays.fill(sessionKey, (byte) 0);
+            }
+        }
+    }
+
+    private static long timeOf(Date date) {
+        return date == null ? NO_TIME : date.getTime();
+    }
+
+    private static Date dateOf(long time) {
+        return time == NO_TIME ? null : new Date(time);
+    }
+
+    private static int flagsOf(boolean[] flags) {
+        int bits = 0;
+        if (flags != null) {
+            for (int i = 0; i < flags.length && i < Integer.SIZE; i++) {
+                bits |= flags[i] ? 1 << i : 0;
+            }
+        }
+        return bits;
+    }
+
+    private static boolean[] flagsOf(int bits) {
+        // KerberosTicket expects at least the 32 flags of the protocol
+        boolean[] flags = new boolean[Integer.SIZE];
+        for (int i = 0; i < flags.length; i++) {
+            flags[i] = (bits & 1 << i) != 0;
+        }
+        return flags;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        return new String(getBytes(buffer, buffer.getShort()), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void destroy(KerberosTicket ticket) {
+        try {
+            ticket.destroy();
+        } catch (DestroyFailedException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to destroy ticket copy");
+        }
+    }
+
+    private static final class Entry {
+
+        // Guarded by itself, so that it isn't wiped while being decoded
+        private final ByteBuffer material;
+
+        private final int size;
+
+        final long expiresAt;
+
+        // Only used for ordering the entries on eviction, so the races on it don't matter
+        volatile long lastAccess = System.nanoTime();
+
+        final Set<StoredCredential> elements = ConcurrentHashMap.newKeySet();
+
+        volatile boolean released;
+
+        Entry(ByteBuffer material, long expiresAt) {
+            this.material = material;
+            this.size = material.capacity();
+            this.expiresAt = expiresAt;
+        }
+
+        int size() {
+            return size;
+        }
+
+        KerberosTicket decode() throws GSSException {
+            synchronized (material) {
+                return released ? null : CredentialStore.decode(material.duplicate());
+            }
+        }
+
+        /**
+         * Wipe the material and dispose of the elements created from it, returns false if already released.
+         */
+        boolean release() {
+            synchronized (material) {
+                if (released) {
+                    return false;
+                }
+                released = true;
+                material.clear();
+                while (material.hasRemaining()) {
+                    material.put((byte) 0);
+                }
+            }
+
+            for (StoredCredential element : elements) {
+                element.dispose();
+            }
+            return true;
+        }
+    }
+
+    private static final class StoredCredential extends CustomGSSCredentialSpiImpl {
+
+        private final Entry entry;
+
+        StoredCredential(Entry entry, GSSCredentialSpi delegate) {
+            super(delegate, false);
+            this.entry = entry;
+        }
+
+        @Override
+        public void dispose() {
+            entry.elements.remove(this);
+            try {
+                super.dispose();
+            } catch (GSSException e) {
+                LOGGER.log(Level.FINE, e, () -> "Failed to dispose of stored credential element");
+            }
+        }
+    }
+}
@@ -25,13 +25,17 @@
  */
 package example.provider.impl;
 
+import com.sun.security.jgss.AuthorizationDataEntry;
 import com.sun.security.jgss.InquireType;
 import example.provider.Configurations;
 import example.provider.CustomKerberosJgssProvider;
+import example.provider.ReplayStatistics;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.Provider;
+import java.util.List;
 import org.ietf.jgss.ChannelBinding;
+import org.ietf.jgss.GSSCredential;
 import org.ietf.jgss.GSSException;
 import org.ietf.jgss.MessageProp;
 import org.ietf.jgss.Oid;
@@ -39,10 +43,7 @@ import sun.security.jgss.spi.GSSContextSpi;
 import sun.security.jgss.spi.GSSCredentialSpi;
 import sun.security.jgss.spi.GSSNameSpi;
 
-// implementation classes - a real implementation wouldn't use these
-import sun.security.jgss.krb5.Krb5MechFactory;
-
-class CustomGSSContextSpiImpl implements GSSContextSpi {
+public class CustomGSSContextSpiImpl implements GSSContextSpi {
 
     static {
         // A real native provider would here inject the real ticket cache path from Configurations.getTicketCachePath()
@@ -51,19 +52,86 @@ class CustomGSSContextSpiImpl implements GSSContextSpi {
         Configurations.setTicketCachePathForJaasLogin(Configurations.getTicketCachePath());
     }
 
-    // Instead of this, a real implementation would be in-place, or delegate to native code
-    private final GSSContextSpi delegate;
+    private static final boolean RAW_TOKENS = CustomKerberosJgssProvider.isRawTokenMode();
+
+    private static final boolean CONCURRENT_PROTECTION = ConcurrentProtection.isEnabled();
+
+    private static final boolean REPLAY_WINDOW = ReplayWindow.isEnabled();
+
+    // Instead of this, a real implementation would be in-place, or delegate to native code. Replaced by a pooled one on
+    // the first initSecContext call if there's one ready, see InitiatorContextPool.
+    private GSSContextSpi delegate;
+
+    // The first initSecContext call has no input token, so there's no header to read in raw token mode, and it's the
+    // one that needs the service ticket
+    private boolean initSecContextCalled;
+
+    // Only set for initiators using a proxy credential, see ProxyTicketCache
+    private final ProxyTicketCache.Key proxyTicketKey;
+
+    // Only set for initiators using a regular credential while service tickets are persisted, see ServiceTicketCache
+    private final ServiceTicketCache.Key serviceTicketKey;
+
+    // Only set for initiators using the default credential for a hot target, see InitiatorContextPool
+    private InitiatorContextPool.Target poolTarget;
+
+    // Contexts with channel bindings can't be taken from InitiatorContextPool
+    private boolean channelBound;
 
-    CustomGSSContextSpiImpl(GSSNameSpi peer, GSSCredentialSpi myInitiatorCred, int lifetime) throws GSSException {
-        delegate = new Krb5MechFactory(null).getMechanismContext(peer, myInitiatorCred, lifetime);
+    // The end time recorded in the exported context for imported contexts, since the delegate can't tell its lifetime
+    private final long importedEndTime;
+
+    // Created on first use, so that accepting a context that doesn't need the authorization data costs nothing extra
+    private AuthorizationDataView authorizationData;
+
+    // The wrappers of the delegate's names, see wrapName
+    private CustomGSSNameSpiImpl srcName;
+
+    private CustomGSSNameSpiImpl targName;
+
+    // Created on the first token sent after the context is established, if enabled
+    private volatile ConcurrentProtection concurrentProtection;
+
+    // Taken over from the delegate on the first token received after the context is established, if enabled and needed
+    private volatile ReplayWindow replayWindow;
+
+    private volatile boolean replayWindowChecked;
+
+    CustomGSSContextSpiImpl(CustomKrb5MechFactory factory, GSSNameSpi peer, GSSCredentialSpi myInitiatorCred,
+        int lifetime) throws GSSException {
+        GSSNameSpi peerElement = CustomGSSNameSpiImpl.unwrap(peer);
+        GSSCredentialSpi credElement = CustomGSSCredentialSpiImpl.unwrap(myInitiatorCred);
+        boolean defaultCred = credElement == null;
+        if (defaultCred) {
+            // Same as what the delegate would do, but this way the tickets it needs can be looked up in advance
+            credElement = CustomGSSCredentialSpiImpl.acquireElement(factory, null, lifetime, 0,
+                GSSCredential.INITIATE_ONLY);
+        }
+        KdcLocator.prepare(peerElement, credElement);
+        EncTypeCalibrator.prepare();
+        delegate = factory.getDelegate().getMechanismContext(peerElement, credElement, lifetime);
+        importedEndTime = ExportedContext.INDEFINITE_END_TIME;
+        proxyTicketKey = ProxyTicketCache.keyFor(peerElement, credElement);
+        serviceTicketKey = ServiceTicketCache.keyFor(peerElement, credElement);
+        poolTarget = proxyTicketKey == null
+            ? InitiatorContextPool.targetFor(peerElement, credElement, defaultCred)
+            : null;
     }
 
-    CustomGSSContextSpiImpl(GSSCredentialSpi myAcceptorCred) throws GSSException {
-        delegate = new Krb5MechFactory(null).getMechanismContext(myAcceptorCred);
+    CustomGSSContextSpiImpl(CustomKrb5MechFactory factory, GSSCredentialSpi myAcceptorCred) throws GSSException {
+        delegate = factory.getDelegate().getMechanismContext(CustomGSSCredentialSpiImpl.unwrap(myAcceptorCred));
+        importedEndTime = ExportedContext.INDEFINITE_END_TIME;
+        proxyTicketKey = null;
+        serviceTicketKey = null;
     }
 
-    CustomGSSContextSpiImpl(byte[] exportedContext) throws GSSException {
-        delegate = new Krb5MechFactory(null).getMechanismContext(exportedContext);
+    CustomGSSContextSpiImpl(CustomKrb5MechFactory factory, byte[] exportedContext) throws GSSException {
+        // NOTE: a real implementation would pass the token to the native code, here we recreate the delegate's state
+        ExportedContext exported = ExportedContext.decode(exportedContext);
+        delegate = Krb5ContextAccess.restore(factory.getCaller(), exported);
+        importedEndTime = exported.endTime;
+        proxyTicketKey = null;
+        serviceTicketKey = null;
     }
 
     @Override
@@ -118,6 +186,7 @@ class CustomGSSContextSpiImpl implements GSSContextSpi {
 
     @Override
     public void setChannelBinding(ChannelBinding channelBinding) throws GSSException {
+        channelBound = channelBinding != null;
         delegate.setChannelBinding(channelBinding);
     }
 
@@ -133,12 +202,14 @@ class CustomGSSContextSpiImpl implements GSSContextSpi {
 
     @Override
     public boolean getReplayDetState() {
-        return delegate.getReplayDetState();
+        ReplayWindow window = replayWindow;
+        return window == null ? delegate.getReplayDetState() : window.getReplayDetState();
     }
 
     @Override
     public boolean getSequenceDetState() {
-        return delegate.getSequenceDetState();
+        ReplayWindow window = replayWindow;
+        return window == null ? delegate.getSequenceDetState() : window.getSequenceDetState();
     }
 
     @Override
@@ -153,7 +224,7 @@ class CustomGSSContextSpiImpl implements GSSContextSpi {
 
     @Override
     public boolean isTransferable() throws GSSException {
-        return delegate.isTransferable();
+        return Krb5ContextAccess.isAvailable();
     }
 
     @Override
@@ -178,7 +249,10 @@ class CustomGSSContextSpiImpl implements GSSContextSpi {
 
     @Override
     public int getLifetime() {
-        return delegate.getLifetime();
+        if (importedEndTime == ExportedContext.INDEFINITE_END_TIME) {
+            return delegate.getLifetime();
+        }
+        return (int) Math.max(0L, (importedEndTime - System.currentTimeMillis()) / 1000L);
     }
 
     @Override
@@ -188,12 +262,28 @@ class CustomGSSContextSpiImpl implements GSSContextSpi {
 
     @Override
     public GSSNameSpi getSrcName() throws GSSException {
-        return delegate.getSrcName();
+        CustomGSSNameSpiImpl name = wrapName(srcName, delegate.getSrcName());
+        srcName = name;
+        return name;
     }
 
     @Override
     public GSSNameSpi getTargName() throws GSSException {
-        return delegate.getTargName();
+        CustomGSSNameSpiImpl name = wrapName(targName, delegate.getTargName());
+        targName = name;
+        return name;
+    }
+
+    /**
+     * Reuse the wrapper of a name of the delegate as long as it returns the same name, so that its canonical form
+     * is only computed once, see {@link CustomGSSNameSpiImpl#getPrincipalKey()}.
+     */
+    private static CustomGSSNameSpiImpl wrapName(CustomGSSNameSpiImpl wrapper, GSSNameSpi name) {
+        if (name == null) {
+            return null;
+        }
+        return wrapper != null && CustomGSSNameSpiImpl.unwrap(wrapper) == name ? wrapper
+            : new CustomGSSNameSpiImpl(name);
     }
 
     @Override
@@ -203,7 +293,8 @@ class CustomGSSContextSpiImpl implements GSSContextSpi {
 
     @Override
     public GSSCredentialSpi getDelegCred() throws GSSException {
-        return delegate.getDelegCred();
+        // Wrapped so that contexts initiated with it are created by this provider, see ProxyTicketCache
+        return CustomGSSCredentialSpiImpl.wrap(delegate.getDelegCred());
     }
 
     @Override
@@ -211,15 +302,76 @@ class CustomGSSContextSpiImpl implements GSSContextSpi {
         // NOTE: in a real implementation, we'd read a byte array using IOUtils.readToken(InputStream, int), then
         // hand it over to a native method, but in this case we just call the delegate. Also, the provider would
         // have to be called "SunNativeGSS", otherwise the returned token is also modified by the calling code.
+        if (!RAW_TOKENS) {
+            return initDelegate(is, mechTokenSize);
+        }
+
+        // In raw token mode the calling code leaves the GSS header to us, but the delegate expects it to be stripped
+        // off, so read it here, and add it to the returned token - each once, instead of IOUtils.readToken adding it
+        // back only for the native code to parse it again.
+        return initFramed(is, mechTokenSize);
+    }
+
+    /**
+     * Same as {@link #initSecContext(InputStream, int)} in raw token mode, regardless of the mode: the tokens read
+     * and returned are complete, with their GSS headers. For {@link CustomSpNegoContextSpiImpl}, which carries them
+     * in its own tokens.
+     */
+    byte[] initFramed(InputStream is, int mechTokenSize) throws GSSException {
+        int tokenSize = initSecContextCalled ? IOUtils.readTokenHeader(is, mechTokenSize) : mechTokenSize;
+        return IOUtils.frameToken(initDelegate(is, tokenSize));
+    }
+
+    private byte[] initDelegate(InputStream is, int mechTokenSize) throws GSSException {
+        boolean first = !initSecContextCalled;
+        initSecContextCalled = true;
+        if (first && poolTarget != null && !channelBound) {
+            InitiatorContextPool.Entry pooled =
+                InitiatorContextPool.take(poolTarget, InitiatorContextPool.flagsOf(delegate));
+            if (pooled != null) {
+                delegate.dispose();
+                delegate = pooled.delegate;
+                return pooled.token;
+            }
+        }
+        if (first && proxyTicketKey != null) {
+            return ProxyTicketCache.initSecContext(proxyTicketKey, delegate, is, mechTokenSize);
+        }
+        if (first && serviceTicketKey != null) {
+            return ServiceTicketCache.initSecContext(serviceTicketKey, delegate, is, mechTokenSize);
+        }
         return delegate.initSecContext(is, mechTokenSize);
     }
 
+    /**
+     * Create the first token of this new initiator context with the given flags requested, for
+     * {@link InitiatorContextPool}, which takes over its delegate.
+     */
+    InitiatorContextPool.Entry pregenerate(int flags) throws GSSException {
+        // Going into the pool, rather than taking from it
+        poolTarget = null;
+        InitiatorContextPool.requestFlags(delegate, flags);
+        return new InitiatorContextPool.Entry(delegate, initDelegate(null, 0));
+    }
+
     @Override
     public byte[] acceptSecContext(InputStream is, int mechTokenSize) throws GSSException {
         // NOTE: in a real implementation, we'd read a byte array using IOUtils.readToken(InputStream, int), then
         // hand it over to a native method, but in this case we just call the delegate. Also, the provider would
         // have to be called "SunNativeGSS", otherwise the returned token is also modified by the calling code.
-        return delegate.acceptSecContext(is, mechTokenSize);
+        if (!RAW_TOKENS) {
+            return delegate.acceptSecContext(is, mechTokenSize);
+        }
+
+        // See initSecContext - the calling code always strips off the header of the first token though
+        return acceptFramed(is, mechTokenSize);
+    }
+
+    /**
+     * The acceptor counterpart of {@link #initFramed(InputStream, int)}.
+     */
+    byte[] acceptFramed(InputStream is, int mechTokenSize) throws GSSException {
+        return IOUtils.frameToken(delegate.acceptSecContext(is, IOUtils.readTokenHeader(is, mechTokenSize)));
     }
 
     @Override
@@ -230,74 +382,288 @@ class CustomGSSContextSpiImpl implements GSSContextSpi {
     @Override
     public void wrap(InputStream is, OutputStream os, MessageProp msgProp) throws GSSException {
         // NOTE: this may be left unimplemented in a real implementation
-        delegate.wrap(is, os, msgProp);
+        ConcurrentProtection concurrent = getConcurrentProtection();
+        if (concurrent == null) {
+            delegate.wrap(is, os, msgProp);
+        } else {
+            concurrent.send(context -> {
+                context.wrap(is, os, msgProp);
+                return null;
+            });
+        }
     }
 
     @Override
     public byte[] wrap(byte[] inBuf, int offset, int len, MessageProp msgProp) throws GSSException {
-        return delegate.wrap(inBuf, offset, len, msgProp);
+        ConcurrentProtection concurrent = getConcurrentProtection();
+        return concurrent == null ? delegate.wrap(inBuf, offset, len, msgProp)
+            : concurrent.send(context -> context.wrap(inBuf, offset, len, msgProp));
+    }
+
+    /**
+     * Wrap a message into the given buffer instead of a new array, so that the caller can reuse its buffers. This
+     * isn't part of {@link GSSContextSpi}, since {@link org.ietf.jgss.GSSContext} has no such method.
+     *
+     * @param outBuf the buffer to write the token to, which must have room for it: the token isn't longer than
+     *     {@code maxTokSize} if {@code len} is at most {@link #getWrapSizeLimit(int, boolean, int)}
+     * @return the length of the token
+     */
+    public int wrap(byte[] inBuf, int inOffset, int len, byte[] outBuf, int outOffset, MessageProp msgProp)
+        throws GSSException {
+        // NOTE: a real implementation would pass the buffers to the native code, the delegate happens to support this,
+        // but only through reflection
+        ConcurrentProtection concurrent = getConcurrentProtection();
+        if (!Krb5ContextAccess.isAvailable()) {
+            byte[] token = wrap(inBuf, inOffset, len, msgProp);
+            System.arraycopy(token, 0, outBuf, outOffset, token.length);
+            return token.length;
+        }
+        return concurrent == null
+            ? Krb5ContextAccess.wrap(delegate, inBuf, inOffset, len, outBuf, outOffset, msgProp)
+            : concurrent.send(context -> Krb5ContextAccess.wrap(context, inBuf, inOffset, len, outBuf, outOffset,
+                msgProp));
+    }
+
+    /**
+     * Unwrap a token into the given buffer instead of a new array, the counterpart of
+     * {@link #wrap(byte[], int, int, byte[], int, MessageProp)}.
+     *
+     * @param outBuf the buffer to write the message to, which must have room for {@code len} bytes
+     * @return the length of the message
+     */
+    public int unwrap(byte[] inBuf, int inOffset, int len, byte[] outBuf, int outOffset, MessageProp msgProp)
+        throws GSSException {
+        if (!Krb5ContextAccess.isAvailable()) {
+            byte[] data = unwrap(inBuf, inOffset, len, msgProp);
+            System.arraycopy(data, 0, outBuf, outOffset, data.length);
+            return data.length;
+        }
+        ReplayWindow window = getReplayWindow();
+        int length = Krb5ContextAccess.unwrap(delegate, inBuf, inOffset, len, outBuf, outOffset, msgProp);
+        if (window != null) {
+            window.check(inBuf, inOffset, msgProp);
+        }
+        return length;
     }
 
     @Override
     public void unwrap(InputStream is, OutputStream os, MessageProp msgProp) throws GSSException {
         // NOTE: this may be left unimplemented in a real implementation
-        delegate.unwrap(is, os, msgProp);
+        ReplayWindow window = getReplayWindow();
+        if (window == null) {
+            delegate.unwrap(is, os, msgProp);
+        } else {
+            ReplayWindow.Header header = new ReplayWindow.Header(is);
+            delegate.unwrap(header, os, msgProp);
+            window.check(header, msgProp);
+        }
     }
 
     @Override
     public byte[] unwrap(byte[] inToken, int offset, int len, MessageProp msgProp) throws GSSException {
-        return delegate.unwrap(inToken, offset, len, msgProp);
+        ReplayWindow window = getReplayWindow();
+        byte[] data = delegate.unwrap(inToken, offset, len, msgProp);
+        if (window != null) {
+            window.check(inToken, offset, msgProp);
+        }
+        return data;
     }
 
     @Override
     public void getMIC(InputStream is, OutputStream os, MessageProp msgProp) throws GSSException {
         // NOTE: this may be left unimplemented in a real implementation
-        delegate.getMIC(is, os, msgProp);
+        ConcurrentProtection concurrent = getConcurrentProtection();
+        if (concurrent == null) {
+            delegate.getMIC(is, os, msgProp);
+        } else {
+            concurrent.send(context -> {
+                context.getMIC(is, os, msgProp);
+                return null;
+            });
+        }
     }
 
     @Override
     public byte[] getMIC(byte[] inBuf, int offset, int len, MessageProp msgProp) throws GSSException {
-        return delegate.getMIC(inBuf, offset, len, msgProp);
+        ConcurrentProtection concurrent = getConcurrentProtection();
+        return concurrent == null ? delegate.getMIC(inBuf, offset, len, msgProp)
+            : concurrent.send(context -> context.getMIC(inBuf, offset, len, msgProp));
+    }
+
+    /**
+     * Wrap many messages in one call, spreading the work over the common fork-join pool, see {@link BatchProtection}.
+     * The tokens have consecutive sequence numbers in the order of the messages.
+     *
+     * @param msgProp the QOP and privacy requested for all the messages, the privacy applied is set in it on return
+     */
+    public List<byte[]> wrap(List<MessageSlice> messages, MessageProp msgProp) throws GSSException {
+        return BatchProtection.protect(delegate, getConcurrentProtection(), messages, msgProp,
+            (context, message, prop) -> context.wrap(message.getBuffer(), message.getOffset(), message.getLength(),
+                prop));
+    }
+
+    /**
+     * Get the MICs of many messages in one call, the same way as {@link #wrap(List, MessageProp)}.
+     */
+    public List<byte[]> getMIC(List<MessageSlice> messages, MessageProp msgProp) throws GSSException {
+        return BatchProtection.protect(delegate, getConcurrentProtection(), messages, msgProp,
+            (context, message, prop) -> context.getMIC(message.getBuffer(), message.getOffset(), message.getLength(),
+                prop));
+    }
+
+    /**
+     * Verify the MICs of many messages in one call, spreading the work over the common fork-join pool, see
+     * {@link BatchProtection}.
+     *
+     * @return the properties of each token, in the order of the tokens
+     * @throws GSSException the failure of the first token that isn't valid
+     */
+    public List<MessageProp> verifyMIC(List<MessageSlice> tokens, List<MessageSlice> messages) throws GSSException {
+        return BatchProtection.verifyMIC(delegate, getReplayWindow(), tokens, messages);
     }
 
     @Override
     public void verifyMIC(InputStream is, InputStream msgStr, MessageProp msgProp) throws GSSException {
         // NOTE: this may be left unimplemented in a real implementation
-        delegate.verifyMIC(is, msgStr, msgProp);
+        ReplayWindow window = getReplayWindow();
+        if (window == null) {
+            delegate.verifyMIC(is, msgStr, msgProp);
+        } else {
+            ReplayWindow.Header header = new ReplayWindow.Header(is);
+            delegate.verifyMIC(header, msgStr, msgProp);
+            window.check(header, msgProp);
+        }
     }
 
     @Override
     public void verifyMIC(byte[] inTok, int tokOffset, int tokLen, byte[] inMsg, int msgOffset, int msgLen,
         MessageProp msgProp) throws GSSException {
 
+        ReplayWindow window = getReplayWindow();
         delegate.verifyMIC(inTok, tokOffset, tokLen, inMsg, msgOffset, msgLen, msgProp);
+        if (window != null) {
+            window.check(inTok, tokOffset, msgProp);
+        }
+    }
+
+    /**
+     * Get the counters of the tokens received out of order on this context, or null if they're tracked by the
+     * delegate, see {@link ReplayWindow}.
+     */
+    public ReplayStatistics getReplayStatistics() {
+        ReplayWindow window = replayWindow;
+        return window == null ? null : window.getStatistics();
     }
 
     @Override
     public byte[] export() throws GSSException {
-        // NOTE: this may be left unimplemented in a real implementation
-        return delegate.export();
+        // NOTE: this may be left unimplemented in a real implementation. Note that GSSContextImpl only calls this for
+        // the native provider, see CustomKerberosJgssProvider.isRawTokenMode().
+        return export(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Export the context like {@link #export()}, unless the exported context would be longer than {@code maxLength},
+     * in which case the context is left usable.
+     *
+     * @throws GSSException if the context cannot be exported, or the exported context would be too long
+     */
+    byte[] export(int maxLength) throws GSSException {
+        // Nothing is changed before the state is encoded, so that the context is left usable if that fails
+        ExportedContext state = Krb5ContextAccess.capture(delegate, getLifetime());
+        ConcurrentProtection concurrent = concurrentProtection;
+        if (concurrent != null) {
+            // The delegate's own sequence number isn't used while sending concurrently
+            state = state.withMySeqNumber(concurrent.getMySequenceNumber());
+        }
+        ReplayWindow window = replayWindow;
+        if (window != null) {
+            state = window.exportTo(state);
+        }
+        byte[] exported = state.encode();
+        if (exported.length > maxLength) {
+            throw new GSSException(GSSException.FAILURE, -1,
+                "Exported context of " + exported.length + " bytes is longer than " + maxLength + " bytes");
+        }
+
+        // The context is no longer usable after it has been exported
+        try {
+            if (concurrent != null) {
+                concurrent.dispose();
+            }
+        } finally {
+            delegate.dispose();
+        }
+        return exported;
     }
 
     @Override // Java 8
     public Object inquireSecContext(InquireType type) throws GSSException {
-        // NOTE: see NOTE on Java 11 variant below
-        return delegate.inquireSecContext(type);
+        return inquireSecContext(type.name());
     }
 
     // @Override // Java 11
     public Object inquireSecContext(String type) throws GSSException {
-        // NOTE: in a real implementation, this would be implemented and called by the Java 8 variant above, but it may
-        // also be left unimplemented (e.g. getting the private key is not even possible on Windows)
-        throw new GSSException(GSSException.UNAVAILABLE, -1, "Not implemented");
+        // NOTE: in a real implementation, some of these may be left unimplemented (e.g. getting the private key is not
+        // even possible on Windows)
+        if ("KRB5_GET_AUTHZ_DATA".equals(type)) {
+            return getAuthorizationData().getEntries();
+        }
+        return SecContextInquiry.inquire(delegate, type);
+    }
+
+    /**
+     * Get a lazily decoding view of the authorization data (including the PAC) of the ticket this context was
+     * accepted with. The view is created on the first call, then shared by further calls.
+     *
+     * @throws GSSException if the context is not established, or is on the initiator side
+     */
+    public AuthorizationDataView getAuthorizationData() throws GSSException {
+        if (authorizationData == null) {
+            // NOTE: a real implementation would keep a reference to the decrypted ticket here, and decode the
+            // authorization data from it on demand, but the delegate has already decoded it on accept
+            authorizationData = AuthorizationDataView.of(
+                (AuthorizationDataEntry[]) SecContextInquiry.inquire(delegate, "KRB5_GET_AUTHZ_DATA"));
+        }
+        return authorizationData;
     }
 
     @Override
     public void dispose() throws GSSException {
         // NOTE: this is very important for a native implementation, should be called by a cleaner or finalizer as well
+        ConcurrentProtection concurrent = concurrentProtection;
+        if (concurrent != null) {
+            concurrent.dispose();
+        }
         delegate.dispose();
     }
 
+    private ConcurrentProtection getConcurrentProtection() throws GSSException {
+        ConcurrentProtection concurrent = concurrentProtection;
+        if (concurrent == null && CONCURRENT_PROTECTION && delegate.isEstablished()) {
+            synchronized (this) {
+                concurrent = concurrentProtection;
+                if (concurrent == null) {
+                    concurrent = new ConcurrentProtection(delegate);
+                    concurrentProtection = concurrent;
+                }
+            }
+        }
+        return concurrent;
+    }
+
+    private ReplayWindow getReplayWindow() throws GSSException {
+        if (REPLAY_WINDOW && !replayWindowChecked && delegate.isEstablished()) {
+            synchronized (this) {
+                if (!replayWindowChecked) {
+                    replayWindow = ReplayWindow.take(delegate);
+                    replayWindowChecked = true;
+                }
+            }
+        }
+        return replayWindow;
+    }
+
     @Override
     public String toString() {
         return delegate.toString();
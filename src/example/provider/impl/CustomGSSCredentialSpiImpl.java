@@ -27,23 +27,60 @@ package example.provider.impl;
 
 import example.provider.CustomKerberosJgssProvider;
 import java.security.Provider;
+import org.ietf.jgss.GSSCredential;
 import org.ietf.jgss.GSSException;
 import org.ietf.jgss.Oid;
 import sun.security.jgss.spi.GSSCredentialSpi;
 import sun.security.jgss.spi.GSSNameSpi;
 
-// implementation classes - a real implementation wouldn't use these
-import sun.security.jgss.krb5.Krb5MechFactory;
-
-class CustomGSSCredentialSpiImpl implements GSSCredentialSpi {
+public class CustomGSSCredentialSpiImpl implements GSSCredentialSpi {
 
     // Instead of this, a real implementation would be in-place, or delegate to native code
     private final GSSCredentialSpi delegate;
 
-    CustomGSSCredentialSpiImpl(GSSNameSpi name, int initLifetime, int acceptLifetime, int usage) throws GSSException {
-        delegate = new Krb5MechFactory(null).getCredentialElement(name, initLifetime, acceptLifetime, usage);
+    // Whether the delegate is owned by the impersonation cache, and so mustn't be disposed with this credential
+    private final boolean shared;
+
+    CustomGSSCredentialSpiImpl(CustomKrb5MechFactory factory, GSSNameSpi name, int initLifetime, int acceptLifetime,
+        int usage) throws GSSException {
+        delegate = acquireElement(factory, CustomGSSNameSpiImpl.unwrap(name), initLifetime, acceptLifetime, usage);
+        shared = false;
     }
 
+    /**
+     * Acquire a credential element of the delegate, reading the initiator ones from the ccache directly if enabled,
+     * see {@link CCacheReader}.
+     */
+    static GSSCredentialSpi acquireElement(CustomKrb5MechFactory factory, GSSNameSpi name, int initLifetime,
+        int acceptLifetime, int usage) throws GSSException {
+        if (usage == GSSCredential.INITIATE_ONLY) {
+            GSSCredentialSpi fromCCache = CCacheReader.acquireInitiatorCredential(factory.getCaller(), name);
+            if (fromCCache != null) {
+                return fromCCache;
+            }
+        }
+        return factory.getDelegate().getCredentialElement(name, initLifetime, acceptLifetime, usage);
+    }
+
+    CustomGSSCredentialSpiImpl(GSSCredentialSpi delegate, boolean shared) {
+        this.delegate = delegate;
+        this.shared = shared;
+    }
+
+    /**
+     * Wrap a credential element created by the delegate, e.g. a delegated one, or null.
+     */
+    static GSSCredentialSpi wrap(GSSCredentialSpi credential) {
+        return credential == null ? null : new CustomGSSCredentialSpiImpl(credential, false);
+    }
+
+    /**
+     * Get the delegate's element for a credential, since the delegate only accepts its own.
+     */
+    static GSSCredentialSpi unwrap(GSSCredentialSpi credential) {
+        return credential instanceof CustomGSSCredentialSpiImpl ? ((CustomGSSCredentialSpiImpl) credential).delegate
+            : credential;
+    }
 
     @Override
     public Provider getProvider() {
@@ -82,12 +119,28 @@ class CustomGSSCredentialSpiImpl implements GSSCredentialSpi {
 
     @Override
     public GSSCredentialSpi impersonate(GSSNameSpi gssNameSpi) throws GSSException {
-        return delegate.impersonate(gssNameSpi);
+        GSSNameSpi user = CustomGSSNameSpiImpl.unwrap(gssNameSpi);
+        if (!ImpersonationCache.isEnabled()) {
+            return wrap(delegate.impersonate(user));
+        }
+
+        // NOTE: a real implementation would look up the S4U2Self ticket in the native ticket cache instead
+        GSSCredentialSpi impersonated = ImpersonationCache.get(delegate, user);
+        boolean cached = true;
+        if (impersonated == null) {
+            impersonated = delegate.impersonate(user);
+            cached = ImpersonationCache.put(delegate, user, impersonated);
+        }
+        return new CustomGSSCredentialSpiImpl(impersonated, cached);
     }
 
     @Override
     public void dispose() throws GSSException {
-        delegate.dispose();
+        // Disposing of an impersonated credential destroys the impersonator's credential too, so the cached ones are
+        // left alone, they're released when they expire
+        if (!shared) {
+            delegate.dispose();
+        }
     }
 
     @Override
@@ -28,23 +28,53 @@ package example.provider.impl;
 import example.provider.CustomKerberosJgssProvider;
 import java.security.Provider;
 import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSName;
 import org.ietf.jgss.Oid;
 import sun.security.jgss.spi.GSSNameSpi;
 
-// implementation classes - a real implementation wouldn't use these
-import sun.security.jgss.krb5.Krb5MechFactory;
-
-class CustomGSSNameSpiImpl implements GSSNameSpi {
+public class CustomGSSNameSpiImpl implements GSSNameSpi {
 
     // Instead of this, a real implementation would be in-place, or delegate to native code
     private final GSSNameSpi delegate;
 
-    CustomGSSNameSpiImpl(byte[] name, Oid nameType) throws GSSException {
-        delegate = new Krb5MechFactory(null).getNameElement(name, nameType);
+    // Computed on first use, see getPrincipalKey
+    private volatile PrincipalKey principalKey;
+
+    CustomGSSNameSpiImpl(CustomKrb5MechFactory factory, byte[] name, Oid nameType) throws GSSException {
+        delegate = factory.getDelegate().getNameElement(name, nameType);
+    }
+
+    CustomGSSNameSpiImpl(CustomKrb5MechFactory factory, String name, Oid nameType) throws GSSException {
+        GSSNameSpi hostBased = GSSName.NT_HOSTBASED_SERVICE.equals(nameType) ? NameResolver.getHostBasedName(name)
+            : null;
+        delegate = hostBased != null ? hostBased : factory.getDelegate().getNameElement(name, nameType);
+    }
+
+    /**
+     * Wrap a name element of the delegate, e.g. the source name of a context.
+     */
+    CustomGSSNameSpiImpl(GSSNameSpi delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Get the delegate's element for a name, since the delegate only accepts its own.
+     */
+    static GSSNameSpi unwrap(GSSNameSpi name) {
+        return name instanceof CustomGSSNameSpiImpl ? ((CustomGSSNameSpiImpl) name).delegate : name;
     }
 
-    CustomGSSNameSpiImpl(String name, Oid nameType) throws GSSException {
-        delegate = new Krb5MechFactory(null).getNameElement(name, nameType);
+    /**
+     * Get the canonical form of the principal, used by {@link PrincipalAuthorizationIndex}. Computed once for each
+     * name, so that authorizing the source name of each context takes no parsing or allocation.
+     */
+    PrincipalKey getPrincipalKey() throws GSSException {
+        PrincipalKey key = principalKey;
+        if (key == null) {
+            key = PrincipalKey.of(delegate);
+            principalKey = key;
+        }
+        return key;
     }
 
     @Override
@@ -60,12 +90,12 @@ class CustomGSSNameSpiImpl implements GSSNameSpi {
 
     @Override
     public boolean equals(GSSNameSpi other) throws GSSException {
-        return delegate.equals(other);
+        return delegate.equals(unwrap(other));
     }
 
     @Override
     public boolean equals(Object other) {
-        return delegate.equals(other);
+        return delegate.equals(other instanceof GSSNameSpi ? unwrap((GSSNameSpi) other) : other);
     }
 
     @Override
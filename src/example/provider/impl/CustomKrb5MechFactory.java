@@ -27,6 +27,8 @@ package example.provider.impl;
 
 import example.provider.CustomKerberosJgssProvider;
 import java.security.Provider;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.ietf.jgss.GSSCredential;
 import org.ietf.jgss.GSSException;
 import org.ietf.jgss.GSSName;
@@ -37,6 +39,9 @@ import sun.security.jgss.spi.GSSCredentialSpi;
 import sun.security.jgss.spi.GSSNameSpi;
 import sun.security.jgss.spi.MechanismFactory;
 
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5MechFactory;
+
 /**
  * JGSS-compatible KRB5 mechanism implementation for demonstration purposes. Use via the
  * {@link CustomKerberosJgssProvider}.
@@ -59,14 +64,65 @@ public class CustomKrb5MechFactory implements MechanismFactory {
     private static final Oid[] nameTypes = new Oid[] {
         GSSName.NT_USER_NAME, GSSName.NT_HOSTBASED_SERVICE, GSSName.NT_EXPORT_NAME, NT_GSS_KRB5_PRINCIPAL};
 
+    private static final CustomKrb5MechFactory DEFAULT_INSTANCE = new CustomKrb5MechFactory(null);
+
+    // Only the well-known GSSCaller constants are shared, ConcurrentHashMap doesn't allow the null caller
+    private static final ConcurrentMap<GSSCaller, CustomKrb5MechFactory> SHARED_INSTANCES = new ConcurrentHashMap<>();
+
+    private final GSSCaller caller;
+
+    // Instead of this, a real implementation would delegate to native code
+    private final Krb5MechFactory delegate;
+
+    /**
+     * Get a shared instance for the given caller. Prefer this to the constructor, the instances are immutable and
+     * thread-safe, so there's no need to create a new one for each name, credential or context.
+     * <p/>
+     * Callers of the {@link sun.security.jgss.HttpCaller} type are created for each HTTP request, so those aren't
+     * cached, a new instance is returned for each of them instead.
+     *
+     * @param caller the caller, may be null if unknown
+     */
+    public static CustomKrb5MechFactory getInstance(GSSCaller caller) {
+        if (caller == null) {
+            return DEFAULT_INSTANCE;
+        }
+
+        if (caller.getClass() != GSSCaller.class) {
+            return new CustomKrb5MechFactory(caller);
+        }
+
+        CustomKrb5MechFactory factory = SHARED_INSTANCES.get(caller);
+
+        if (factory == null) {
+            factory = SHARED_INSTANCES.computeIfAbsent(caller, CustomKrb5MechFactory::new);
+        }
+
+        return factory;
+    }
+
     /**
      * JGSS-compatible KRB5 mechanism implementation for demonstration purposes. Use via the
      * {@link CustomKerberosJgssProvider}.
+     * <p/>
+     * Prefer {@link #getInstance(GSSCaller)} when not called reflectively by the infrastructure.
      *
-     * @param caller unused, required for reflective calls by the infrastructure
+     * @param caller the caller, passed on to the credential acquisition, may be null if unknown
      */
     public CustomKrb5MechFactory(GSSCaller caller) {
-        // no-op
+        this.caller = caller;
+        this.delegate = new Krb5MechFactory(caller);
+    }
+
+    /**
+     * The caller this instance was created for, may be null if unknown.
+     */
+    public GSSCaller getCaller() {
+        return caller;
+    }
+
+    Krb5MechFactory getDelegate() {
+        return delegate;
     }
 
     @Override
@@ -93,7 +149,7 @@ public class CustomKrb5MechFactory implements MechanismFactory {
             return (CustomGSSNameSpiImpl) name;
         }
 
-        return new CustomGSSNameSpiImpl(name.toString(), name.getStringNameType());
+        return getNameElement(name.toString(), name.getStringNameType());
     }
 
     private CustomGSSCredentialSpiImpl convertCredentials(GSSCredentialSpi credentials) throws GSSException {
@@ -105,7 +161,7 @@ public class CustomKrb5MechFactory implements MechanismFactory {
             return (CustomGSSCredentialSpiImpl) credentials;
         }
 
-        return new CustomGSSCredentialSpiImpl(convertName(credentials.getName()), credentials.getInitLifetime(),
+        return getCredentialElement(credentials.getName(), credentials.getInitLifetime(),
             credentials.getAcceptLifetime(), getUsage(credentials));
     }
 
@@ -122,35 +178,38 @@ public class CustomKrb5MechFactory implements MechanismFactory {
         }
     }
 
+    // NOTE: the below methods return the concrete types, so that code using this factory directly (see
+    // CustomKerberosJgssProvider.getMechFactory(GSSCaller)) can use their additional methods without casting.
+
     @Override
-    public GSSCredentialSpi getCredentialElement(GSSNameSpi name, int initLifetime, int acceptLifetime, int usage)
-        throws GSSException {
-        return new CustomGSSCredentialSpiImpl(convertName(name), initLifetime, acceptLifetime, usage);
+    public CustomGSSCredentialSpiImpl getCredentialElement(GSSNameSpi name, int initLifetime, int acceptLifetime,
+        int usage) throws GSSException {
+        return new CustomGSSCredentialSpiImpl(this, convertName(name), initLifetime, acceptLifetime, usage);
     }
 
     @Override
-    public GSSNameSpi getNameElement(String nameStr, Oid nameType) throws GSSException {
-        return new CustomGSSNameSpiImpl(nameStr, nameType);
+    public CustomGSSNameSpiImpl getNameElement(String nameStr, Oid nameType) throws GSSException {
+        return new CustomGSSNameSpiImpl(this, nameStr, nameType);
     }
 
     @Override
-    public GSSNameSpi getNameElement(byte[] name, Oid nameType) throws GSSException {
-        return new CustomGSSNameSpiImpl(name, nameType);
+    public CustomGSSNameSpiImpl getNameElement(byte[] name, Oid nameType) throws GSSException {
+        return new CustomGSSNameSpiImpl(this, name, nameType);
     }
 
     @Override
-    public GSSContextSpi getMechanismContext(GSSNameSpi peer, GSSCredentialSpi myInitiatorCred, int lifetime)
-        throws GSSException {
-        return new CustomGSSContextSpiImpl(convertName(peer), convertCredentials(myInitiatorCred), lifetime);
+    public CustomGSSContextSpiImpl getMechanismContext(GSSNameSpi peer, GSSCredentialSpi myInitiatorCred,
+        int lifetime) throws GSSException {
+        return new CustomGSSContextSpiImpl(this, convertName(peer), convertCredentials(myInitiatorCred), lifetime);
     }
 
     @Override
-    public GSSContextSpi getMechanismContext(GSSCredentialSpi myAcceptorCred) throws GSSException {
-        return new CustomGSSContextSpiImpl(convertCredentials(myAcceptorCred));
+    public CustomGSSContextSpiImpl getMechanismContext(GSSCredentialSpi myAcceptorCred) throws GSSException {
+        return new CustomGSSContextSpiImpl(this, convertCredentials(myAcceptorCred));
     }
 
     @Override
-    public GSSContextSpi getMechanismContext(byte[] exportedContext) throws GSSException {
-        return new CustomGSSContextSpiImpl(exportedContext);
+    public CustomGSSContextSpiImpl getMechanismContext(byte[] exportedContext) throws GSSException {
+        return new CustomGSSContextSpiImpl(this, exportedContext);
     }
 }
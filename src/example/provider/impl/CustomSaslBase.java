@@ -0,0 +1,368 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.Configurations;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslException;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * The security layer of the SASL GSSAPI mechanism (RFC 4752) of {@link CustomSaslFactory}, shared by
+ * {@link CustomSaslClient} and {@link CustomSaslServer}.
+ * <p/>
+ * Besides the standard {@link #wrap(byte[], int, int)} and {@link #unwrap(byte[], int, int)} methods, which return new
+ * arrays like the built-in mechanism, and leave the framing to the application, it offers
+ * {@link #wrapFrames(byte[], int, int)} and {@link #unwrapFrame(byte[], int, int)}, which do the framing too: the
+ * outgoing data is split into as few frames as the negotiated buffer sizes allow, each written with its length prefix
+ * into a single pooled buffer, and the incoming frames are unwrapped into pooled buffers, which the caller returns
+ * with {@link #release(MessageSlice)}. The buffers are pooled by each session, up to its negotiated frame sizes, and
+ * cleared when they're returned. The tokens are written and read in place, by
+ * {@link CustomGSSContextSpiImpl#wrap(byte[], int, int, byte[], int, MessageProp)} and
+ * {@link CustomGSSContextSpiImpl#unwrap(byte[], int, int, byte[], int, MessageProp)}.
+ * <p/>
+ * The largest frame advertised to the peer defaults to {@link Configurations#getSaslMaxBuffer()} instead of the
+ * JDK's 65536 bytes, so that bulk data takes fewer frames, and thus fewer tokens, each with its own header, checksum
+ * and sequence number.
+ */
+public abstract class CustomSaslBase {
+
+    private static final Logger LOGGER = Logger.getLogger(CustomSaslBase.class.getName());
+
+    static final String MECH_NAME = "GSSAPI";
+
+    static final byte[] EMPTY = new byte[0];
+
+    static final byte NO_PROTECTION = 1;
+
+    static final byte INTEGRITY_ONLY_PROTECTION = 2;
+
+    static final byte PRIVACY_PROTECTION = 4;
+
+    // See AbstractSaslImpl in the JDK
+    private static final String SEND_MAX_BUFFER = "javax.security.sasl.sendmaxbuffer";
+
+    // The length of the buffer sizes in the handshake messages
+    private static final int MAX_BUFFER_LIMIT = 0xFFFFFF;
+
+    // The quality of protection of the Kerberos tokens, unrelated to the SASL one
+    private static final int JGSS_QOP = 0;
+
+    // The number of buffers kept of each size, a session doesn't use many at a time
+    private static final int POOLED_BUFFERS = 2;
+
+    CustomGSSContextSpiImpl mechContext;
+
+    /**
+     * The protections acceptable to the application, in the order of its preference.
+     */
+    final byte[] qop;
+
+    final byte allQop;
+
+    final int recvMaxBufSize;
+
+    int sendMaxBufSize;
+
+    int rawSendSize;
+
+    /**
+     * The buffers of the frames, up to the negotiated sizes, set with the protection.
+     */
+    BufferPool buffers;
+
+    boolean completed;
+
+    boolean integrity;
+
+    boolean privacy;
+
+    CustomSaslBase(Map<String, ?> props) throws SaslException {
+        qop = parseQop(props == null ? null : (String) props.get(Sasl.QOP));
+        byte mask = 0;
+        for (byte b : qop) {
+            mask |= b;
+        }
+        allQop = mask;
+
+        recvMaxBufSize = parseBufferSize(props, Sasl.MAX_BUFFER, Configurations.getSaslMaxBuffer());
+        sendMaxBufSize = parseBufferSize(props, SEND_MAX_BUFFER, 0);
+    }
+
+    public String getMechanismName() {
+        return MECH_NAME;
+    }
+
+    public boolean isComplete() {
+        return completed;
+    }
+
+    /**
+     * Wrap the outgoing data into a single token, in a new array, without the length prefix, see
+     * {@link javax.security.sasl.SaslClient#wrap(byte[], int, int)}.
+     * <p/>
+     * Prefer {@link #wrapFrames(byte[], int, int)}, which does the framing too.
+     */
+    public byte[] wrap(byte[] outgoing, int offset, int len) throws SaslException {
+        checkProtection();
+        try {
+            return mechContext.wrap(outgoing, offset, len, new MessageProp(JGSS_QOP, privacy));
+        } catch (GSSException e) {
+            throw new SaslException("Problem performing GSS wrap", e);
+        }
+    }
+
+    /**
+     * Unwrap a single token, without the length prefix, into a new array, see
+     * {@link javax.security.sasl.SaslClient#unwrap(byte[], int, int)}.
+     * <p/>
+     * Prefer {@link #unwrapFrame(byte[], int, int)}, which does the framing too.
+     */
+    public byte[] unwrap(byte[] incoming, int offset, int len) throws SaslException {
+        checkProtection();
+        try {
+            MessageProp msgProp = new MessageProp(JGSS_QOP, false);
+            byte[] data = mechContext.unwrap(incoming, offset, len, msgProp);
+            checkUnwrapped(msgProp);
+            return data;
+        } catch (GSSException e) {
+            throw new SaslException("Problems unwrapping SASL buffer", e);
+        }
+    }
+
+    /**
+     * Wrap the outgoing data into as few frames as the negotiated buffer sizes allow, each of them a 4-byte length in
+     * network byte order followed by a token, ready to be written to the peer.
+     *
+     * @return the frames, in a pooled buffer, which should be returned with {@link #release(MessageSlice)} once
+     *     they're written
+     */
+    public MessageSlice wrapFrames(byte[] outgoing, int offset, int len) throws SaslException {
+        checkProtection();
+        if (offset < 0 || len < 0 || offset > outgoing.length - len) {
+            throw new IndexOutOfBoundsException(
+                "offset " + offset + ", length " + len + " out of bounds for " + outgoing.length + " bytes");
+        }
+
+        int frames = Math.max((len + rawSendSize - 1) / rawSendSize, 1);
+        // A full frame is at most sendMaxBufSize, shorter ones may take a few padding bytes more than their share of it
+        int overhead = sendMaxBufSize - rawSendSize + 16;
+        byte[] buffer = buffers.acquire(len + frames * (4 + overhead));
+        try {
+            MessageProp msgProp = new MessageProp(JGSS_QOP, privacy);
+            int position = 0;
+            for (int end = offset + len; offset < end || position == 0; offset += rawSendSize) {
+                int tokenLength = mechContext.wrap(outgoing, offset, Math.min(rawSendSize, end - offset), buffer,
+                    position + 4, msgProp);
+                ByteArrays.writeInt(tokenLength, buffer, position);
+                position += 4 + tokenLength;
+            }
+            return new MessageSlice(buffer, 0, position);
+        } catch (GSSException e) {
+            buffers.release(buffer, buffer.length);
+            throw new SaslException("Problem performing GSS wrap", e);
+        }
+    }
+
+    /**
+     * Unwrap a frame received from the peer.
+     *
+     * @param frame the buffer holding the frame, including its 4-byte length prefix
+     * @param offset the offset of the length prefix
+     * @param len the length of the frame including the prefix, which must match it
+     * @return the data, in a pooled buffer, which should be returned with {@link #release(MessageSlice)} once it's
+     *     consumed
+     */
+    public MessageSlice unwrapFrame(byte[] frame, int offset, int len) throws SaslException {
+        checkProtection();
+        if (len < 4) {
+            throw new SaslException("Truncated frame");
+        }
+        int tokenLength = ByteArrays.readInt(frame, offset);
+        if (tokenLength != len - 4) {
+            throw new SaslException("Frame length " + tokenLength + " doesn't match " + (len - 4) + " bytes");
+        }
+        if (tokenLength > recvMaxBufSize) {
+            throw new SaslException("Frame length " + tokenLength + " exceeds the maximum of " + recvMaxBufSize);
+        }
+
+        byte[] buffer = buffers.acquire(tokenLength);
+        MessageProp msgProp = new MessageProp(JGSS_QOP, false);
+        int dataLength;
+        try {
+            dataLength = mechContext.unwrap(frame, offset + 4, tokenLength, buffer, 0, msgProp);
+        } catch (GSSException e) {
+            buffers.release(buffer, tokenLength);
+            throw new SaslException("Problems unwrapping SASL buffer", e);
+        }
+        // The buffer is left to the garbage collector if this fails, like any that isn't released
+        checkUnwrapped(msgProp);
+        return new MessageSlice(buffer, 0, dataLength);
+    }
+
+    /**
+     * Return the buffer of a slice returned by {@link #wrapFrames(byte[], int, int)} or
+     * {@link #unwrapFrame(byte[], int, int)} to the pool, after which it must no longer be used. The slice is cleared
+     * first, so the data doesn't outlive it.
+     */
+    public void release(MessageSlice slice) {
+        buffers.release(slice.getBuffer(), slice.getOffset() + slice.getLength());
+    }
+
+    public Object getNegotiatedProperty(String propName) {
+        if (!completed) {
+            throw new IllegalStateException("Authentication incomplete");
+        }
+
+        switch (propName) {
+            case Sasl.QOP:
+                return privacy ? "auth-conf" : integrity ? "auth-int" : "auth";
+            case Sasl.MAX_BUFFER:
+                return Integer.toString(recvMaxBufSize);
+            case Sasl.RAW_SEND_SIZE:
+                return Integer.toString(rawSendSize);
+            case SEND_MAX_BUFFER:
+                return Integer.toString(sendMaxBufSize);
+            default:
+                return null;
+        }
+    }
+
+    public void dispose() throws SaslException {
+        if (mechContext != null) {
+            try {
+                mechContext.dispose();
+            } catch (GSSException e) {
+                throw new SaslException("Problem disposing GSS context", e);
+            }
+            mechContext = null;
+        }
+    }
+
+    /**
+     * Apply the protection selected in the handshake, and the largest frame the peer accepts.
+     */
+    void selectProtection(byte selectedQop, int peerMaxBufSize) throws GSSException {
+        privacy = (selectedQop & PRIVACY_PROTECTION) != 0;
+        integrity = privacy || (selectedQop & INTEGRITY_ONLY_PROTECTION) != 0;
+
+        // NOTE: a peer that only wants authentication may advertise 0, in which case no frames are sent anyway
+        int peerLimit = peerMaxBufSize == 0 ? recvMaxBufSize : peerMaxBufSize;
+        sendMaxBufSize = sendMaxBufSize == 0 ? peerLimit : Math.min(sendMaxBufSize, peerLimit);
+        rawSendSize = mechContext.getWrapSizeLimit(JGSS_QOP, privacy, sendMaxBufSize);
+        if (integrity && rawSendSize <= 0) {
+            throw new GSSException(GSSException.FAILURE, -1,
+                "Maximum buffer size " + sendMaxBufSize + " is too small for any data");
+        }
+        // Only single frames are pooled, larger buffers for several frames are left to the garbage collector
+        buffers = new BufferPool(Math.max(recvMaxBufSize, sendMaxBufSize + 4 + 16), POOLED_BUFFERS);
+
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Selected protection " + selectedQop + ", receiving up to " + recvMaxBufSize
+                + " bytes, sending up to " + sendMaxBufSize + " bytes, " + rawSendSize + " of data");
+        }
+    }
+
+    /**
+     * Check the sequencing of a handshake message.
+     */
+    static void checkMessageProp(String label, MessageProp msgProp) throws SaslException {
+        if (msgProp.isDuplicateToken()) {
+            throw new SaslException(label + "Duplicate token");
+        }
+        if (msgProp.isGapToken()) {
+            throw new SaslException(label + "Gap token");
+        }
+        if (msgProp.isOldToken()) {
+            throw new SaslException(label + "Old token");
+        }
+        if (msgProp.isUnseqToken()) {
+            throw new SaslException(label + "Token not in sequence");
+        }
+    }
+
+    private void checkProtection() {
+        if (!completed) {
+            throw new IllegalStateException("GSSAPI authentication not completed");
+        }
+        if (!integrity) {
+            throw new IllegalStateException("No security layer negotiated");
+        }
+    }
+
+    private void checkUnwrapped(MessageProp msgProp) throws SaslException {
+        if (privacy && !msgProp.getPrivacy()) {
+            throw new SaslException("Privacy not protected");
+        }
+        checkMessageProp("", msgProp);
+    }
+
+    private static byte[] parseQop(String value) throws SaslException {
+        if (value == null) {
+            return new byte[] {NO_PROTECTION};
+        }
+
+        String[] names = value.split(",");
+        byte[] result = new byte[names.length];
+        for (int i = 0; i < names.length; i++) {
+            switch (names[i].trim()) {
+                case "auth":
+                    result[i] = NO_PROTECTION;
+                    break;
+                case "auth-int":
+                    result[i] = INTEGRITY_ONLY_PROTECTION;
+                    break;
+                case "auth-conf":
+                    result[i] = PRIVACY_PROTECTION;
+                    break;
+                default:
+                    throw new SaslException("Invalid protection level: " + names[i]);
+            }
+        }
+        return result;
+    }
+
+    private static int parseBufferSize(Map<String, ?> props, String name, int defaultValue) throws SaslException {
+        Object value = props == null ? null : props.get(name);
+        if (value == null) {
+            return Math.min(defaultValue, MAX_BUFFER_LIMIT);
+        }
+
+        try {
+            int size = Integer.parseInt(value.toString());
+            if (size < 0 || size > MAX_BUFFER_LIMIT) {
+                throw new SaslException(name + " out of range: " + size);
+            }
+            return size;
+        } catch (NumberFormatException e) {
+            throw new SaslException("Invalid " + name + ": " + value, e);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.CustomKerberosJgssProvider;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslException;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.MessageProp;
+import sun.security.jgss.GSSCaller;
+import sun.security.jgss.GSSCredentialImpl;
+import sun.security.jgss.spi.GSSCredentialSpi;
+
+/**
+ * The client side of the SASL GSSAPI mechanism, created by {@link CustomSaslFactory}. Same as the built-in one, except
+ * that the context is created by the provider's mechanism factory directly, and the additions of
+ * {@link CustomSaslBase}.
+ */
+public final class CustomSaslClient extends CustomSaslBase implements SaslClient {
+
+    private final byte[] authorizationId;
+
+    private boolean finalHandshake;
+
+    CustomSaslClient(String authorizationId, String protocol, String serverName, Map<String, ?> props)
+        throws SaslException {
+        super(props);
+
+        CustomKrb5MechFactory factory = CustomKerberosJgssProvider.getMechFactory(GSSCaller.CALLER_INITIATE);
+        try {
+            CustomGSSNameSpiImpl acceptorName =
+                factory.getNameElement(protocol + "@" + serverName, GSSName.NT_HOSTBASED_SERVICE);
+
+            GSSCredentialSpi credentials = null;
+            Object credentialsProp = props == null ? null : props.get(Sasl.CREDENTIALS);
+            if (credentialsProp instanceof GSSCredential) {
+                if (!(credentialsProp instanceof GSSCredentialImpl)) {
+                    throw new SaslException("Unsupported credentials: " + credentialsProp.getClass().getName());
+                }
+                credentials = ((GSSCredentialImpl) credentialsProp)
+                    .getElement(CustomKrb5MechFactory.GSS_KRB5_MECH_OID, true);
+            }
+
+            mechContext = factory.getMechanismContext(acceptorName, credentials, GSSContext.INDEFINITE_LIFETIME);
+            if (credentials != null) {
+                mechContext.requestCredDeleg(true);
+            }
+            Object mutualProp = props == null ? null : props.get(Sasl.SERVER_AUTH);
+            mechContext.requestMutualAuth("true".equalsIgnoreCase((String) mutualProp));
+            mechContext.requestConf(true);
+            mechContext.requestInteg(true);
+        } catch (GSSException e) {
+            throw new SaslException("Failure to initialize security context", e);
+        }
+
+        this.authorizationId = authorizationId == null || authorizationId.isEmpty() ? null
+            : authorizationId.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean hasInitialResponse() {
+        return true;
+    }
+
+    @Override
+    public byte[] evaluateChallenge(byte[] challenge) throws SaslException {
+        if (completed) {
+            throw new IllegalStateException("GSSAPI authentication already complete");
+        }
+
+        if (finalHandshake) {
+            return doFinalHandshake(challenge);
+        }
+
+        try {
+            // The first call is made with an empty challenge
+            byte[] token = mechContext.initFramed(
+                challenge.length == 0 ? null : new ByteArrayInputStream(challenge), challenge.length == 0 ? 0 : -1);
+            if (mechContext.isEstablished()) {
+                finalHandshake = true;
+                if (token == null) {
+                    return EMPTY;
+                }
+            }
+            return token;
+        } catch (GSSException e) {
+            throw new SaslException("GSS initiate failed", e);
+        }
+    }
+
+    private byte[] doFinalHandshake(byte[] challenge) throws SaslException {
+        if (challenge.length == 0) {
+            // The server hasn't sent the security layer message yet
+            return EMPTY;
+        }
+
+        try {
+            MessageProp msgProp = new MessageProp(false);
+            byte[] serverMessage = mechContext.unwrap(challenge, 0, challenge.length, msgProp);
+            checkMessageProp("Handshake failure: ", msgProp);
+            if (serverMessage.length != 4) {
+                throw new SaslException("Handshake failure: invalid security layer message");
+            }
+
+            byte selectedQop = 0;
+            for (byte preferred : qop) {
+                if ((serverMessage[0] & preferred) != 0) {
+                    selectedQop = preferred;
+                    break;
+                }
+            }
+            if (selectedQop == 0) {
+                throw new SaslException("No common protection layer between client and server");
+            }
+            selectProtection(selectedQop, ByteArrays.readInt(serverMessage, 0) & 0xFFFFFF);
+
+            byte[] response = new byte[4 + (authorizationId == null ? 0 : authorizationId.length)];
+            ByteArrays.writeInt(recvMaxBufSize, response, 0);
+            response[0] = selectedQop;
+            if (authorizationId != null) {
+                System.arraycopy(authorizationId, 0, response, 4, authorizationId.length);
+            }
+
+            byte[] token = mechContext.wrap(response, 0, response.length, new MessageProp(0, false));
+            completed = true;
+            return token;
+        } catch (GSSException e) {
+            throw new SaslException("Final handshake failed", e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.util.Map;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslClientFactory;
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+import javax.security.sasl.SaslServerFactory;
+
+/**
+ * The SASL GSSAPI mechanism (RFC 4752) of the provider, registered in place of the built-in one unless
+ * {@link example.provider.Configurations#isBuiltInSasl()}. Creates {@link CustomSaslClient} and
+ * {@link CustomSaslServer} instances, which establish their Kerberos contexts directly with
+ * {@link CustomKrb5MechFactory}, see {@link CustomSaslBase} for the differences in their security layer.
+ * <p/>
+ * Like the built-in one, the mechanism doesn't satisfy the {@link Sasl#POLICY_NODICTIONARY},
+ * {@link Sasl#POLICY_FORWARD_SECRECY} and {@link Sasl#POLICY_PASS_CREDENTIALS} policies.
+ */
+public final class CustomSaslFactory implements SaslClientFactory, SaslServerFactory {
+
+    private static final String[] MECHANISMS = {CustomSaslBase.MECH_NAME};
+
+    private static final String[] NO_MECHANISMS = {};
+
+    /**
+     * Only public for the sake of the {@link java.security.Provider} infrastructure, prefer
+     * {@link Sasl#createSaslClient(String[], String, String, String, Map, CallbackHandler)} and
+     * {@link Sasl#createSaslServer(String, String, String, Map, CallbackHandler)}.
+     */
+    public CustomSaslFactory() {
+    }
+
+    @Override
+    public SaslClient createSaslClient(String[] mechanisms, String authorizationId, String protocol,
+        String serverName, Map<String, ?> props, CallbackHandler cbh) throws SaslException {
+        if (!isAllowed(props)) {
+            return null;
+        }
+        for (String mechanism : mechanisms) {
+            if (CustomSaslBase.MECH_NAME.equals(mechanism)) {
+                return new CustomSaslClient(authorizationId, protocol, serverName, props);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public SaslServer createSaslServer(String mechanism, String protocol, String serverName, Map<String, ?> props,
+        CallbackHandler cbh) throws SaslException {
+        if (!CustomSaslBase.MECH_NAME.equals(mechanism) || !isAllowed(props)) {
+            return null;
+        }
+        if (cbh == null) {
+            throw new SaslException("Callback handler with support for AuthorizeCallback required");
+        }
+        return new CustomSaslServer(protocol, serverName, props, cbh);
+    }
+
+    @Override
+    public String[] getMechanismNames(Map<String, ?> props) {
+        return isAllowed(props) ? MECHANISMS.clone() : NO_MECHANISMS;
+    }
+
+    private static boolean isAllowed(Map<String, ?> props) {
+        return props == null || !isSet(props, Sasl.POLICY_NODICTIONARY) && !isSet(props, Sasl.POLICY_FORWARD_SECRECY)
+            && !isSet(props, Sasl.POLICY_PASS_CREDENTIALS);
+    }
+
+    private static boolean isSet(Map<String, ?> props, String policy) {
+        return "true".equalsIgnoreCase(String.valueOf(props.get(policy)));
+    }
+}
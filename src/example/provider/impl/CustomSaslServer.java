@@ -0,0 +1,199 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.CustomKerberosJgssProvider;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.AuthorizeCallback;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.MessageProp;
+import sun.security.jgss.GSSCaller;
+
+/**
+ * The server side of the SASL GSSAPI mechanism, created by {@link CustomSaslFactory}. Same as the built-in one, except
+ * that the context is created by the provider's mechanism factory directly, and the additions of
+ * {@link CustomSaslBase}.
+ */
+public final class CustomSaslServer extends CustomSaslBase implements SaslServer {
+
+    private static final int STAGE_CONTEXT = 0;
+
+    private static final int STAGE_SECURITY_LAYER = 1;
+
+    private static final int STAGE_AUTHORIZATION = 2;
+
+    private final CallbackHandler callbackHandler;
+
+    // The protocol to check the acceptor's name against, if the server name is unbound, otherwise null
+    private final String unboundProtocol;
+
+    private int stage = STAGE_CONTEXT;
+
+    private String peer;
+
+    private String me;
+
+    private String authorizationId;
+
+    CustomSaslServer(String protocol, String serverName, Map<String, ?> props, CallbackHandler callbackHandler)
+        throws SaslException {
+        super(props);
+        this.callbackHandler = callbackHandler;
+        this.unboundProtocol = serverName == null ? protocol : null;
+
+        CustomKrb5MechFactory factory = CustomKerberosJgssProvider.getMechFactory(GSSCaller.CALLER_ACCEPT);
+        try {
+            CustomGSSNameSpiImpl serviceName = serverName == null ? null
+                : factory.getNameElement(protocol + "@" + serverName, GSSName.NT_HOSTBASED_SERVICE);
+            CustomGSSCredentialSpiImpl credentials = factory.getCredentialElement(serviceName, 0,
+                GSSCredential.INDEFINITE_LIFETIME, GSSCredential.ACCEPT_ONLY);
+            mechContext = factory.getMechanismContext(credentials);
+            if ((allQop & INTEGRITY_ONLY_PROTECTION) != 0) {
+                mechContext.requestInteg(true);
+            }
+            if ((allQop & PRIVACY_PROTECTION) != 0) {
+                mechContext.requestConf(true);
+            }
+        } catch (GSSException e) {
+            throw new SaslException("Failure to initialize security context", e);
+        }
+    }
+
+    @Override
+    public byte[] evaluateResponse(byte[] response) throws SaslException {
+        if (completed) {
+            throw new SaslException("SASL authentication already complete");
+        }
+
+        switch (stage) {
+            case STAGE_SECURITY_LAYER:
+                return sendSecurityLayer(response);
+            case STAGE_AUTHORIZATION:
+                return authorize(response);
+            default:
+                return acceptContext(response);
+        }
+    }
+
+    private byte[] acceptContext(byte[] response) throws SaslException {
+        try {
+            byte[] token = mechContext.acceptFramed(new ByteArrayInputStream(response), -1);
+            if (!mechContext.isEstablished()) {
+                return token;
+            }
+
+            stage = STAGE_SECURITY_LAYER;
+            peer = mechContext.getSrcName().toString();
+            me = mechContext.getTargName().toString();
+            if (unboundProtocol != null && !unboundProtocol.equalsIgnoreCase(me.split("[/@]")[0])) {
+                throw new SaslException("GSS context targ name protocol error: " + me);
+            }
+            return token == null ? sendSecurityLayer(EMPTY) : token;
+        } catch (GSSException e) {
+            throw new SaslException("GSS initiate failed", e);
+        }
+    }
+
+    private byte[] sendSecurityLayer(byte[] response) throws SaslException {
+        if (response.length > 0) {
+            throw new SaslException("Handshake expecting no response data from server");
+        }
+
+        try {
+            byte[] message = new byte[4];
+            ByteArrays.writeInt(recvMaxBufSize, message, 0);
+            message[0] = allQop;
+            stage = STAGE_AUTHORIZATION;
+            return mechContext.wrap(message, 0, message.length, new MessageProp(0, false));
+        } catch (GSSException e) {
+            throw new SaslException("Problem wrapping handshake1", e);
+        }
+    }
+
+    private byte[] authorize(byte[] response) throws SaslException {
+        try {
+            MessageProp msgProp = new MessageProp(false);
+            byte[] clientMessage = mechContext.unwrap(response, 0, response.length, msgProp);
+            checkMessageProp("Handshake failure: ", msgProp);
+            if (clientMessage.length < 4) {
+                throw new SaslException("Handshake failure: invalid security layer message");
+            }
+
+            byte selectedQop = clientMessage[0];
+            if ((selectedQop & allQop) == 0 || Integer.bitCount(selectedQop & 0xFF) != 1) {
+                throw new SaslException("Client selected unsupported protection: " + selectedQop);
+            }
+            selectProtection(selectedQop, ByteArrays.readInt(clientMessage, 0) & 0xFFFFFF);
+
+            authorizationId = clientMessage.length > 4
+                ? new String(clientMessage, 4, clientMessage.length - 4, StandardCharsets.UTF_8)
+                : peer;
+
+            AuthorizeCallback callback = new AuthorizeCallback(peer, authorizationId);
+            try {
+                callbackHandler.handle(new Callback[] {callback});
+            } catch (IOException | UnsupportedCallbackException e) {
+                throw new SaslException("Problem with callback handler", e);
+            }
+            if (!callback.isAuthorized()) {
+                throw new SaslException(peer + " is not authorized to connect as " + authorizationId);
+            }
+            authorizationId = callback.getAuthorizedID();
+            completed = true;
+            return null;
+        } catch (GSSException e) {
+            throw new SaslException("Final handshake step failed", e);
+        }
+    }
+
+    @Override
+    public String getAuthorizationID() {
+        if (!completed) {
+            throw new IllegalStateException("Authentication incomplete");
+        }
+        return authorizationId;
+    }
+
+    @Override
+    public Object getNegotiatedProperty(String propName) {
+        if (Sasl.BOUND_SERVER_NAME.equals(propName) && completed) {
+            String[] parts = me.split("[/@]");
+            return parts.length > 1 ? parts[1] : null;
+        }
+        return super.getNegotiatedProperty(propName);
+    }
+}
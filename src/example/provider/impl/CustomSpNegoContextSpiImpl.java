@@ -0,0 +1,430 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import com.sun.security.jgss.InquireType;
+import example.provider.CustomKerberosJgssProvider;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Provider;
+import org.ietf.jgss.ChannelBinding;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+import org.ietf.jgss.Oid;
+import sun.security.jgss.spi.GSSContextSpi;
+import sun.security.jgss.spi.GSSCredentialSpi;
+import sun.security.jgss.spi.GSSNameSpi;
+
+/**
+ * A SPNEGO context negotiating Kerberos, created by {@link CustomSpNegoMechFactory}.
+ * <p/>
+ * The initiator always offers Kerberos alone, with its optimistic token, and the acceptor accepts that token right
+ * away if Kerberos is the initiator's preferred mechanism, so the context is established in the single round trip of
+ * the Kerberos context, the same as without SPNEGO. If the initiator prefers another mechanism, the acceptor asks for
+ * a Kerberos token instead, which takes another round trip.
+ * <p/>
+ * The mechListMIC, which protects the initiator's list of mechanisms against a downgrade, is exchanged when RFC 4178
+ * requires it: if the acceptor selects Kerberos although the initiator prefers another mechanism, it asks for the
+ * MIC, sends its own once the Kerberos context is established, and only completes after verifying the initiator's.
+ * When Kerberos is the initiator's first mechanism there's nothing to downgrade, so no MIC is sent, as Windows
+ * doesn't send one either. The initiator only offers Kerberos, so it only sends its MIC when the acceptor asks for
+ * one, and verifies the acceptor's whenever it's received, like the built-in implementation.
+ * <p/>
+ * Once established, all calls are handed over to the Kerberos context.
+ */
+public class CustomSpNegoContextSpiImpl implements GSSContextSpi {
+
+    private static final boolean RAW_TOKENS = CustomKerberosJgssProvider.isRawTokenMode();
+
+    private static final int STATE_NEW = 0;
+
+    private static final int STATE_IN_PROCESS = 1;
+
+    private static final int STATE_DONE = 2;
+
+    private final CustomGSSContextSpiImpl mechContext;
+
+    private int state = STATE_NEW;
+
+    // The initiator's MechTypeList when the MICs have to be exchanged, see the class comment
+    private byte[] mechTypes;
+
+    // Whether the initiator has sent its MIC, and is waiting for the acceptor to complete
+    private boolean micSent;
+
+    CustomSpNegoContextSpiImpl(CustomGSSContextSpiImpl mechContext) {
+        this.mechContext = mechContext;
+    }
+
+    /**
+     * The negotiated Kerberos context, for its additional methods (e.g.
+     * {@link CustomGSSContextSpiImpl#getAuthorizationData()}).
+     */
+    public CustomGSSContextSpiImpl getMechanismContext() {
+        return mechContext;
+    }
+
+    @Override
+    public Provider getProvider() {
+        return CustomKerberosJgssProvider.INSTANCE;
+    }
+
+    @Override
+    public void requestLifetime(int lifetime) throws GSSException {
+        mechContext.requestLifetime(lifetime);
+    }
+
+    @Override
+    public void requestMutualAuth(boolean state) throws GSSException {
+        mechContext.requestMutualAuth(state);
+    }
+
+    @Override
+    public void requestReplayDet(boolean state) throws GSSException {
+        mechContext.requestReplayDet(state);
+    }
+
+    @Override
+    public void requestSequenceDet(boolean state) throws GSSException {
+        mechContext.requestSequenceDet(state);
+    }
+
+    @Override
+    public void requestCredDeleg(boolean state) throws GSSException {
+        mechContext.requestCredDeleg(state);
+    }
+
+    @Override
+    public void requestAnonymity(boolean state) throws GSSException {
+        mechContext.requestAnonymity(state);
+    }
+
+    @Override
+    public void requestConf(boolean state) throws GSSException {
+        mechContext.requestConf(state);
+    }
+
+    @Override
+    public void requestInteg(boolean state) throws GSSException {
+        mechContext.requestInteg(state);
+    }
+
+    @Override
+    public void requestDelegPolicy(boolean state) throws GSSException {
+        mechContext.requestDelegPolicy(state);
+    }
+
+    @Override
+    public void setChannelBinding(ChannelBinding channelBinding) throws GSSException {
+        mechContext.setChannelBinding(channelBinding);
+    }
+
+    @Override
+    public boolean getCredDelegState() {
+        return mechContext.getCredDelegState();
+    }
+
+    @Override
+    public boolean getMutualAuthState() {
+        return mechContext.getMutualAuthState();
+    }
+
+    @Override
+    public boolean getReplayDetState() {
+        return mechContext.getReplayDetState();
+    }
+
+    @Override
+    public boolean getSequenceDetState() {
+        return mechContext.getSequenceDetState();
+    }
+
+    @Override
+    public boolean getAnonymityState() {
+        return mechContext.getAnonymityState();
+    }
+
+    @Override
+    public boolean getDelegPolicyState() {
+        return mechContext.getDelegPolicyState();
+    }
+
+    @Override
+    public boolean isTransferable() throws GSSException {
+        // The Kerberos context is, see getMechanismContext()
+        return false;
+    }
+
+    @Override
+    public boolean isProtReady() {
+        return state == STATE_DONE && mechContext.isProtReady();
+    }
+
+    @Override
+    public boolean isInitiator() {
+        return mechContext.isInitiator();
+    }
+
+    @Override
+    public boolean getConfState() {
+        return mechContext.getConfState();
+    }
+
+    @Override
+    public boolean getIntegState() {
+        return mechContext.getIntegState();
+    }
+
+    @Override
+    public int getLifetime() {
+        return mechContext.getLifetime();
+    }
+
+    @Override
+    public boolean isEstablished() {
+        return state == STATE_DONE;
+    }
+
+    @Override
+    public GSSNameSpi getSrcName() throws GSSException {
+        return mechContext.getSrcName();
+    }
+
+    @Override
+    public GSSNameSpi getTargName() throws GSSException {
+        return mechContext.getTargName();
+    }
+
+    @Override
+    public Oid getMech() throws GSSException {
+        return CustomSpNegoMechFactory.GSS_SPNEGO_MECH_OID;
+    }
+
+    @Override
+    public GSSCredentialSpi getDelegCred() throws GSSException {
+        return mechContext.getDelegCred();
+    }
+
+    @Override
+    public byte[] initSecContext(InputStream is, int mechTokenSize) throws GSSException {
+        if (state == STATE_NEW) {
+            // The calling code only adds the GSS header of the first token, and not even that in raw token mode
+            state = STATE_IN_PROCESS;
+            return SpNegoTokens.encodeInit(mechContext.initFramed(null, 0), RAW_TOKENS);
+        }
+
+        SpNegoTokens.Token response = SpNegoTokens.decodeResp(IOUtils.readUnframedToken(is, mechTokenSize));
+        if (response.negState == SpNegoTokens.REJECT) {
+            throw new GSSException(GSSException.FAILURE, -1, "SPNEGO negotiation rejected by the acceptor");
+        }
+        if (response.mechIndex == SpNegoTokens.Token.UNSUPPORTED) {
+            throw new GSSException(GSSException.BAD_MECH, -1, "Acceptor selected a mechanism that wasn't offered");
+        }
+        if (response.negState == SpNegoTokens.REQUEST_MIC) {
+            mechTypes = SpNegoTokens.MECH_TYPE_LIST;
+        }
+
+        InputStream responseToken = response.getMechToken();
+        byte[] mechToken = null;
+        if (responseToken != null) {
+            mechToken = mechContext.initFramed(responseToken, -1);
+        } else if (!mechContext.isEstablished()) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "Missing response token");
+        }
+        if (!mechContext.isEstablished()) {
+            checkNoMechListMic(response);
+            return SpNegoTokens.encodeResp(SpNegoTokens.NO_NEG_STATE, null, mechToken, null);
+        }
+
+        if (response.mechListMic != null) {
+            // The acceptor sends its MIC when it requires the exchange
+            verifyMechListMic(response, SpNegoTokens.MECH_TYPE_LIST);
+            mechTypes = SpNegoTokens.MECH_TYPE_LIST;
+        }
+        if (mechTypes == null || micSent || response.negState == SpNegoTokens.ACCEPT_COMPLETED) {
+            state = STATE_DONE;
+            return mechToken == null ? null : SpNegoTokens.encodeResp(SpNegoTokens.NO_NEG_STATE, null, mechToken, null);
+        }
+        // Wait for the acceptor to complete once it has verified the MIC
+        micSent = true;
+        return SpNegoTokens.encodeResp(SpNegoTokens.NO_NEG_STATE, null, mechToken, getMechListMic(mechTypes));
+    }
+
+    @Override
+    public byte[] acceptSecContext(InputStream is, int mechTokenSize) throws GSSException {
+        byte[] token = IOUtils.readUnframedToken(is, mechTokenSize);
+        byte[] supportedMech = null;
+        InputStream mechToken;
+        SpNegoTokens.Token response;
+        if (state == STATE_NEW) {
+            SpNegoTokens.Token init = SpNegoTokens.decodeInit(token);
+            if (init.mech == null) {
+                throw new GSSException(GSSException.BAD_MECH, -1, "Initiator didn't offer Kerberos");
+            }
+            state = STATE_IN_PROCESS;
+            // Echoed as listed, so that older Windows clients get the OID they asked for
+            supportedMech = init.mech;
+            if (init.mechIndex != 0) {
+                // The optimistic token is for the mechanism the initiator prefers, ask for a Kerberos one instead,
+                // and for the MIC, so that a downgrade from the preferred one is detected
+                mechTypes = init.mechTypes;
+                return SpNegoTokens.encodeResp(SpNegoTokens.REQUEST_MIC, supportedMech, null, null);
+            }
+            mechToken = init.getMechToken();
+            if (mechToken == null) {
+                return SpNegoTokens.encodeResp(SpNegoTokens.ACCEPT_INCOMPLETE, supportedMech, null, null);
+            }
+            response = null;
+        } else {
+            response = SpNegoTokens.decodeResp(token);
+            if (mechContext.isEstablished()) {
+                // Only the initiator's MIC was missing
+                verifyMechListMic(response, mechTypes);
+                state = STATE_DONE;
+                return SpNegoTokens.encodeResp(SpNegoTokens.ACCEPT_COMPLETED, null, null, null);
+            }
+            mechToken = response.getMechToken();
+            if (mechToken == null) {
+                throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "Missing mechanism token");
+            }
+        }
+
+        byte[] responseToken = mechContext.acceptFramed(mechToken, -1);
+        byte[] mechListMic = null;
+        if (!mechContext.isEstablished()) {
+            if (response != null) {
+                checkNoMechListMic(response);
+            }
+        } else if (mechTypes == null) {
+            state = STATE_DONE;
+        } else {
+            // An initiator without mutual authentication may send its MIC with its last token
+            if (response != null && response.mechListMic != null) {
+                verifyMechListMic(response, mechTypes);
+                state = STATE_DONE;
+            }
+            mechListMic = getMechListMic(mechTypes);
+        }
+        return SpNegoTokens.encodeResp(
+            state == STATE_DONE ? SpNegoTokens.ACCEPT_COMPLETED : SpNegoTokens.ACCEPT_INCOMPLETE, supportedMech,
+            responseToken, mechListMic);
+    }
+
+    private byte[] getMechListMic(byte[] mechTypes) throws GSSException {
+        return mechContext.getMIC(mechTypes, 0, mechTypes.length, new MessageProp(0, false));
+    }
+
+    private void verifyMechListMic(SpNegoTokens.Token token, byte[] mechTypes) throws GSSException {
+        if (token.mechListMic == null) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "Missing mechListMIC");
+        }
+        try {
+            mechContext.verifyMIC(token.mechListMic, 0, token.mechListMic.length, mechTypes, 0, mechTypes.length,
+                new MessageProp(0, false));
+        } catch (GSSException e) {
+            throw (GSSException) new GSSException(GSSException.DEFECTIVE_TOKEN, -1,
+                "Failed to verify the mechListMIC, the mechanism list may have been tampered with").initCause(e);
+        }
+    }
+
+    private static void checkNoMechListMic(SpNegoTokens.Token token) throws GSSException {
+        // It can only be verified with the established context
+        if (token.mechListMic != null) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "mechListMIC before the context is established");
+        }
+    }
+
+    @Override
+    public int getWrapSizeLimit(int qop, boolean confReq, int maxTokSize) throws GSSException {
+        return mechContext.getWrapSizeLimit(qop, confReq, maxTokSize);
+    }
+
+    @Override
+    public void wrap(InputStream is, OutputStream os, MessageProp msgProp) throws GSSException {
+        mechContext.wrap(is, os, msgProp);
+    }
+
+    @Override
+    public byte[] wrap(byte[] inBuf, int offset, int len, MessageProp msgProp) throws GSSException {
+        return mechContext.wrap(inBuf, offset, len, msgProp);
+    }
+
+    @Override
+    public void unwrap(InputStream is, OutputStream os, MessageProp msgProp) throws GSSException {
+        mechContext.unwrap(is, os, msgProp);
+    }
+
+    @Override
+    public byte[] unwrap(byte[] inToken, int offset, int len, MessageProp msgProp) throws GSSException {
+        return mechContext.unwrap(inToken, offset, len, msgProp);
+    }
+
+    @Override
+    public void getMIC(InputStream is, OutputStream os, MessageProp msgProp) throws GSSException {
+        mechContext.getMIC(is, os, msgProp);
+    }
+
+    @Override
+    public byte[] getMIC(byte[] inBuf, int offset, int len, MessageProp msgProp) throws GSSException {
+        return mechContext.getMIC(inBuf, offset, len, msgProp);
+    }
+
+    @Override
+    public void verifyMIC(InputStream is, InputStream msgStr, MessageProp msgProp) throws GSSException {
+        mechContext.verifyMIC(is, msgStr, msgProp);
+    }
+
+    @Override
+    public void verifyMIC(byte[] inTok, int tokOffset, int tokLen, byte[] inMsg, int msgOffset, int msgLen,
+        MessageProp msgProp) throws GSSException {
+        mechContext.verifyMIC(inTok, tokOffset, tokLen, inMsg, msgOffset, msgLen, msgProp);
+    }
+
+    @Override
+    public byte[] export() throws GSSException {
+        throw new GSSException(GSSException.UNAVAILABLE, -1, "SPNEGO contexts can't be exported");
+    }
+
+    @Override // Java 8
+    public Object inquireSecContext(InquireType type) throws GSSException {
+        return mechContext.inquireSecContext(type);
+    }
+
+    // @Override // Java 11
+    public Object inquireSecContext(String type) throws GSSException {
+        return mechContext.inquireSecContext(type);
+    }
+
+    @Override
+    public void dispose() throws GSSException {
+        mechContext.dispose();
+    }
+
+    @Override
+    public String toString() {
+        return "SPNEGO " + mechContext;
+    }
+}
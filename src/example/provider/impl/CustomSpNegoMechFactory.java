@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.CustomKerberosJgssProvider;
+import java.security.Provider;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.Oid;
+import sun.security.jgss.GSSCaller;
+import sun.security.jgss.spi.GSSCredentialSpi;
+import sun.security.jgss.spi.GSSNameSpi;
+import sun.security.jgss.spi.MechanismFactory;
+
+/**
+ * JGSS-compatible SPNEGO mechanism implementation negotiating the {@link CustomKrb5MechFactory} mechanism, which it
+ * calls directly, instead of looking it up through {@link org.ietf.jgss.GSSManager} for each token like the built-in
+ * {@code sun.security.jgss.spnego.SpNegoMechFactory}. See {@link CustomSpNegoContextSpiImpl} for the protocol.
+ * <p/>
+ * Kerberos being the only mechanism, the names and credentials are the Kerberos ones, like the built-in
+ * implementation's names.
+ */
+public class CustomSpNegoMechFactory implements MechanismFactory {
+
+    static final Oid GSS_SPNEGO_MECH_OID;
+
+    static {
+        try {
+            GSS_SPNEGO_MECH_OID = new Oid("1.3.6.1.5.5.2");
+        } catch (GSSException e) {
+            throw new IllegalStateException("Failed to initialize OIDs", e);
+        }
+    }
+
+    private final CustomKrb5MechFactory krb5Factory;
+
+    /**
+     * JGSS-compatible SPNEGO mechanism implementation for demonstration purposes. Use via the
+     * {@link CustomKerberosJgssProvider}.
+     *
+     * @param caller the caller, passed on to the Kerberos mechanism, may be null if unknown
+     */
+    public CustomSpNegoMechFactory(GSSCaller caller) {
+        this.krb5Factory = CustomKrb5MechFactory.getInstance(caller);
+    }
+
+    @Override
+    public Oid getMechanismOid() {
+        return GSS_SPNEGO_MECH_OID;
+    }
+
+    @Override
+    public Provider getProvider() {
+        return CustomKerberosJgssProvider.INSTANCE;
+    }
+
+    @Override
+    public Oid[] getNameTypes() {
+        return krb5Factory.getNameTypes();
+    }
+
+    @Override
+    public CustomGSSCredentialSpiImpl getCredentialElement(GSSNameSpi name, int initLifetime, int acceptLifetime,
+        int usage) throws GSSException {
+        return krb5Factory.getCredentialElement(name, initLifetime, acceptLifetime, usage);
+    }
+
+    @Override
+    public CustomGSSNameSpiImpl getNameElement(String nameStr, Oid nameType) throws GSSException {
+        return krb5Factory.getNameElement(nameStr, nameType);
+    }
+
+    @Override
+    public CustomGSSNameSpiImpl getNameElement(byte[] name, Oid nameType) throws GSSException {
+        return krb5Factory.getNameElement(name, nameType);
+    }
+
+    @Override
+    public CustomSpNegoContextSpiImpl getMechanismContext(GSSNameSpi peer, GSSCredentialSpi myInitiatorCred,
+        int lifetime) throws GSSException {
+        return new CustomSpNegoContextSpiImpl(krb5Factory.getMechanismContext(peer, myInitiatorCred, lifetime));
+    }
+
+    @Override
+    public CustomSpNegoContextSpiImpl getMechanismContext(GSSCredentialSpi myAcceptorCred) throws GSSException {
+        return new CustomSpNegoContextSpiImpl(krb5Factory.getMechanismContext(myAcceptorCred));
+    }
+
+    @Override
+    public CustomSpNegoContextSpiImpl getMechanismContext(byte[] exportedContext) throws GSSException {
+        // Like the built-in implementation, export the Kerberos context instead, see
+        // CustomSpNegoContextSpiImpl.getMechanismContext()
+        throw new GSSException(GSSException.UNAVAILABLE, -1, "SPNEGO contexts can't be imported");
+    }
+}
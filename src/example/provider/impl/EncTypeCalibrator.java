@@ -0,0 +1,335 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.Configurations;
+import example.provider.EncryptionTypeCalibration;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.krb5.Config;
+import sun.security.krb5.EncryptedData;
+import sun.security.krb5.KrbException;
+import sun.security.krb5.internal.crypto.EType;
+
+/**
+ * Orders the encryption types requested for service tickets by how fast they protect and unprotect tokens on this
+ * machine, since the session key of the service ticket is the one used by the contexts' {@code wrap}, {@code unwrap},
+ * {@code getMIC} and {@code verifyMIC}, and which type is cheapest depends on the CPU (e.g. AES and SHA instructions).
+ * <p/>
+ * When enabled by {@link Configurations#isEncTypeCalibration()}, the costs are measured at {@link
+ * example.provider.CustomKerberosJgssProvider#install()}, or loaded from the file of a previous calibration on the same
+ * hardware and Java version, see {@link Configurations#getEncTypeCalibrationPath()}. Only the types allowed by the
+ * {@code default_tgs_enctypes} of the Kerberos configuration are measured and requested; the calibration changes
+ * their order but never adds or removes any, and never moves the older types (DES, 3DES, RC4) ahead of the newer
+ * ones. The KDC still picks the session key type among those the service supports.
+ * <p/>
+ * NOTE: a real implementation would do the same in its native code, this one puts the order in the delegate's
+ * configuration through {@link Krb5ConfigAccess}, and does nothing without it.
+ */
+public final class EncTypeCalibrator {
+
+    private static final Logger LOGGER = Logger.getLogger(EncTypeCalibrator.class.getCanonicalName());
+
+    private static final String CONFIG_NAME = "default_tgs_enctypes";
+
+    private static final int TOKEN_SIZE = 1024;
+
+    // RFC 4121 KG-USAGE-INITIATOR-SEAL, the usage of wrap tokens sent by initiators
+    private static final int USAGE = 24;
+
+    private static final int WARMUP_OPERATIONS = 200;
+
+    private static final int ROUNDS = 5;
+
+    private static final int OPERATIONS_PER_ROUND = 50;
+
+    // The names Config.getType() understands
+    private static final Map<Integer, String> NAMES = new HashMap<>();
+
+    static {
+        NAMES.put(EncryptedData.ETYPE_DES_CBC_CRC, "des-cbc-crc");
+        NAMES.put(EncryptedData.ETYPE_DES_CBC_MD4, "des-cbc-md4");
+        NAMES.put(EncryptedData.ETYPE_DES_CBC_MD5, "des-cbc-md5");
+        NAMES.put(EncryptedData.ETYPE_DES3_CBC_HMAC_SHA1_KD, "des3-cbc-sha1-kd");
+        NAMES.put(EncryptedData.ETYPE_AES128_CTS_HMAC_SHA1_96, "aes128-cts-hmac-sha1-96");
+        NAMES.put(EncryptedData.ETYPE_AES256_CTS_HMAC_SHA1_96, "aes256-cts-hmac-sha1-96");
+        // Only supported from Java 11, the constants aren't there before
+        NAMES.put(19, "aes128-cts-hmac-sha256-128");
+        NAMES.put(20, "aes256-cts-hmac-sha384-192");
+        NAMES.put(EncryptedData.ETYPE_ARCFOUR_HMAC, "arcfour-hmac");
+    }
+
+    private static final Object LOCK = new Object();
+
+    // guarded by LOCK, the measured nanoseconds per protect and unprotect by type
+    private static Map<Integer, Long> costs;
+
+    // guarded by LOCK
+    private static boolean loaded;
+
+    // The configuration the order was last put in, compared by identity since refreshing creates a new one
+    private static volatile Config prepared;
+
+    private static volatile EncryptionTypeCalibration calibration;
+
+    private static volatile int sink;
+
+    private EncTypeCalibrator() {
+    }
+
+    /**
+     * Whether the encryption types are reordered.
+     */
+    public static boolean isEnabled() {
+        return Configurations.isEncTypeCalibration() && Krb5ConfigAccess.isAvailable();
+    }
+
+    /**
+     * Load or measure the costs of the encryption types, and put their order in the configuration, if enabled. All
+     * further calls to this method are a no-op.
+     */
+    public static void calibrate() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (LOCK) {
+            if (costs != null) {
+                return;
+            }
+            try {
+                int[] allowed = Config.getInstance().defaultEtype(CONFIG_NAME);
+                Path file = getPath();
+                String fingerprint = fingerprint();
+                Map<Integer, Long> measured = file == null ? null : load(file, fingerprint, allowed);
+                loaded = measured != null;
+                if (measured == null) {
+                    measured = measure(allowed);
+                    if (file != null) {
+                        save(file, fingerprint, measured);
+                    }
+                }
+                costs = measured;
+                LOGGER.fine(() -> (loaded ? "Loaded" : "Measured") + " encryption type costs: " + names(costs));
+            } catch (KrbException | RuntimeException e) {
+                costs = new HashMap<>();
+                LOGGER.log(Level.WARNING, e, () -> "Failed to calibrate encryption types, leaving their order as is");
+            }
+        }
+        prepare();
+    }
+
+    /**
+     * Get the costs and order of the encryption types, or null if they haven't been calibrated.
+     */
+    public static EncryptionTypeCalibration getCalibration() {
+        return calibration;
+    }
+
+    /**
+     * Put the order of the encryption types in the current configuration, if it's calibrated and the configuration was
+     * refreshed since it was last put.
+     */
+    static void prepare() {
+        Config config;
+        try {
+            config = Config.getInstance();
+        } catch (KrbException e) {
+            return;
+        }
+        if (config == prepared) {
+            return;
+        }
+
+        synchronized (LOCK) {
+            if (costs == null || config == prepared) {
+                return;
+            }
+            try {
+                int[] order = order(config.defaultEtype(CONFIG_NAME), costs);
+                StringBuilder names = new StringBuilder();
+                List<String> orderNames = new ArrayList<>(order.length);
+                for (int type : order) {
+                    String name = NAMES.get(type);
+                    if (name == null) {
+                        // Can't be expressed in the configuration, so leave it as is
+                        LOGGER.fine(() -> "Unknown encryption type " + type + ", leaving their order as is");
+                        prepared = config;
+                        return;
+                    }
+                    names.append(names.length() == 0 ? "" : " ").append(name);
+                    orderNames.add(name);
+                }
+
+                Vector<String> entry = Krb5ConfigAccess.put(config, names.toString(), "libdefaults", CONFIG_NAME);
+                if (entry != null) {
+                    calibration = new EncryptionTypeCalibration(orderNames, names(costs), loaded);
+                    LOGGER.fine(() -> "Requesting the encryption types in the order " + orderNames);
+                }
+            } catch (KrbException | RuntimeException e) {
+                LOGGER.log(Level.FINE, e, () -> "Failed to reorder the encryption types, leaving their order as is");
+            }
+            prepared = config;
+        }
+    }
+
+    private static int[] order(int[] allowed, Map<Integer, Long> costs) {
+        // Stable, so the configured order is kept between types that weren't measured
+        return Arrays.stream(allowed).boxed()
+            .sorted(Comparator.<Integer>comparingInt(type -> EType.isNewer(type) ? 0 : 1)
+                .thenComparingLong(type -> costs.getOrDefault(type, Long.MAX_VALUE)))
+            .mapToInt(Integer::intValue).toArray();
+    }
+
+    private static Map<Integer, Long> measure(int[] types) {
+        SecureRandom random = new SecureRandom();
+        byte[] token = new byte[TOKEN_SIZE];
+        random.nextBytes(token);
+
+        Map<Integer, Long> measured = new LinkedHashMap<>();
+        for (int type : types) {
+            try {
+                EType eType = EType.getInstance(type);
+                byte[] key = new byte[eType.keySize()];
+                random.nextBytes(key);
+
+                run(eType, key, token, WARMUP_OPERATIONS);
+                long[] rounds = new long[ROUNDS];
+                for (int i = 0; i < ROUNDS; i++) {
+                    long start = System.nanoTime();
+                    run(eType, key, token, OPERATIONS_PER_ROUND);
+                    rounds[i] = (System.nanoTime() - start) / OPERATIONS_PER_ROUND;
+                }
+                Arrays.sort(rounds);
+                measured.put(type, rounds[ROUNDS / 2]);
+            } catch (KrbException | GeneralSecurityException | RuntimeException e) {
+                LOGGER.log(Level.FINE, e, () -> "Failed to measure encryption type " + type);
+            }
+        }
+        return measured;
+    }
+
+    private static void run(EType eType, byte[] key, byte[] token, int operations)
+        throws KrbException, GeneralSecurityException {
+        int result = 0;
+        for (int i = 0; i < operations; i++) {
+            byte[] protectedToken = eType.encrypt(token, key, USAGE);
+            result += eType.decrypt(protectedToken, key, USAGE)[i % TOKEN_SIZE];
+        }
+        sink = result;
+    }
+
+    private static Map<Integer, Long> load(Path file, String fingerprint, int[] allowed) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to load the encryption type costs from " + file);
+            return null;
+        }
+        if (!fingerprint.equals(properties.getProperty("fingerprint"))) {
+            LOGGER.fine(() -> "The encryption type costs in " + file + " are for other hardware, measuring again");
+            return null;
+        }
+
+        Map<Integer, Long> result = new LinkedHashMap<>();
+        for (int type : allowed) {
+            String cost = properties.getProperty(Integer.toString(type));
+            if (cost == null) {
+                // Allowed since then, so measure again
+                return null;
+            }
+            try {
+                result.put(type, Long.parseLong(cost));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private static void save(Path file, String fingerprint, Map<Integer, Long> costs) {
+        Properties properties = new Properties();
+        properties.setProperty("fingerprint", fingerprint);
+        costs.forEach((type, cost) -> properties.setProperty(Integer.toString(type), Long.toString(cost)));
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, "Nanoseconds per protect and unprotect of a " + TOKEN_SIZE
+                + " byte token by encryption type");
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to save the encryption type costs to " + file);
+        }
+    }
+
+    private static Path getPath() {
+        String path = Configurations.getEncTypeCalibrationPath();
+        return path == null ? null : Paths.get(path);
+    }
+
+    private static String fingerprint() {
+        String cpu = "";
+        Path cpuInfo = Paths.get("/proc/cpuinfo");
+        if (Files.isReadable(cpuInfo)) {
+            try (Stream<String> lines = Files.lines(cpuInfo, StandardCharsets.ISO_8859_1)) {
+                // Also includes the flags, i.e. whether the AES and SHA instructions are there
+                cpu = lines.filter(line -> line.startsWith("model name") || line.startsWith("flags"))
+                    .distinct().reduce("", String::concat);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.FINE, e, () -> "Failed to read " + cpuInfo);
+            }
+        }
+        return Integer.toHexString((System.getProperty("os.arch") + '|' + System.getProperty("java.vm.name") + '|'
+            + System.getProperty("java.version") + '|' + cpu).hashCode());
+    }
+
+    private static Map<String, Long> names(Map<Integer, Long> costs) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        costs.forEach((type, cost) -> result.put(NAMES.getOrDefault(type, Integer.toString(type)), cost));
+        return result;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded cache of entries that expire at a given time, evicting the least recently used entries when full.
+ * <p/>
+ * Lookups don't lock, and don't block each other or the writers. Eviction is only done when the cache grows over its
+ * maximum size, by dropping the expired entries, then the least recently used ones until 10% of the space is freed,
+ * so its cost is amortized over many insertions.
+ */
+final class ExpiringCache<K, V> {
+
+    private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+
+    private final Object evictionLock = new Object();
+
+    /**
+     * @param maxSize the maximum number of entries, 0 disables the cache
+     */
+    ExpiringCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Get the value for the key, or null if there's none, or it has expired.
+     */
+    V get(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (entry.expiresAt <= now) {
+            map.remove(key, entry);
+            return null;
+        }
+
+        entry.lastAccess = System.nanoTime();
+        return entry.value;
+    }
+
+    /**
+     * Add or replace the value for the key.
+     *
+     * @param expiresAt the time the value expires at in milliseconds since the epoch
+     */
+    void put(K key, V value, long expiresAt) {
+        if (maxSize <= 0) {
+            return;
+        }
+
+        map.put(key, new Entry<>(value, expiresAt));
+
+        if (map.size() > maxSize) {
+            evict();
+        }
+    }
+
+    void remove(K key) {
+        map.remove(key);
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    private void evict() {
+        synchronized (evictionLock) {
+            if (map.size() <= maxSize) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            map.entrySet().removeIf(e -> e.getValue().expiresAt <= now);
+
+            int excess = map.size() - maxSize + maxSize / 10;
+            if (excess <= 0) {
+                return;
+            }
+
+            List<Map.Entry<K, Entry<V>>> entries = new ArrayList<>(map.entrySet());
+            entries.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+            for (int i = 0; i < excess && i < entries.size(); i++) {
+                Map.Entry<K, Entry<V>> e = entries.get(i);
+                map.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private static final class Entry<V> {
+
+        final V value;
+
+        final long expiresAt;
+
+        // Only used for ordering the entries on eviction, so the races on it don't matter
+        volatile long lastAccess = System.nanoTime();
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
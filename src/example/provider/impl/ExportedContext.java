@@ -0,0 +1,292 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import com.sun.security.jgss.AuthorizationDataEntry;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.ietf.jgss.GSSException;
+
+/**
+ * The state of an established context in the compact binary format produced by
+ * {@link CustomGSSContextSpiImpl#export()}.
+ * <p/>
+ * The format is a flat big-endian layout without any ASN.1, so importing only needs a few bounds-checked reads:
+ * <pre>
+ * byte     version (1)
+ * byte     flags, see the FLAG_* constants
+ * byte     key source (Krb5Context.SESSION_KEY, INITIATOR_SUBKEY or ACCEPTOR_SUBKEY)
+ * short    key encryption type
+ * short    key length, followed by the key bytes
+ * int      next sequence number to send
+ * int      next sequence number expected from the peer
+ * long     end time of the context in milliseconds since the epoch, Long.MAX_VALUE if indefinite
+ * short    source name length, followed by the UTF-8 principal name
+ * short    target name length, followed by the UTF-8 principal name
+ * byte     number of ticket flags (-1 if unknown), followed by an int with the flags as bits from the most significant
+ * short    auth time length (-1 if unknown), followed by the ASCII KerberosTime string
+ * short    number of authorization data entries (-1 if unknown), each an int type, int length and the data bytes
+ * </pre>
+ * NOTE: like the export tokens of the native implementations, this contains the session key in the clear, so it must
+ * be protected in transit and at rest.
+ */
+final class ExportedContext {
+
+    static final byte VERSION = 1;
+
+    static final int FLAG_INITIATOR = 1;
+
+    static final int FLAG_CRED_DELEG = 1 << 1;
+
+    static final int FLAG_MUTUAL_AUTH = 1 << 2;
+
+    static final int FLAG_REPLAY_DET = 1 << 3;
+
+    static final int FLAG_SEQUENCE_DET = 1 << 4;
+
+    static final int FLAG_CONF = 1 << 5;
+
+    static final int FLAG_INTEG = 1 << 6;
+
+    static final int FLAG_DELEG_POLICY = 1 << 7;
+
+    static final long INDEFINITE_END_TIME = Long.MAX_VALUE;
+
+    // Fixed size part: version, flags, key source, key type, key length, sequence numbers, end time, name lengths,
+    // ticket flag count, auth time length, authorization data count
+    private static final int FIXED_SIZE = 1 + 1 + 1 + 2 + 2 + 4 + 4 + 8 + 2 + 2 + 1 + 2 + 2;
+
+    final int flags;
+
+    final int keySrc;
+
+    final int keyType;
+
+    final byte[] key;
+
+    final int mySeqNumber;
+
+    final int peerSeqNumber;
+
+    final long endTime;
+
+    final String srcName;
+
+    final String targName;
+
+    final boolean[] tktFlags;
+
+    final String authTime;
+
+    final AuthorizationDataEntry[] authzData;
+
+    ExportedContext(int flags, int keySrc, int keyType, byte[] key, int mySeqNumber, int peerSeqNumber, long endTime,
+        String srcName, String targName, boolean[] tktFlags, String authTime, AuthorizationDataEntry[] authzData) {
+        this.flags = flags;
+        this.keySrc = keySrc;
+        this.keyType = keyType;
+        this.key = key;
+        this.mySeqNumber = mySeqNumber;
+        this.peerSeqNumber = peerSeqNumber;
+        this.endTime = endTime;
+        this.srcName = srcName;
+        this.targName = targName;
+        this.tktFlags = tktFlags;
+        this.authTime = authTime;
+        this.authzData = authzData;
+    }
+
+    /**
+     * Get the same state, but with the given next sequence number to send.
+     */
+    ExportedContext withMySeqNumber(int mySeqNumber) {
+        return new ExportedContext(flags, keySrc, keyType, key, mySeqNumber, peerSeqNumber, endTime, srcName, targName,
+            tktFlags, authTime, authzData);
+    }
+
+    /**
+     * Get the same state, but with the given replay and sequence detection, and next sequence number expected.
+     */
+    ExportedContext withPeerTracking(boolean replayDet, boolean sequenceDet, int peerSeqNumber) {
+        int trackingFlags = (replayDet ? FLAG_REPLAY_DET : 0) | (sequenceDet ? FLAG_SEQUENCE_DET : 0);
+        return new ExportedContext(flags & ~(FLAG_REPLAY_DET | FLAG_SEQUENCE_DET) | trackingFlags, keySrc, keyType,
+            key, mySeqNumber, peerSeqNumber, endTime, srcName, targName, tktFlags, authTime, authzData);
+    }
+
+    boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    byte[] encode() {
+        byte[] srcNameBytes = srcName.getBytes(StandardCharsets.UTF_8);
+        byte[] targNameBytes = targName.getBytes(StandardCharsets.UTF_8);
+        byte[] authTimeBytes = authTime == null ? null : authTime.getBytes(StandardCharsets.US_ASCII);
+
+        int size = FIXED_SIZE + key.length + srcNameBytes.length + targNameBytes.length;
+        if (tktFlags != null) {
+            size += 4;
+        }
+        if (authTimeBytes != null) {
+            size += authTimeBytes.length;
+        }
+        if (authzData != null) {
+            for (AuthorizationDataEntry entry : authzData) {
+                size += 8 + entry.getData().length;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(VERSION);
+        buffer.put((byte) flags);
+        buffer.put((byte) keySrc);
+        buffer.putShort((short) keyType);
+        putBytes(buffer, key);
+        buffer.putInt(mySeqNumber);
+        buffer.putInt(peerSeqNumber);
+        buffer.putLong(endTime);
+        putBytes(buffer, srcNameBytes);
+        putBytes(buffer, targNameBytes);
+
+        if (tktFlags == null) {
+            buffer.put((byte) -1);
+        } else {
+            buffer.put((byte) tktFlags.length);
+            int bits = 0;
+            for (int i = 0; i < tktFlags.length; i++) {
+                if (tktFlags[i]) {
+                    bits |= 1 << (31 - i);
+                }
+            }
+            buffer.putInt(bits);
+        }
+
+        if (authTimeBytes == null) {
+            buffer.putShort((short) -1);
+        } else {
+            putBytes(buffer, authTimeBytes);
+        }
+
+        if (authzData == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) authzData.length);
+            for (AuthorizationDataEntry entry : authzData) {
+                byte[] data = entry.getData();
+                buffer.putInt(entry.getType());
+                buffer.putInt(data.length);
+                buffer.put(data);
+            }
+        }
+
+        return buffer.array();
+    }
+
+    static ExportedContext decode(byte[] token) throws GSSException {
+        if (token == null || token.length == 0) {
+            throw new GSSException(GSSException.NO_CONTEXT);
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(token);
+
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1,
+                    "Unsupported exported context version " + version);
+            }
+
+            int flags = buffer.get() & 0xFF;
+            int keySrc = buffer.get();
+            int keyType = buffer.getShort();
+            byte[] key = getBytes(buffer, buffer.getShort() & 0xFFFF);
+            int mySeqNumber = buffer.getInt();
+            int peerSeqNumber = buffer.getInt();
+            long endTime = buffer.getLong();
+            String srcName = getString(buffer, buffer.getShort() & 0xFFFF);
+            String targName = getString(buffer, buffer.getShort() & 0xFFFF);
+
+            boolean[] tktFlags = null;
+            int tktFlagCount = buffer.get();
+            if (tktFlagCount >= 0) {
+                int bits = buffer.getInt();
+                tktFlags = new boolean[tktFlagCount];
+                for (int i = 0; i < tktFlagCount; i++) {
+                    tktFlags[i] = (bits & (1 << (31 - i))) != 0;
+                }
+            }
+
+            String authTime = null;
+            int authTimeLength = buffer.getShort();
+            if (authTimeLength >= 0) {
+                authTime = new String(getBytes(buffer, authTimeLength), StandardCharsets.US_ASCII);
+            }
+
+            AuthorizationDataEntry[] authzData = null;
+            int authzDataCount = buffer.getShort();
+            if (authzDataCount >= 0) {
+                authzData = new AuthorizationDataEntry[authzDataCount];
+                for (int i = 0; i < authzDataCount; i++) {
+                    int type = buffer.getInt();
+                    authzData[i] = new AuthorizationDataEntry(type, getBytes(buffer, buffer.getInt()));
+                }
+            }
+
+            if (buffer.hasRemaining()) {
+                throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1,
+                    "Exported context has " + buffer.remaining() + " trailing bytes");
+            }
+            return new ExportedContext(flags, keySrc, keyType, key, mySeqNumber, peerSeqNumber, endTime, srcName,
+                targName, tktFlags, authTime, authzData);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw (GSSException) new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "Malformed exported context")
+                .initCause(e);
+        }
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String getString(ByteBuffer buffer, int length) {
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String string = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+
+/**
+ * A store for parking established contexts between requests, so a pool of stateless acceptor processes on the same
+ * host can resume a client's context instead of establishing a new one on each connection.
+ * <p/>
+ * The contexts are kept in their exported form (see {@link ExportedContext}) in a memory-mapped file shared by the
+ * processes, keyed by a session id chosen by the application (e.g. from a cookie). Nothing is kept on the heap per
+ * session, the file is organized as a set-associative cache: each session id maps to a segment of a few fixed size
+ * slots, and when a segment is full, the entry expiring first is evicted. Entries expire with the lifetime of their
+ * context, capped by a maximum set for the store.
+ * <p/>
+ * Resuming a context removes it from the store, since a context must not be used by two processes at the same time
+ * (their sequence numbers would clash), so it has to be parked again after use.
+ * <p/>
+ * NOTE: the file contains the session keys in the clear, so it must only be accessible to the acceptor processes,
+ * preferably on a memory-backed file system (e.g. /dev/shm). Also note that interrupting a thread while it's waiting
+ * for a lock closes the underlying {@link FileChannel}, so the store can't be used by code that interrupts its
+ * threads, e.g. by cancelling futures.
+ */
+public final class ExportedContextStore implements Closeable {
+
+    private static final int MAGIC = 0x4A435853; // "JCXS"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SLOTS_PER_SEGMENT = 8;
+
+    // Slot layout: long expiry (0 if empty), int key hash, short key length, short data length, key, data
+    private static final int SLOT_EXPIRY = 0;
+
+    private static final int SLOT_HASH = 8;
+
+    private static final int SLOT_KEY_LENGTH = 12;
+
+    private static final int SLOT_DATA_LENGTH = 14;
+
+    private static final int SLOT_HEADER_SIZE = 16;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final int slotSize;
+
+    private final int segmentCount;
+
+    private final long maxTtlMillis;
+
+    private final ReentrantLock[] segmentLocks;
+
+    /**
+     * Open the store in the given file, creating it if it doesn't exist. All processes sharing the file must use the
+     * same {@code slotCount} and {@code slotSize}.
+     *
+     * @param file the file backing the store
+     * @param slotCount the maximum number of contexts stored, rounded up to a multiple of the segment size
+     * @param slotSize the size of a slot, must fit the exported context, the session id and 16 bytes of overhead
+     * @param maxTtlSeconds the maximum time a context is kept, also used for contexts with indefinite lifetimes
+     */
+    public ExportedContextStore(Path file, int slotCount, int slotSize, int maxTtlSeconds) throws IOException {
+        if (slotCount <= 0 || slotSize <= SLOT_HEADER_SIZE || maxTtlSeconds <= 0) {
+            throw new IllegalArgumentException("Invalid store parameters");
+        }
+
+        this.segmentCount = (slotCount + SLOTS_PER_SEGMENT - 1) / SLOTS_PER_SEGMENT;
+        this.slotSize = slotSize;
+        this.maxTtlMillis = maxTtlSeconds * 1000L;
+
+        long size = HEADER_SIZE + (long) segmentCount * SLOTS_PER_SEGMENT * slotSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Store too large: " + size + " bytes");
+        }
+
+        this.channel = open(file);
+        try {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            initHeader();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        this.segmentLocks = new ReentrantLock[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segmentLocks[i] = new ReentrantLock();
+        }
+    }
+
+    // The file holds the keys of the contexts, so it's only readable by its owner
+    private static FileChannel open(Path file) throws IOException {
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            // Not a POSIX file system, the file is created with the default permissions
+            return FileChannel.open(file, options);
+        }
+        FileAttribute<Set<PosixFilePermission>> permissions = PosixFilePermissions.asFileAttribute(
+            EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+        return FileChannel.open(file, options, permissions);
+    }
+
+    private void initHeader() throws IOException {
+        FileLock lock = channel.lock(0, HEADER_SIZE, false);
+        try {
+            int magic = buffer.getInt(0);
+            if (magic == 0) {
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, segmentCount);
+                buffer.putInt(12, slotSize);
+                // Written last, so that the header is only considered valid once it's complete
+                buffer.putInt(0, MAGIC);
+            } else if (magic != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != segmentCount
+                || buffer.getInt(12) != slotSize) {
+                throw new IOException("Exported context store file was created with a different version or layout");
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Export the context and store it under the given session id, replacing any context stored under it. The context
+     * is no longer usable after this call, unless it fails.
+     *
+     * @throws GSSException if the context cannot be exported, or the exported context doesn't fit in a slot, in which
+     *     case the context is left usable
+     */
+    public void park(String sessionId, CustomGSSContextSpiImpl context) throws GSSException {
+        int lifetime = context.getLifetime();
+        long ttlMillis = lifetime == GSSContext.INDEFINITE_LIFETIME
+            ? maxTtlMillis
+            : Math.min(lifetime * 1000L, maxTtlMillis);
+
+        byte[] key = sessionId.getBytes(StandardCharsets.UTF_8);
+        int maxDataLength = Math.min(slotSize - SLOT_HEADER_SIZE - key.length, 0xFFFF);
+        if (maxDataLength < 0) {
+            throw new GSSException(GSSException.FAILURE, -1, "Session id doesn't fit in the store's slots");
+        }
+
+        // Checks the length before the context is disposed, so that it's still usable if it doesn't fit
+        byte[] data = context.export(maxDataLength);
+        put(key, data, System.currentTimeMillis() + ttlMillis);
+    }
+
+    /**
+     * Remove the context stored under the given session id and import it.
+     *
+     * @return the context, or null if there's no context under the session id or it has expired
+     */
+    public CustomGSSContextSpiImpl resume(String sessionId) throws GSSException {
+        byte[] data = take(sessionId.getBytes(StandardCharsets.UTF_8));
+        return data == null ? null : CustomKrb5MechFactory.getInstance(null).getMechanismContext(data);
+    }
+
+    /**
+     * Remove the context stored under the given session id, if any.
+     */
+    public void remove(String sessionId) throws GSSException {
+        take(sessionId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Clear the slots of all expired contexts. This isn't necessary for the store to work, since expired slots are
+     * reused when needed, but it keeps expired keys from lingering in the file.
+     */
+    public void purgeExpired() throws GSSException {
+        long now = System.currentTimeMillis();
+        for (int segment = 0; segment < segmentCount; segment++) {
+            SegmentLock lock = lockSegment(segment);
+            try {
+                for (int slot = 0; slot < SLOTS_PER_SEGMENT; slot++) {
+                    int offset = slotOffset(segment, slot);
+                    long expiry = buffer.getLong(offset + SLOT_EXPIRY);
+                    if (expiry != 0 && expiry <= now) {
+                        clearSlot(offset);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void put(byte[] key, byte[] data, long expiry) throws GSSException {
+        int hash = hash(key);
+        int segment = segmentOf(hash);
+        long now = System.currentTimeMillis();
+
+        SegmentLock lock = lockSegment(segment);
+        try {
+            int target = -1;
+            long targetExpiry = Long.MAX_VALUE;
+
+            for (int slot = 0; slot < SLOTS_PER_SEGMENT; slot++) {
+                int offset = slotOffset(segment, slot);
+                long slotExpiry = buffer.getLong(offset + SLOT_EXPIRY);
+
+                if (slotExpiry != 0 && slotExpiry > now && matches(offset, hash, key)) {
+                    target = offset;
+                    break;
+                }
+
+                // Prefer empty or expired slots, otherwise evict the one expiring first
+                long effectiveExpiry = slotExpiry <= now ? 0 : slotExpiry;
+                if (effectiveExpiry < targetExpiry) {
+                    target = offset;
+                    targetExpiry = effectiveExpiry;
+                }
+            }
+
+            ByteBuffer slot = slice(target);
+            slot.putLong(SLOT_EXPIRY, 0);
+            slot.putInt(SLOT_HASH, hash);
+            slot.putShort(SLOT_KEY_LENGTH, (short) key.length);
+            slot.putShort(SLOT_DATA_LENGTH, (short) data.length);
+            slot.position(SLOT_HEADER_SIZE);
+            slot.put(key);
+            slot.put(data);
+            // Clear the rest of a previous, longer entry
+            zero(slot);
+            // Written last, so that the slot is only considered used once it's complete
+            slot.putLong(SLOT_EXPIRY, expiry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] take(byte[] key) throws GSSException {
+        int hash = hash(key);
+        int segment = segmentOf(hash);
+        long now = System.currentTimeMillis();
+
+        SegmentLock lock = lockSegment(segment);
+        try {
+            for (int slot = 0; slot < SLOTS_PER_SEGMENT; slot++) {
+                int offset = slotOffset(segment, slot);
+                long expiry = buffer.getLong(offset + SLOT_EXPIRY);
+
+                if (expiry != 0 && matches(offset, hash, key)) {
+                    byte[] data = null;
+                    if (expiry > now) {
+                        data = new byte[buffer.getShort(offset + SLOT_DATA_LENGTH) & 0xFFFF];
+                        ByteBuffer slotBuffer = slice(offset);
+                        slotBuffer.position(SLOT_HEADER_SIZE + key.length);
+                        slotBuffer.get(data);
+                    }
+                    clearSlot(offset);
+                    return data;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return null;
+    }
+
+    private boolean matches(int offset, int hash, byte[] key) {
+        if (buffer.getInt(offset + SLOT_HASH) != hash
+            || (buffer.getShort(offset + SLOT_KEY_LENGTH) & 0xFFFF) != key.length) {
+            return false;
+        }
+
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + SLOT_HEADER_SIZE + i) != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void clearSlot(int offset) {
+        // Overwrite the whole slot, so the session key doesn't linger in the file
+        zero(slice(offset));
+    }
+
+    private static void zero(ByteBuffer slot) {
+        while (slot.remaining() >= 8) {
+            slot.putLong(0);
+        }
+        while (slot.hasRemaining()) {
+            slot.put((byte) 0);
+        }
+    }
+
+    private ByteBuffer slice(int offset) {
+        ByteBuffer slot = buffer.duplicate();
+        slot.position(offset);
+        slot.limit(offset + slotSize);
+        return slot.slice();
+    }
+
+    private int slotOffset(int segment, int slot) {
+        return HEADER_SIZE + (segment * SLOTS_PER_SEGMENT + slot) * slotSize;
+    }
+
+    private int segmentOf(int hash) {
+        return (hash & Integer.MAX_VALUE) % segmentCount;
+    }
+
+    private static int hash(byte[] key) {
+        // Must be the same in every process, so no identity or randomized hashes
+        int hash = 1;
+        for (byte b : key) {
+            hash = 31 * hash + b;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private SegmentLock lockSegment(int segment) throws GSSException {
+        return new SegmentLock(segment);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Locks a segment both against other threads and other processes. File locks are held on behalf of the whole
+     * process, so they don't exclude other threads of it, hence the additional in-process lock.
+     */
+    private final class SegmentLock {
+
+        private final ReentrantLock lock;
+
+        private final FileLock fileLock;
+
+        SegmentLock(int segment) throws GSSException {
+            lock = segmentLocks[segment];
+            lock.lock();
+            try {
+                fileLock = channel.lock(slotOffset(segment, 0), (long) SLOTS_PER_SEGMENT * slotSize, false);
+            } catch (IOException | RuntimeException e) {
+                lock.unlock();
+                throw (GSSException) new GSSException(GSSException.FAILURE, -1,
+                    "Failed to lock exported context store").initCause(e);
+            }
+        }
+
+        void unlock() throws GSSException {
+            try {
+                fileLock.release();
+            } catch (IOException e) {
+                throw (GSSException) new GSSException(GSSException.FAILURE, -1,
+                    "Failed to unlock exported context store").initCause(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
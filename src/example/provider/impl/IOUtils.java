@@ -30,8 +30,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import org.ietf.jgss.GSSException;
 import sun.security.jgss.GSSHeader;
 import sun.security.util.ObjectIdentifier;
@@ -39,33 +37,18 @@ import sun.security.util.ObjectIdentifier;
 /**
  * Static utility methods related to reading bytes and GSS tokens form input streams.
  * <p/>
- * NOTE that this demonstration doesn't use this class because it just delegates to the built-in classes, however a real
- * one would need it as described in CustomGSSContextSpiImpl's initSecContext and acceptSecContext methods. The comments
- * in this class describe the requirements for that in more detail.
+ * NOTE that this demonstration only uses {@link #readTokenHeader(InputStream, int)} and {@link #frameToken(byte[])} in
+ * the raw token mode (see {@link example.provider.CustomKerberosJgssProvider#isRawTokenMode()}), because it otherwise
+ * just delegates to the built-in classes, however a real one would need {@link #readToken(InputStream, int)} as
+ * described in CustomGSSContextSpiImpl's initSecContext and acceptSecContext methods. The comments in this class
+ * describe the requirements for that in more detail.
  */
 class IOUtils {
 
     private static final byte[] EMPTY_BUF = new byte[0];
 
-    private static final ObjectIdentifier GSS_KRB5_MECH_OBJECT_IDENTIFIER;
-
-    static {
-        try {
-            String input = CustomKrb5MechFactory.GSS_KRB5_MECH_OID.toString();
-            String version = System.getProperty("java.version");
-            if (version.startsWith("1.") || version.startsWith("9") || version.startsWith("10")
-                || version.startsWith("11") || version.startsWith("12") || version.startsWith("13")
-                || version.startsWith("14")) {
-                GSS_KRB5_MECH_OBJECT_IDENTIFIER = new ObjectIdentifier(input);
-            } else {
-                // ObjectIdentifier.of(input), from Java 15
-                Method mthd = ObjectIdentifier.class.getMethod("of", String.class);
-                GSS_KRB5_MECH_OBJECT_IDENTIFIER = (ObjectIdentifier) mthd.invoke(null, input);
-            }
-        } catch (IOException | NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
-            throw new IllegalStateException("Failed to get OID", e);
-        }
-    }
+    private static final ObjectIdentifier GSS_KRB5_MECH_OBJECT_IDENTIFIER =
+        ObjectIdentifiers.of(CustomKrb5MechFactory.GSS_KRB5_MECH_OID.toString());
 
     /**
      * Read a GSS token from the input, designed for the specific needs of
@@ -117,6 +100,86 @@ class IOUtils {
         }
     }
 
+    /**
+     * Read a token that has no GSS header of its own, like the SPNEGO negotiation tokens, for
+     * {@link CustomSpNegoContextSpiImpl}. The calling code strips off the header of the first token only if there's
+     * one, so unlike {@link #readToken(InputStream, int)}, nothing is put back here, otherwise the same limitations
+     * apply.
+     *
+     * @param is the input to read from, must be a {@link ByteArrayInputStream} if {@code mechTokenLen} is negative
+     * @param mechTokenLen the length of the token to read, -1 if unknown and the whole buffer should be read
+     * @throws GSSException if the input ends early, or the stream isn't supported
+     */
+    static byte[] readUnframedToken(InputStream is, int mechTokenLen) throws GSSException {
+        if (mechTokenLen < 0 && !(is instanceof ByteArrayInputStream)) {
+            throw new GSSException(GSSException.UNAVAILABLE, -1, "Streaming methods are not supported");
+        }
+
+        try {
+            return readBytes(is, mechTokenLen >= 0 ? mechTokenLen : is.available());
+        } catch (IOException e) {
+            throw (GSSException) new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "Truncated token").initCause(e);
+        }
+    }
+
+    /**
+     * Consume the GSS header of a token from the input, unless it has already been consumed by the calling code, for
+     * the raw token mode of {@link CustomGSSContextSpiImpl#initSecContext(InputStream, int)} and
+     * {@link CustomGSSContextSpiImpl#acceptSecContext(InputStream, int)}.
+     * <p/>
+     * Like in {@link #readToken(InputStream, int)}, knowing the length of the token (the {@code mechTokenLen}
+     * parameter being non-negative) implies the header has already been read, in which case this method is a no-op.
+     * Unlike that method, this one doesn't put the header back, the stream is left positioned at the mechanism token.
+     *
+     * @param is the input to read from
+     * @param mechTokenLen the length of the token if its header has already been read, -1 otherwise
+     * @return the length of the mechanism token following the header
+     * @throws GSSException if the header is malformed or is for another mechanism
+     */
+    static int readTokenHeader(InputStream is, int mechTokenLen) throws GSSException {
+        if (mechTokenLen >= 0) {
+            return mechTokenLen;
+        }
+
+        GSSHeader gssHeader;
+        try {
+            gssHeader = new GSSHeader(is);
+        } catch (IOException e) {
+            throw (GSSException) new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "Malformed GSS header")
+                .initCause(e);
+        }
+
+        if (!gssHeader.getOid().equals((Object) GSS_KRB5_MECH_OBJECT_IDENTIFIER)) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1,
+                "Mechanism not equal to " + CustomKrb5MechFactory.GSS_KRB5_MECH_OID + " in token");
+        }
+
+        return gssHeader.getMechTokenLength();
+    }
+
+    /**
+     * Prepend the GSS header to a mechanism token, the counterpart of {@link #readTokenHeader(InputStream, int)}.
+     *
+     * @param mechToken the mechanism token, may be null if there's no token to send
+     * @return the complete token, or null if {@code mechToken} is null
+     */
+    static byte[] frameToken(byte[] mechToken) throws GSSException {
+        if (mechToken == null) {
+            return null;
+        }
+
+        try {
+            GSSHeader gssHeader = new GSSHeader(GSS_KRB5_MECH_OBJECT_IDENTIFIER, mechToken.length);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(gssHeader.getLength() + mechToken.length);
+            gssHeader.encode(baos);
+            baos.write(mechToken);
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw (GSSException) new GSSException(GSSException.FAILURE, -1, "Failed to encode GSS header")
+                .initCause(e);
+        }
+    }
+
     /**
      * Read exactly <code>numRead</code> bytes in a new byte array. An {@link EOFException} is thrown if the
      * <code>source</code> ends earlier.
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.Configurations;
+import java.util.concurrent.TimeUnit;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.krb5.Krb5NameElement;
+import sun.security.jgss.spi.GSSCredentialSpi;
+import sun.security.jgss.spi.GSSNameSpi;
+
+/**
+ * Keeps the impersonated (S4U2Self) credentials per service and user principal, so that impersonating the same user
+ * again doesn't go to the KDC while the ticket is valid.
+ * <p/>
+ * The entries expire with the impersonator's credential, which bounds the end time of the tickets the KDC issues for
+ * it, minus the default clock skew so that a ticket about to expire is never handed out. They're kept per impersonator
+ * credential instance rather than its principal, since the impersonated credentials keep a reference to the one they
+ * were created with, which may have been disposed by the time another credential of the same service looks them up.
+ */
+final class ImpersonationCache {
+
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ExpiringCache<Key, GSSCredentialSpi> CACHE =
+        new ExpiringCache<>(Configurations.getImpersonationCacheSize());
+
+    private ImpersonationCache() {
+    }
+
+    static boolean isEnabled() {
+        return CACHE.isEnabled();
+    }
+
+    static GSSCredentialSpi get(GSSCredentialSpi impersonator, GSSNameSpi user) {
+        return CACHE.get(new Key(impersonator, user));
+    }
+
+    /**
+     * Cache the impersonated credential, unless it's about to expire.
+     *
+     * @return whether it was cached, and so shared by the further impersonations of the user
+     */
+    static boolean put(GSSCredentialSpi impersonator, GSSNameSpi user, GSSCredentialSpi impersonated)
+        throws GSSException {
+        // NOTE: the delegate doesn't tell the ticket's end time, a real implementation would use it directly
+        long lifetimeMillis = TimeUnit.SECONDS.toMillis(impersonated.getInitLifetime());
+        if (lifetimeMillis <= EXPIRY_MARGIN_MILLIS) {
+            return false;
+        }
+
+        CACHE.put(new Key(impersonator, user), impersonated,
+            System.currentTimeMillis() + lifetimeMillis - EXPIRY_MARGIN_MILLIS);
+        return true;
+    }
+
+    private static String principalOf(GSSNameSpi name) {
+        return ((Krb5NameElement) name).getKrb5PrincipalName().getName();
+    }
+
+    private static final class Key {
+
+        final GSSCredentialSpi impersonator;
+
+        final String user;
+
+        final int hash;
+
+        Key(GSSCredentialSpi impersonator, GSSNameSpi user) {
+            this.impersonator = impersonator;
+            this.user = principalOf(user);
+            this.hash = 31 * System.identityHashCode(impersonator) + this.user.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return impersonator == key.impersonator && user.equals(key.user);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.CacheStatistics;
+import example.provider.Configurations;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.GSSCaller;
+import sun.security.jgss.spi.GSSContextSpi;
+import sun.security.jgss.spi.GSSCredentialSpi;
+import sun.security.jgss.spi.GSSNameSpi;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5NameElement;
+import sun.security.krb5.Credentials;
+import sun.security.krb5.KrbException;
+import sun.security.krb5.PrincipalName;
+
+/**
+ * Keeps a few initiator contexts for the hot targets of {@link Configurations#getInitiatorPoolTargets()} with their
+ * first token (the AP-REQ) already created, so that initiating a context to them only takes one from a queue, instead
+ * of encrypting a new authenticator and generating a subkey on the calling thread.
+ * <p/>
+ * Contexts are only taken for the default credential, without channel bindings, and with the same flags requested
+ * as the pooled ones. The flags requested by {@link org.ietf.jgss.GSSContext} by default are pooled from
+ * {@link example.provider.CustomKerberosJgssProvider#install()}, other sets of flags from their first miss on. Taken
+ * contexts are replaced in the background. Since the acceptors only allow a few minutes of clock skew for the
+ * authenticator, a context is dropped and replaced once it's older than
+ * {@link Configurations#getInitiatorPoolMaxAgeSeconds()}, or sooner if its service ticket expires within that time.
+ * When creating the contexts fails, or they're for another client than the callers' (e.g. when those run with
+ * another credential in {@code Subject.doAs}), their target isn't retried for a minute, so that misses don't each
+ * start a new context creation.
+ * <p/>
+ * NOTE: a real implementation would keep the pre-generated contexts in its native library.
+ */
+public final class InitiatorContextPool {
+
+    private static final Logger LOGGER = Logger.getLogger(InitiatorContextPool.class.getCanonicalName());
+
+    // The flags GSSContextImpl requests unless told otherwise
+    private static final int DEFAULT_FLAGS = ExportedContext.FLAG_MUTUAL_AUTH | ExportedContext.FLAG_REPLAY_DET
+        | ExportedContext.FLAG_SEQUENCE_DET | ExportedContext.FLAG_CONF | ExportedContext.FLAG_INTEG;
+
+    private static final Set<String> TARGETS;
+
+    private static final int SIZE = Configurations.getInitiatorPoolSize();
+
+    private static final long MAX_AGE_MILLIS = Configurations.getInitiatorPoolMaxAgeSeconds() * 1000L;
+
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ConcurrentHashMap<Key, Slot> SLOTS = new ConcurrentHashMap<>();
+
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+    private static final LongAdder HITS = new LongAdder();
+
+    private static final LongAdder MISSES = new LongAdder();
+
+    // Creating a context may go to the KDC for the service ticket, so this doesn't use the common pool
+    private static final ScheduledThreadPoolExecutor REFILLER;
+
+    static {
+        Set<String> targets = new HashSet<>();
+        for (String target : Configurations.getInitiatorPoolTargets().split(",")) {
+            if (!target.trim().isEmpty()) {
+                try {
+                    targets.add(new PrincipalName(target.trim()).getName());
+                } catch (KrbException e) {
+                    LOGGER.log(Level.FINE, e, () -> "Ignoring malformed target " + target);
+                }
+            }
+        }
+        TARGETS = Collections.unmodifiableSet(targets);
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "jgss-context-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        REFILLER = executor;
+    }
+
+    private InitiatorContextPool() {
+    }
+
+    /**
+     * Whether there are hot targets to keep contexts for.
+     */
+    static boolean isEnabled() {
+        return !TARGETS.isEmpty() && SIZE > 0 && Krb5ContextAccess.isAvailable();
+    }
+
+    /**
+     * Start filling the pool with contexts for the default flags, and replacing the stale ones, if enabled. All further
+     * calls to this method are a no-op.
+     */
+    public static void start() {
+        if (!isEnabled() || !STARTED.compareAndSet(false, true)) {
+            return;
+        }
+        REFILLER.execute(() -> {
+            String client = getDefaultClient();
+            if (client != null) {
+                for (String target : TARGETS) {
+                    slot(new Key(client, target, DEFAULT_FLAGS));
+                }
+            }
+        });
+        long period = Math.max(1000L, MAX_AGE_MILLIS / 2);
+        REFILLER.scheduleWithFixedDelay(InitiatorContextPool::refillAll, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the target of a new initiator context, if contexts are pooled for it.
+     *
+     * @param defaultCred whether the context uses the default credential
+     * @return the client and the target of the context, or null if it can't take pooled contexts
+     */
+    static Target targetFor(GSSNameSpi peer, GSSCredentialSpi myInitiatorCred, boolean defaultCred)
+        throws GSSException {
+        if (!defaultCred || !isEnabled() || !(peer instanceof Krb5NameElement)
+            || !(myInitiatorCred.getName() instanceof Krb5NameElement)) {
+            return null;
+        }
+        String server = principalOf(peer);
+        return TARGETS.contains(server) ? new Target(principalOf(myInitiatorCred.getName()), server) : null;
+    }
+
+    /**
+     * Take a pooled context for the target, created with the given flags requested, see
+     * {@link #flagsOf(GSSContextSpi)}.
+     *
+     * @return the context, or null if there's none ready
+     */
+    static Entry take(Target target, int flags) {
+        Slot slot = slot(new Key(target.client, target.server, flags));
+        long now = System.currentTimeMillis();
+        Entry entry;
+        while ((entry = slot.entries.poll()) != null && entry.expiresAt <= now) {
+            dispose(entry);
+        }
+        slot.scheduleRefill();
+        if (entry == null) {
+            MISSES.increment();
+        } else {
+            HITS.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Get the flags requested from a new initiator delegate context, in the format of {@link ExportedContext}.
+     */
+    static int flagsOf(GSSContextSpi delegate) {
+        int flags = 0;
+        flags |= delegate.getCredDelegState() ? ExportedContext.FLAG_CRED_DELEG : 0;
+        flags |= delegate.getMutualAuthState() ? ExportedContext.FLAG_MUTUAL_AUTH : 0;
+        flags |= delegate.getReplayDetState() ? ExportedContext.FLAG_REPLAY_DET : 0;
+        flags |= delegate.getSequenceDetState() ? ExportedContext.FLAG_SEQUENCE_DET : 0;
+        flags |= delegate.getConfState() ? ExportedContext.FLAG_CONF : 0;
+        flags |= delegate.getIntegState() ? ExportedContext.FLAG_INTEG : 0;
+        flags |= delegate.getDelegPolicyState() ? ExportedContext.FLAG_DELEG_POLICY : 0;
+        return flags;
+    }
+
+    /**
+     * Request the given flags from a new initiator context, the reverse of {@link #flagsOf(GSSContextSpi)}.
+     */
+    static void requestFlags(GSSContextSpi context, int flags) throws GSSException {
+        context.requestCredDeleg((flags & ExportedContext.FLAG_CRED_DELEG) != 0);
+        context.requestMutualAuth((flags & ExportedContext.FLAG_MUTUAL_AUTH) != 0);
+        context.requestReplayDet((flags & ExportedContext.FLAG_REPLAY_DET) != 0);
+        context.requestSequenceDet((flags & ExportedContext.FLAG_SEQUENCE_DET) != 0);
+        context.requestConf((flags & ExportedContext.FLAG_CONF) != 0);
+        context.requestInteg((flags & ExportedContext.FLAG_INTEG) != 0);
+        context.requestDelegPolicy((flags & ExportedContext.FLAG_DELEG_POLICY) != 0);
+    }
+
+    /**
+     * Get the usage counters of the pool, where a hit is a context initiated with a pooled one.
+     */
+    public static CacheStatistics getStatistics() {
+        return new CacheStatistics(HITS.sum(), MISSES.sum());
+    }
+
+    private static Slot slot(Key key) {
+        Slot slot = SLOTS.get(key);
+        if (slot == null) {
+            slot = SLOTS.computeIfAbsent(key, Slot::new);
+            slot.scheduleRefill();
+        }
+        return slot;
+    }
+
+    private static void refillAll() {
+        long now = System.currentTimeMillis();
+        for (Slot slot : SLOTS.values()) {
+            slot.entries.removeIf(entry -> {
+                if (entry.expiresAt > now) {
+                    return false;
+                }
+                dispose(entry);
+                return true;
+            });
+            slot.refill();
+        }
+    }
+
+    private static String getDefaultClient() {
+        try {
+            GSSCredentialSpi cred = CustomGSSCredentialSpiImpl.acquireElement(getFactory(), null,
+                GSSCredential.DEFAULT_LIFETIME, 0, GSSCredential.INITIATE_ONLY);
+            return principalOf(cred.getName());
+        } catch (GSSException | RuntimeException e) {
+            LOGGER.log(Level.FINE, e, () -> "No default credential to pool contexts for");
+            return null;
+        }
+    }
+
+    private static CustomKrb5MechFactory getFactory() {
+        return CustomKrb5MechFactory.getInstance(GSSCaller.CALLER_INITIATE);
+    }
+
+    private static void dispose(Entry entry) {
+        try {
+            entry.delegate.dispose();
+        } catch (GSSException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to dispose a pooled context");
+        }
+    }
+
+    private static String principalOf(GSSNameSpi name) {
+        return ((Krb5NameElement) name).getKrb5PrincipalName().getName();
+    }
+
+    /**
+     * A pre-generated context, see {@link CustomGSSContextSpiImpl#pregenerate(int)}.
+     */
+    static final class Entry {
+
+        final GSSContextSpi delegate;
+
+        final byte[] token;
+
+        final long expiresAt;
+
+        Entry(GSSContextSpi delegate, byte[] token) throws GSSException {
+            this.delegate = delegate;
+            this.token = token;
+            long expiresAt = System.currentTimeMillis() + MAX_AGE_MILLIS;
+            Credentials ticket = Krb5ContextAccess.getServiceCreds(delegate);
+            if (ticket != null && ticket.getEndTime() != null) {
+                // Leave the context at least as long as it could have waited in the pool
+                expiresAt = Math.min(expiresAt, ticket.getEndTime().getTime() - MAX_AGE_MILLIS);
+            }
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    static final class Target {
+
+        final String client;
+
+        final String server;
+
+        private Target(String client, String server) {
+            this.client = client;
+            this.server = server;
+        }
+    }
+
+    private static final class Key {
+
+        final String client;
+
+        final String server;
+
+        final int flags;
+
+        final int hash;
+
+        Key(String client, String server, int flags) {
+            this.client = client;
+            this.server = server;
+            this.flags = flags;
+            this.hash = Objects.hash(client, server, flags);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return client.equals(key.client) && server.equals(key.server) && flags == key.flags;
+        }
+
+        @Override
+        public String toString() {
+            return client + " -> " + server + " (flags " + flags + ")";
+        }
+    }
+
+    private static final class Slot {
+
+        final Key key;
+
+        final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+
+        final AtomicBoolean refilling = new AtomicBoolean();
+
+        // The time until which refilling isn't retried after it failed
+        volatile long retryAt;
+
+        Slot(Key key) {
+            this.key = key;
+        }
+
+        void scheduleRefill() {
+            if (entries.size() < SIZE && System.currentTimeMillis() >= retryAt
+                && refilling.compareAndSet(false, true)) {
+                REFILLER.execute(() -> {
+                    try {
+                        refill();
+                    } finally {
+                        refilling.set(false);
+                    }
+                });
+            }
+        }
+
+        void refill() {
+            if (System.currentTimeMillis() < retryAt) {
+                return;
+            }
+            CustomKrb5MechFactory factory = getFactory();
+            try {
+                GSSNameSpi peer = factory.getNameElement(key.server, CustomKrb5MechFactory.NT_GSS_KRB5_PRINCIPAL);
+                while (entries.size() < SIZE) {
+                    CustomGSSContextSpiImpl context =
+                        factory.getMechanismContext(peer, null, GSSContext.DEFAULT_LIFETIME);
+                    Entry entry = context.pregenerate(key.flags);
+                    if (!key.client.equals(principalOf(entry.delegate.getSrcName()))) {
+                        // The default credential of this thread is another client's, or it has changed
+                        LOGGER.fine(() -> "Created a context for another client than " + key);
+                        dispose(entry);
+                        retryAt = System.currentTimeMillis() + RETRY_DELAY_MILLIS;
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (entry.expiresAt <= now) {
+                        // The service ticket ends too soon for pooling, so wait until it has been renewed
+                        LOGGER.fine(() -> "Created an already expired context for " + key);
+                        dispose(entry);
+                        retryAt = now + RETRY_DELAY_MILLIS;
+                        return;
+                    }
+                    entries.add(entry);
+                }
+            } catch (GSSException | RuntimeException e) {
+                LOGGER.log(Level.FINE, e, () -> "Failed to create a context for " + key);
+                retryAt = System.currentTimeMillis() + RETRY_DELAY_MILLIS;
+            }
+        }
+    }
+}
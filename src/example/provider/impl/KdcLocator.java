@@ -0,0 +1,265 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.Configurations;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import org.ietf.jgss.GSSException;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5NameElement;
+import sun.security.jgss.spi.GSSCredentialSpi;
+import sun.security.jgss.spi.GSSNameSpi;
+import sun.security.krb5.Config;
+import sun.security.krb5.KrbException;
+
+/**
+ * Locates the KDCs of realms with DNS SRV records ({@code _kerberos._udp.REALM}, then {@code _kerberos._tcp.REALM}),
+ * caching the results per realm, see {@link RefreshingCache}: once their time to live has passed, they're refreshed
+ * in the background, while the previous results are still used.
+ * <p/>
+ * When enabled by {@link Configurations#isKdcLocator()}, the located KDCs of the realms of the names and credentials
+ * used by the provider are put in the Kerberos configuration, so that the delegate doesn't look them up for each
+ * request. This is only done for realms without KDCs in the configuration and with {@code dns_lookup_kdc} enabled, the
+ * same as where the delegate would look them up. Realms only reached through referrals are still looked up by the
+ * delegate.
+ * <p/>
+ * The DNS server can be set with {@link Configurations#getKdcLocatorDnsUrl()} (e.g. a local stub server as
+ * {@code dns://127.0.0.1:5353}), or the lookups can be replaced altogether by creating an instance with a custom
+ * {@link SrvResolver}.
+ * <p/>
+ * NOTE: a real implementation would leave this to its native library, this one needs reflective access to the
+ * configuration of the delegate, and does nothing without it.
+ */
+public final class KdcLocator {
+
+    private static final Logger LOGGER = Logger.getLogger(KdcLocator.class.getCanonicalName());
+
+    private static final boolean ENABLED = Configurations.isKdcLocator();
+
+    private static final KdcLocator DEFAULT = new KdcLocator(new JndiSrvResolver(Configurations.getKdcLocatorDnsUrl()),
+        TimeUnit.SECONDS.toMillis(Configurations.getKdcLocatorTtlSeconds()),
+        TimeUnit.SECONDS.toMillis(Configurations.getNameResolverNegativeTtlSeconds()));
+
+    // The KDC lists put in each configuration per realm, to tell them apart from the configured ones
+    private static final Map<Config, Map<String, Vector<String>>> INJECTED = new WeakHashMap<>();
+
+    /**
+     * Looks up the SRV records of a DNS name.
+     */
+    public interface SrvResolver {
+
+        /**
+         * Get the SRV records of the name, each in the {@code priority weight port target} form, or an empty list if
+         * there are none.
+         */
+        List<String> lookUp(String name) throws NamingException;
+    }
+
+    private final SrvResolver resolver;
+
+    private final RefreshingCache<String, String> kdcs;
+
+    /**
+     * @param ttlMillis how long the KDCs of a realm are used before being looked up again in the background
+     * @param negativeTtlMillis the same for realms without SRV records
+     */
+    public KdcLocator(SrvResolver resolver, long ttlMillis, long negativeTtlMillis) {
+        this.resolver = resolver;
+        this.kdcs = new RefreshingCache<>(this::lookUp, ttlMillis, negativeTtlMillis, 1000);
+    }
+
+    /**
+     * Get the shared instance, using the DNS server of {@link Configurations#getKdcLocatorDnsUrl()}.
+     */
+    public static KdcLocator getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get the KDCs of the realm in the order they should be tried, as a space separated list of {@code host:port},
+     * the same as the {@code kdc} entries of the Kerberos configuration, or null if it has no SRV records.
+     */
+    public String locate(String realm) throws NamingException {
+        try {
+            return kdcs.get(realm.toUpperCase(Locale.ENGLISH));
+        } catch (NamingException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw (NamingException) new NamingException(e.getMessage()).initCause(e);
+        }
+    }
+
+    /**
+     * Put the located KDCs of the realms of the peer and the credential in the Kerberos configuration if enabled, i.e.
+     * the realms the delegate sends its requests to when establishing a context.
+     */
+    static void prepare(GSSNameSpi peer, GSSCredentialSpi credential) {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            if (credential != null && credential.getName() instanceof Krb5NameElement) {
+                prepare(((Krb5NameElement) credential.getName()).getKrb5PrincipalName().getRealmAsString());
+            }
+        } catch (GSSException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to get the realm of the credential");
+        }
+        if (peer instanceof Krb5NameElement) {
+            prepare(((Krb5NameElement) peer).getKrb5PrincipalName().getRealmAsString());
+        }
+    }
+
+    /**
+     * Put the located KDCs of the realm in the Kerberos configuration if enabled, see the class description.
+     */
+    static void prepare(String realm) {
+        if (!ENABLED || !Krb5ConfigAccess.isAvailable() || realm == null || realm.isEmpty()) {
+            return;
+        }
+
+        try {
+            Config config = Config.getInstance();
+            Vector<String> injected;
+            synchronized (INJECTED) {
+                injected = INJECTED.computeIfAbsent(config, c -> new HashMap<>()).get(realm);
+            }
+            String configured = config.getAll("realms", realm, "kdc");
+            if (configured != null && injected == null || !isDnsLookupKdc(config)) {
+                return;
+            }
+
+            String located = DEFAULT.locate(realm);
+            if (located == null || injected != null && String.join(" ", injected).equals(located)) {
+                return;
+            }
+            inject(config, realm, located);
+        } catch (KrbException | NamingException | RuntimeException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to locate the KDCs of " + realm + ", leaving it to the delegate");
+        }
+    }
+
+    private String lookUp(String realm) throws NamingException {
+        List<String> records = resolver.lookUp("_kerberos._udp." + realm);
+        if (records.isEmpty()) {
+            records = resolver.lookUp("_kerberos._tcp." + realm);
+        }
+        if (records.isEmpty()) {
+            return null;
+        }
+
+        List<String[]> parsed = new ArrayList<>();
+        for (String record : records) {
+            String[] fields = record.trim().split("\\s+");
+            if (fields.length == 4) {
+                parsed.add(fields);
+            }
+        }
+        // Lowest priority first, then highest weight, which is also what the delegate does
+        parsed.sort(Comparator.<String[]>comparingInt(f -> Integer.parseInt(f[0]))
+            .thenComparing(Comparator.<String[]>comparingInt(f -> Integer.parseInt(f[1])).reversed()));
+
+        StringBuilder result = new StringBuilder();
+        for (String[] fields : parsed) {
+            String target = fields[3].endsWith(".") ? fields[3].substring(0, fields[3].length() - 1) : fields[3];
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            result.append(target).append(':').append(fields[2]);
+        }
+        return result.length() == 0 ? null : result.toString();
+    }
+
+    private static boolean isDnsLookupKdc(Config config) {
+        Boolean value = config.getBooleanObject("libdefaults", "dns_lookup_kdc");
+        if (value == null) {
+            value = config.getBooleanObject("libdefaults", "dns_fallback");
+        }
+        return value == null || value;
+    }
+
+    private static void inject(Config config, String realm, String kdcs) {
+        Vector<String> value = Krb5ConfigAccess.put(config, kdcs, "realms", realm, "kdc");
+        if (value == null) {
+            return;
+        }
+
+        synchronized (INJECTED) {
+            INJECTED.computeIfAbsent(config, c -> new HashMap<>()).put(realm, value);
+        }
+        LOGGER.fine(() -> "Located the KDCs of " + realm + ": " + kdcs);
+    }
+
+    private static final class JndiSrvResolver implements SrvResolver {
+
+        private final Hashtable<String, String> environment = new Hashtable<>();
+
+        JndiSrvResolver(String dnsUrl) {
+            environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+            environment.put(Context.PROVIDER_URL, dnsUrl == null ? "dns:" : dnsUrl);
+        }
+
+        @Override
+        public List<String> lookUp(String name) throws NamingException {
+            DirContext context = new InitialDirContext(environment);
+            try {
+                Attribute srv = context.getAttributes(name, new String[] {"SRV"}).get("SRV");
+                if (srv == null) {
+                    return Collections.emptyList();
+                }
+                List<String> records = new ArrayList<>();
+                NamingEnumeration<?> values = srv.getAll();
+                while (values.hasMore()) {
+                    records.add(values.next().toString());
+                }
+                return records;
+            } catch (NameNotFoundException e) {
+                return Collections.emptyList();
+            } finally {
+                context.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.lang.reflect.Field;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.krb5.Config;
+
+/**
+ * Reflective access to the parsed contents of the delegate's Kerberos configuration, used to put the settings
+ * computed by the provider (e.g. located KDCs) in it, so that the delegate doesn't compute them again. The settings are
+ * lost when the configuration is refreshed, since that creates a new {@link Config} instance.
+ * <p/>
+ * NOTE: a real implementation would pass these to its native library, this is only needed because this
+ * demonstration delegates to the built-in classes. From Java 9 it requires the {@code sun.security.krb5} package of
+ * the {@code java.security.jgss} module to be opened to this code with {@code --add-opens}.
+ */
+final class Krb5ConfigAccess {
+
+    private static final Logger LOGGER = Logger.getLogger(Krb5ConfigAccess.class.getCanonicalName());
+
+    private static final Field STANZA_TABLE;
+
+    static {
+        Field stanzaTable = null;
+        try {
+            stanzaTable = Config.class.getDeclaredField("stanzaTable");
+            stanzaTable.setAccessible(true);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, e, () -> "Settings can't be put in the Kerberos configuration");
+        }
+        STANZA_TABLE = stanzaTable;
+    }
+
+    private Krb5ConfigAccess() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Whether settings can be put in the configuration.
+     */
+    static boolean isAvailable() {
+        return STANZA_TABLE != null;
+    }
+
+    /**
+     * Set a value of the configuration, replacing any existing ones, e.g. {@code put(config, "kdc.example.com:88",
+     * "realms", "EXAMPLE.COM", "kdc")}.
+     *
+     * @return the entry that was put, which can be compared by identity to tell it apart from configured ones, or null
+     * if it couldn't be put
+     */
+    @SuppressWarnings("unchecked")
+    static Vector<String> put(Config config, String value, String... keys) {
+        if (STANZA_TABLE == null) {
+            return null;
+        }
+
+        Vector<String> entry = new Vector<>(1);
+        entry.add(value);
+        try {
+            Hashtable<String, Object> table = (Hashtable<String, Object>) STANZA_TABLE.get(config);
+            for (int i = 0; i < keys.length - 1; i++) {
+                table = (Hashtable<String, Object>) table.computeIfAbsent(keys[i], k -> new Hashtable<>());
+            }
+            table.put(keys[keys.length - 1], entry);
+            return entry;
+        } catch (IllegalAccessException | ClassCastException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to put " + String.join(".", keys) + " in the configuration");
+            return null;
+        }
+    }
+}
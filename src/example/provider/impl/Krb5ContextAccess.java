@@ -0,0 +1,481 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import com.sun.security.jgss.AuthorizationDataEntry;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+import sun.security.jgss.GSSCaller;
+import sun.security.jgss.spi.GSSContextSpi;
+import sun.security.jgss.spi.GSSNameSpi;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.TokenTracker;
+import sun.security.jgss.krb5.Krb5NameElement;
+import sun.security.krb5.Credentials;
+import sun.security.krb5.EncryptionKey;
+import sun.security.krb5.KrbException;
+import sun.security.krb5.PrincipalName;
+
+/**
+ * Reflective access to the state of the delegate {@code sun.security.jgss.krb5.Krb5Context}, used to export and import
+ * contexts in the {@link ExportedContext} format, which the built-in provider doesn't support.
+ * <p/>
+ * NOTE: a real implementation would simply serialize its own (or its native counterpart's) state, this is only needed
+ * because this demonstration delegates to the built-in classes. From Java 9 it requires the
+ * {@code sun.security.jgss} and {@code sun.security.jgss.krb5} packages of the {@code java.security.jgss} module to be
+ * opened to this code with {@code --add-opens}, otherwise contexts simply aren't transferable.
+ */
+final class Krb5ContextAccess {
+
+    private static final Logger LOGGER = Logger.getLogger(Krb5ContextAccess.class.getCanonicalName());
+
+    // Krb5Context.STATE_DONE
+    private static final int STATE_DONE = 3;
+
+    private static final String KRB5_CONTEXT_CLASS_NAME = "sun.security.jgss.krb5.Krb5Context";
+
+    private static final Accessors ACCESSORS;
+
+    // The per-message methods are called through method handles in constants, which the JIT compiles like direct
+    // calls, rather than through Method.invoke, which boxes the arguments and checks access on each call
+    private static final MethodHandle WRAP;
+
+    private static final MethodHandle UNWRAP;
+
+    static {
+        Accessors accessors = null;
+        MethodHandle wrap = null;
+        MethodHandle unwrap = null;
+        try {
+            Accessors created = new Accessors();
+            MethodType type = MethodType.methodType(int.class, GSSContextSpi.class, byte[].class, int.class, int.class,
+                byte[].class, int.class, MessageProp.class);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            wrap = lookup.unreflect(created.wrap).asType(type);
+            unwrap = lookup.unreflect(created.unwrap).asType(type);
+            accessors = created;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, e, () -> "Context export and import are unavailable");
+        }
+        ACCESSORS = accessors;
+        WRAP = wrap;
+        UNWRAP = unwrap;
+    }
+
+    private Krb5ContextAccess() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Whether contexts can be exported and imported.
+     */
+    static boolean isAvailable() {
+        return ACCESSORS != null;
+    }
+
+    /**
+     * Capture the state of an established delegate context.
+     *
+     * @param lifetime the remaining lifetime of the context in seconds, or {@link GSSContext#INDEFINITE_LIFETIME}
+     */
+    static ExportedContext capture(GSSContextSpi delegate, int lifetime) throws GSSException {
+        Accessors accessors = checkAvailable();
+
+        if (!accessors.krb5Context.isInstance(delegate) || !delegate.isEstablished()) {
+            throw new GSSException(GSSException.NO_CONTEXT, -1, "Only established contexts can be exported");
+        }
+
+        GSSContextSpi context = delegate;
+
+        int flags = 0;
+        flags |= context.isInitiator() ? ExportedContext.FLAG_INITIATOR : 0;
+        flags |= context.getCredDelegState() ? ExportedContext.FLAG_CRED_DELEG : 0;
+        flags |= context.getMutualAuthState() ? ExportedContext.FLAG_MUTUAL_AUTH : 0;
+        flags |= context.getReplayDetState() ? ExportedContext.FLAG_REPLAY_DET : 0;
+        flags |= context.getSequenceDetState() ? ExportedContext.FLAG_SEQUENCE_DET : 0;
+        flags |= context.getConfState() ? ExportedContext.FLAG_CONF : 0;
+        flags |= context.getIntegState() ? ExportedContext.FLAG_INTEG : 0;
+        flags |= context.getDelegPolicyState() ? ExportedContext.FLAG_DELEG_POLICY : 0;
+
+        long endTime = lifetime == GSSContext.INDEFINITE_LIFETIME
+            ? ExportedContext.INDEFINITE_END_TIME
+            : System.currentTimeMillis() + lifetime * 1000L;
+
+        try {
+            EncryptionKey key = (EncryptionKey) accessors.key.get(context);
+            int mySeqNumber = accessors.mySeqNumber.getInt(context);
+            int peerSeqNumber = accessors.expectedNumber.getInt(accessors.peerTokenTracker.get(context));
+            Object authzData = accessors.authzData.get(context);
+
+            return new ExportedContext(flags, accessors.keySrc.getInt(context), key.getEType(), key.getBytes(),
+                mySeqNumber, peerSeqNumber, endTime, getPrincipal(context.getSrcName()),
+                getPrincipal(context.getTargName()),
+                (boolean[]) accessors.tktFlags.get(context), (String) accessors.authTime.get(context),
+                // NOTE: later Java versions keep the undecoded authorization data, which isn't exported
+                authzData instanceof AuthorizationDataEntry[] ? (AuthorizationDataEntry[]) authzData : null);
+        } catch (IllegalAccessException e) {
+            throw unavailable(e);
+        }
+    }
+
+    /**
+     * Create an established delegate context from a previously captured state.
+     */
+    static GSSContextSpi restore(GSSCaller caller, ExportedContext exported) throws GSSException {
+        Accessors accessors = checkAvailable();
+
+        boolean initiator = exported.hasFlag(ExportedContext.FLAG_INITIATOR);
+        Krb5NameElement srcName = getName(exported.srcName);
+        Krb5NameElement targName = getName(exported.targName);
+
+        try {
+            GSSContextSpi context;
+            if (initiator) {
+                context = (GSSContextSpi) accessors.initiatorConstructor.newInstance(caller, targName, null,
+                    GSSContext.DEFAULT_LIFETIME);
+                accessors.myName.set(context, srcName);
+            } else {
+                context = (GSSContextSpi) accessors.acceptorConstructor.newInstance(caller, null);
+                accessors.myName.set(context, targName);
+                accessors.peerName.set(context, srcName);
+            }
+
+            accessors.setKey.invoke(context, exported.keySrc,
+                new EncryptionKey(exported.key, exported.keyType, null));
+            accessors.resetMySequenceNumber.invoke(context, exported.mySeqNumber);
+            accessors.resetPeerSequenceNumber.invoke(context, exported.peerSeqNumber);
+
+            accessors.setCredDelegState.invoke(context, exported.hasFlag(ExportedContext.FLAG_CRED_DELEG));
+            accessors.setMutualAuthState.invoke(context, exported.hasFlag(ExportedContext.FLAG_MUTUAL_AUTH));
+            accessors.setReplayDetState.invoke(context, exported.hasFlag(ExportedContext.FLAG_REPLAY_DET));
+            accessors.setSequenceDetState.invoke(context, exported.hasFlag(ExportedContext.FLAG_SEQUENCE_DET));
+            accessors.setConfState.invoke(context, exported.hasFlag(ExportedContext.FLAG_CONF));
+            accessors.setIntegState.invoke(context, exported.hasFlag(ExportedContext.FLAG_INTEG));
+            accessors.setDelegPolicyState.invoke(context, exported.hasFlag(ExportedContext.FLAG_DELEG_POLICY));
+
+            accessors.tktFlags.set(context, exported.tktFlags);
+            accessors.authTime.set(context, exported.authTime);
+            if (exported.authzData != null && accessors.authzData.getType().isArray()) {
+                accessors.authzData.set(context, exported.authzData);
+            }
+
+            accessors.state.setInt(context, STATE_DONE);
+            return context;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof GSSException) {
+                throw (GSSException) e.getCause();
+            }
+            throw unavailable(e.getCause());
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw unavailable(e);
+        }
+    }
+
+    /**
+     * Create a copy of a captured context sending its tokens with the given sequence numbers, e.g. ones taken with
+     * {@link #reserveSequenceNumbers(GSSContextSpi, int)}.
+     */
+    static GSSContextSpi copy(ExportedContext state, int mySeqNumber) throws GSSException {
+        return restore(GSSCaller.CALLER_UNKNOWN, state.withMySeqNumber(mySeqNumber));
+    }
+
+    /**
+     * Set the sequence number of the next token a delegate context sends. Unlike
+     * {@link #reserveSequenceNumbers(GSSContextSpi, int)}, this doesn't take the delegate's lock, so the context must
+     * only be used by the calling thread, e.g. a copy.
+     */
+    static void setMySequenceNumber(GSSContextSpi delegate, int mySeqNumber) throws GSSException {
+        try {
+            checkAvailable().mySeqNumber.setInt(delegate, mySeqNumber);
+        } catch (IllegalAccessException e) {
+            throw unavailable(e);
+        }
+    }
+
+    /**
+     * Take the next sequence numbers of a delegate context, so that tokens can be created with them by copies of the
+     * context, see {@link #copy(ExportedContext, int)}.
+     *
+     * @return the first of the {@code count} sequence numbers taken
+     */
+    static int reserveSequenceNumbers(GSSContextSpi delegate, int count) throws GSSException {
+        Accessors accessors = checkAvailable();
+        try {
+            // The same lock the delegate takes the sequence numbers of its own tokens with
+            synchronized (accessors.mySeqNumberLock.get(delegate)) {
+                int first = accessors.mySeqNumber.getInt(delegate);
+                accessors.mySeqNumber.setInt(delegate, first + count);
+                return first;
+            }
+        } catch (IllegalAccessException e) {
+            throw unavailable(e);
+        }
+    }
+
+    /**
+     * Get the encryption type of the key an established delegate context protects its tokens with.
+     */
+    static int getKeyType(GSSContextSpi delegate) throws GSSException {
+        try {
+            return ((EncryptionKey) checkAvailable().key.get(delegate)).getEType();
+        } catch (IllegalAccessException e) {
+            throw unavailable(e);
+        }
+    }
+
+    /**
+     * Get the sequence number of the next token a delegate context expects from its peer.
+     */
+    static int getPeerSequenceNumber(GSSContextSpi delegate) throws GSSException {
+        Accessors accessors = checkAvailable();
+        try {
+            return accessors.expectedNumber.getInt(accessors.peerTokenTracker.get(delegate));
+        } catch (IllegalAccessException e) {
+            throw unavailable(e);
+        }
+    }
+
+    /**
+     * Turn the replay and sequence detection of the tokens a delegate context receives on or off, and start tracking
+     * them over from the given sequence number.
+     */
+    static void setPeerTracking(GSSContextSpi delegate, boolean replayDet, boolean sequenceDet, int peerSeqNumber)
+        throws GSSException {
+        Accessors accessors = checkAvailable();
+        try {
+            accessors.setReplayDetState.invoke(delegate, replayDet);
+            accessors.setSequenceDetState.invoke(delegate, sequenceDet);
+            accessors.resetPeerSequenceNumber.invoke(delegate, peerSeqNumber);
+        } catch (InvocationTargetException e) {
+            throw unavailable(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw unavailable(e);
+        }
+    }
+
+    /**
+     * Wrap a message into the given buffer with a delegate context, which the built-in provider supports, but doesn't
+     * expose through {@link GSSContextSpi}.
+     *
+     * @return the length of the token
+     */
+    static int wrap(GSSContextSpi delegate, byte[] inBuf, int inOffset, int len, byte[] outBuf, int outOffset,
+        MessageProp msgProp) throws GSSException {
+        checkAvailable();
+        try {
+            return (int) WRAP.invokeExact(delegate, inBuf, inOffset, len, outBuf, outOffset, msgProp);
+        } catch (GSSException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw unavailable(t);
+        }
+    }
+
+    /**
+     * Unwrap a token into the given buffer with a delegate context, the counterpart of
+     * {@link #wrap(GSSContextSpi, byte[], int, int, byte[], int, MessageProp)}.
+     *
+     * @return the length of the message
+     */
+    static int unwrap(GSSContextSpi delegate, byte[] inBuf, int inOffset, int len, byte[] outBuf, int outOffset,
+        MessageProp msgProp) throws GSSException {
+        checkAvailable();
+        try {
+            return (int) UNWRAP.invokeExact(delegate, inBuf, inOffset, len, outBuf, outOffset, msgProp);
+        } catch (GSSException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw unavailable(t);
+        }
+    }
+
+    /**
+     * Get the service ticket a delegate initiator context has used, or null if it has none yet.
+     */
+    static Credentials getServiceCreds(GSSContextSpi delegate) throws GSSException {
+        try {
+            return (Credentials) checkAvailable().serviceCreds.get(delegate);
+        } catch (IllegalAccessException e) {
+            throw unavailable(e);
+        }
+    }
+
+    /**
+     * Make a new delegate initiator context use the given service ticket, instead of getting one from the KDC.
+     */
+    static void setServiceCreds(GSSContextSpi delegate, Credentials serviceCreds) throws GSSException {
+        try {
+            checkAvailable().serviceCreds.set(delegate, serviceCreds);
+        } catch (IllegalAccessException e) {
+            throw unavailable(e);
+        }
+    }
+
+    private static String getPrincipal(GSSNameSpi name) {
+        // Unlike toString(), this is always qualified with the realm
+        return ((Krb5NameElement) name).getKrb5PrincipalName().getName();
+    }
+
+    private static Krb5NameElement getName(String principal) throws GSSException {
+        try {
+            // The exported names are always qualified with the realm, so this doesn't need the krb5 config
+            return Krb5NameElement.getInstance(new PrincipalName(principal));
+        } catch (KrbException e) {
+            throw (GSSException) new GSSException(GSSException.BAD_NAME, -1, "Malformed name " + principal)
+                .initCause(e);
+        }
+    }
+
+    private static Accessors checkAvailable() throws GSSException {
+        if (ACCESSORS == null) {
+            throw new GSSException(GSSException.UNAVAILABLE, -1,
+                "Context export and import are unavailable, see " + Krb5ContextAccess.class.getName());
+        }
+        return ACCESSORS;
+    }
+
+    private static GSSException unavailable(Throwable cause) {
+        return (GSSException) new GSSException(GSSException.UNAVAILABLE, -1, "Failed to access context state")
+            .initCause(cause);
+    }
+
+    private static final class Accessors {
+
+        final Class<?> krb5Context;
+
+        final Constructor<?> initiatorConstructor;
+
+        final Constructor<?> acceptorConstructor;
+
+        final Field state;
+
+        final Field myName;
+
+        final Field peerName;
+
+        final Field key;
+
+        final Field keySrc;
+
+        final Field mySeqNumber;
+
+        final Field mySeqNumberLock;
+
+        final Field peerTokenTracker;
+
+        final Field expectedNumber;
+
+        final Field tktFlags;
+
+        final Field authTime;
+
+        final Field authzData;
+
+        final Field serviceCreds;
+
+        final Method setKey;
+
+        final Method resetMySequenceNumber;
+
+        final Method resetPeerSequenceNumber;
+
+        final Method setCredDelegState;
+
+        final Method setMutualAuthState;
+
+        final Method setReplayDetState;
+
+        final Method setSequenceDetState;
+
+        final Method setConfState;
+
+        final Method setIntegState;
+
+        final Method setDelegPolicyState;
+
+        final Method wrap;
+
+        final Method unwrap;
+
+        Accessors() throws ReflectiveOperationException {
+            krb5Context = Class.forName(KRB5_CONTEXT_CLASS_NAME);
+            Class<?> krb5CredElement = Class.forName("sun.security.jgss.krb5.Krb5CredElement");
+            initiatorConstructor = accessible(krb5Context.getDeclaredConstructor(GSSCaller.class,
+                Krb5NameElement.class, krb5CredElement, int.class));
+            acceptorConstructor = accessible(krb5Context.getDeclaredConstructor(GSSCaller.class, krb5CredElement));
+            state = field(krb5Context, "state");
+            myName = field(krb5Context, "myName");
+            peerName = field(krb5Context, "peerName");
+            key = field(krb5Context, "key");
+            keySrc = field(krb5Context, "keySrc");
+            mySeqNumber = field(krb5Context, "mySeqNumber");
+            mySeqNumberLock = field(krb5Context, "mySeqNumberLock");
+            peerTokenTracker = field(krb5Context, "peerTokenTracker");
+            expectedNumber = field(TokenTracker.class, "expectedNumber");
+            tktFlags = field(krb5Context, "tktFlags");
+            authTime = field(krb5Context, "authTime");
+            authzData = field(krb5Context, "authzData");
+            serviceCreds = field(krb5Context, "serviceCreds");
+            setKey = method("setKey", int.class, EncryptionKey.class);
+            resetMySequenceNumber = method("resetMySequenceNumber", int.class);
+            resetPeerSequenceNumber = method("resetPeerSequenceNumber", int.class);
+            setCredDelegState = method("setCredDelegState", boolean.class);
+            setMutualAuthState = method("setMutualAuthState", boolean.class);
+            setReplayDetState = method("setReplayDetState", boolean.class);
+            setSequenceDetState = method("setSequenceDetState", boolean.class);
+            setConfState = method("setConfState", boolean.class);
+            setIntegState = method("setIntegState", boolean.class);
+            setDelegPolicyState = method("setDelegPolicyState", boolean.class);
+            wrap = method("wrap", byte[].class, int.class, int.class, byte[].class, int.class, MessageProp.class);
+            unwrap = method("unwrap", byte[].class, int.class, int.class, byte[].class, int.class, MessageProp.class);
+        }
+
+        private static Field field(Class<?> clazz, String name) throws NoSuchFieldException {
+            return accessible(clazz.getDeclaredField(name));
+        }
+
+        private Method method(String name, Class<?>... parameterTypes) throws NoSuchMethodException {
+            return accessible(krb5Context.getDeclaredMethod(name, parameterTypes));
+        }
+
+        private static <T extends AccessibleObject> T accessible(T object) {
+            object.setAccessible(true);
+            return object;
+        }
+    }
+}
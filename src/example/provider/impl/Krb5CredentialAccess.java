@@ -0,0 +1,111 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.kerberos.KerberosTicket;
+import org.ietf.jgss.GSSException;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5InitCredential;
+import sun.security.jgss.krb5.Krb5NameElement;
+import sun.security.jgss.krb5.Krb5Util;
+import sun.security.krb5.Credentials;
+import sun.security.krb5.KrbException;
+
+/**
+ * Reflective access to the package-private factory of the delegate's {@link Krb5InitCredential}, used to recreate
+ * credential elements from the ticket material kept by {@link CredentialStore}.
+ * <p/>
+ * NOTE: a real implementation would pass the material to its native code, this is only needed because this
+ * demonstration delegates to the built-in classes. From Java 9 it requires the {@code sun.security.jgss.krb5}
+ * package of the {@code java.security.jgss} module to be opened to this code with {@code --add-opens}.
+ */
+final class Krb5CredentialAccess {
+
+    private static final Logger LOGGER = Logger.getLogger(Krb5CredentialAccess.class.getCanonicalName());
+
+    private static final Method GET_INSTANCE;
+
+    static {
+        Method getInstance = null;
+        try {
+            getInstance = Krb5InitCredential.class.getDeclaredMethod("getInstance", Krb5NameElement.class,
+                Credentials.class);
+            getInstance.setAccessible(true);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, e, () -> "Credential elements can't be created from tickets");
+        }
+        GET_INSTANCE = getInstance;
+    }
+
+    private Krb5CredentialAccess() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Whether credential elements can be created from tickets.
+     */
+    static boolean isAvailable() {
+        return GET_INSTANCE != null;
+    }
+
+    /**
+     * Create an initiator credential element from a ticket-granting ticket, which is left as it is.
+     */
+    static Krb5InitCredential fromTicket(KerberosTicket ticket) throws GSSException {
+        try {
+            return fromCredentials(Krb5Util.ticketToCreds(ticket));
+        } catch (KrbException | IOException e) {
+            throw (GSSException) new GSSException(GSSException.DEFECTIVE_CREDENTIAL, -1, "Malformed ticket")
+                .initCause(e);
+        }
+    }
+
+    /**
+     * Create an initiator credential element from a ticket-granting ticket, e.g. one read from a ccache.
+     */
+    static Krb5InitCredential fromCredentials(Credentials tgt) throws GSSException {
+        if (GET_INSTANCE == null) {
+            throw new GSSException(GSSException.UNAVAILABLE, -1,
+                "Credential elements can't be created from tickets, see " + Krb5CredentialAccess.class.getName());
+        }
+
+        try {
+            // The name is taken from the ticket
+            return (Krb5InitCredential) GET_INSTANCE.invoke(null, null, tgt);
+        } catch (ReflectiveOperationException e) {
+            if (e.getCause() instanceof GSSException) {
+                throw (GSSException) e.getCause();
+            }
+            throw (GSSException) new GSSException(GSSException.FAILURE, -1, "Failed to create credential element")
+                .initCause(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.Configurations;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5NameElement;
+import sun.security.krb5.Config;
+import sun.security.krb5.KrbException;
+import sun.security.krb5.PrincipalName;
+import sun.security.krb5.Realm;
+import sun.security.krb5.RealmException;
+
+/**
+ * Caches the lookups needed for creating Kerberos names: the default realm, the canonical names of hosts, and the
+ * realms of hosts, see {@link RefreshingCache}. The times to live are set by
+ * {@link Configurations#getNameResolverTtlSeconds()} and {@link Configurations#getNameResolverNegativeTtlSeconds()}.
+ * <p/>
+ * Host-based service names ({@link GSSName#NT_HOSTBASED_SERVICE}) are created the same way as the delegate does,
+ * canonicalizing the host name with DNS if the result extends it (e.g. {@code bunny -> bunny.rabbit.hole}), unless
+ * {@code dns_canonicalize_hostname} is false in the {@code libdefaults} section of the Kerberos configuration, and
+ * mapping it to a realm with the {@code domain_realm} section, but with the results of these cached, instead of
+ * looking them up for every new name. Note that the delegate only honors {@code dns_canonicalize_hostname} from Java
+ * 12, this honors it on every version.
+ * <p/>
+ * NOTE: a real implementation would do the same in its native code (or leave it to its native library), this one
+ * needs reflective access to the delegate's name constructor, and falls back to the delegate without it.
+ */
+public final class NameResolver {
+
+    private static final Logger LOGGER = Logger.getLogger(NameResolver.class.getCanonicalName());
+
+    private static final int MAX_HOSTS = 10_000;
+
+    // The key of the default realm and the local host in the caches
+    private static final String DEFAULT = "";
+
+    private static final Constructor<Krb5NameElement> NAME_CONSTRUCTOR;
+
+    static {
+        Constructor<Krb5NameElement> constructor = null;
+        try {
+            constructor = Krb5NameElement.class.getDeclaredConstructor(PrincipalName.class, String.class, Oid.class);
+            constructor.setAccessible(true);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, e, () -> "Host-based service names are created by the delegate");
+        }
+        NAME_CONSTRUCTOR = constructor;
+    }
+
+    private static final RefreshingCache<String, String> DEFAULT_REALM =
+        newCache(key -> Realm.getDefault().toString(), 1);
+
+    private static final RefreshingCache<String, String> CANONICAL_HOSTS =
+        newCache(NameResolver::lookUpCanonicalHost, MAX_HOSTS);
+
+    private static final RefreshingCache<String, String> HOST_REALMS =
+        newCache(NameResolver::lookUpHostRealm, MAX_HOSTS);
+
+    private NameResolver() {
+    }
+
+    /**
+     * Get the default realm of the Kerberos configuration.
+     */
+    public static String getDefaultRealm() throws RealmException {
+        try {
+            return DEFAULT_REALM.get(DEFAULT);
+        } catch (RealmException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw (RealmException) new RealmException(e.getMessage()).initCause(e);
+        }
+    }
+
+    /**
+     * Forget all cached results, e.g. after the Kerberos configuration has been refreshed.
+     */
+    public static void clear() {
+        DEFAULT_REALM.clear();
+        CANONICAL_HOSTS.clear();
+        HOST_REALMS.clear();
+    }
+
+    /**
+     * Create the delegate's element of a host-based service name, or return null if it has to be created by the
+     * delegate.
+     */
+    static Krb5NameElement getHostBasedName(String gssNameStr) throws GSSException {
+        if (NAME_CONSTRUCTOR == null || System.getSecurityManager() != null) {
+            // The delegate checks permissions for names in the default realm with a security manager
+            return null;
+        }
+
+        // Parsed the same way as the delegate does, the host name is after the last unescaped @
+        int separator = gssNameStr.lastIndexOf('@');
+        if (separator > 0 && gssNameStr.charAt(separator - 1) == '\\'
+            && (separator < 2 || gssNameStr.charAt(separator - 2) != '\\')) {
+            separator = -1;
+        }
+        String service = separator > 0 ? gssNameStr.substring(0, separator) : gssNameStr;
+        String host = separator > 0 ? gssNameStr.substring(separator + 1) : DEFAULT;
+        if (service.isEmpty() || service.indexOf('/') >= 0 || host.indexOf('/') >= 0 || host.indexOf('@') >= 0) {
+            // Leave the unusual cases and the errors to the delegate
+            return null;
+        }
+
+        try {
+            String canonicalHost = CANONICAL_HOSTS.get(host.toLowerCase(Locale.ENGLISH));
+            if (canonicalHost == null) {
+                if (host.equals(DEFAULT)) {
+                    return null;
+                }
+                canonicalHost = normalize(host.toLowerCase(Locale.ENGLISH));
+            }
+            String realm = HOST_REALMS.get(canonicalHost);
+            if (realm == null) {
+                realm = getDefaultRealm();
+            }
+            PrincipalName principal = new PrincipalName(PrincipalName.KRB_NT_SRV_HST,
+                new String[] {service, canonicalHost}, new Realm(realm));
+            return NAME_CONSTRUCTOR.newInstance(principal, gssNameStr, GSSName.NT_HOSTBASED_SERVICE);
+        } catch (InvocationTargetException e) {
+            throw (GSSException) new GSSException(GSSException.BAD_NAME, -1, e.getCause().getMessage())
+                .initCause(e.getCause());
+        } catch (KrbException e) {
+            throw (GSSException) new GSSException(GSSException.BAD_NAME, -1, e.getMessage()).initCause(e);
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to create " + gssNameStr + ", falling back to the delegate");
+            return null;
+        }
+    }
+
+    // Same as the delegate's canonicalization, returns null if the host can't be resolved
+    private static String lookUpCanonicalHost(String host) {
+        try {
+            String hostName = host.equals(DEFAULT)
+                ? InetAddress.getLocalHost().getHostName().toLowerCase(Locale.ENGLISH)
+                : host;
+            if (!isDnsCanonicalization()) {
+                return hostName.toLowerCase(Locale.ENGLISH);
+            }
+            String canonicalized = InetAddress.getByName(hostName).getCanonicalHostName();
+            if (canonicalized.toLowerCase(Locale.ENGLISH).startsWith(hostName + ".")) {
+                hostName = canonicalized;
+            }
+            return normalize(hostName);
+        } catch (UnknownHostException | SecurityException e) {
+            return null;
+        }
+    }
+
+    // Same as the delegate's check, canonicalizing unless it's explicitly disabled
+    private static boolean isDnsCanonicalization() {
+        try {
+            return Config.getInstance().getBooleanObject("libdefaults", "dns_canonicalize_hostname") != Boolean.FALSE;
+        } catch (KrbException e) {
+            return true;
+        }
+    }
+
+    private static String normalize(String hostName) {
+        if (hostName.endsWith(".")) {
+            hostName = hostName.substring(0, hostName.length() - 1);
+        }
+        return hostName.toLowerCase(Locale.ENGLISH);
+    }
+
+    // Same as the delegate's mapping, returns null if the default realm should be used
+    private static String lookUpHostRealm(String host) throws KrbException {
+        Config config = Config.getInstance();
+        String realm = config.get("domain_realm", host);
+        for (int i = 1; realm == null && i < host.length() - 1; i++) {
+            if (host.charAt(i) == '.') {
+                realm = config.get("domain_realm", host.substring(i));
+                if (realm == null) {
+                    realm = config.get("domain_realm", host.substring(i + 1));
+                }
+            }
+        }
+        return realm;
+    }
+
+    private static <V> RefreshingCache<String, V> newCache(RefreshingCache.Loader<String, V> loader, int maxSize) {
+        return new RefreshingCache<>(loader, TimeUnit.SECONDS.toMillis(Configurations.getNameResolverTtlSeconds()),
+            TimeUnit.SECONDS.toMillis(Configurations.getNameResolverNegativeTtlSeconds()), maxSize);
+    }
+}
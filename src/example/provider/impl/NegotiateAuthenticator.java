@@ -0,0 +1,400 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.Configurations;
+import example.provider.CustomKerberosJgssProvider;
+import example.provider.NegotiateStatistics;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLSession;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+
+/**
+ * The server side of HTTP Negotiate authentication (RFC 4559), independent of the HTTP server: the caller passes the
+ * relevant request headers and the TLS session in, and sends the headers of the {@link Result} back. See
+ * {@link NegotiateHttpAuthenticator} for {@code com.sun.net.httpserver}, a servlet filter would do the same with
+ * {@code HttpServletRequest.getHeader("Authorization")}, {@code getHeaders("Cookie")} and the
+ * {@code javax.servlet.request.ssl_session_id} attribute, passing a session whose {@link SSLSession#getId()} returns
+ * it.
+ * <p/>
+ * Clients send a new Kerberos token on each connection, each costing the acceptor a ticket decryption, a replay cache
+ * check and the authorization data parsing, so after accepting one, a short-lived session cookie is issued, which
+ * authenticates the further requests with a single HMAC. The cookie carries the client principal and its expiry time,
+ * and its HMAC also covers the id of the TLS session it was issued on, so it's only accepted on the same TLS session:
+ * a stolen cookie is useless without the session keys, and nothing needs to be stored on the server. Cookies are only
+ * issued and accepted over TLS sessions with an id, which e.g. TLS 1.3 sessions resumed from a stateless ticket may
+ * not have, see {@link Configurations#getNegotiateSessionLifetimeSeconds()} for their lifetime.
+ * <p/>
+ * NOTE: only single round trip authentication is supported, which is always the case for Kerberos, and for SPNEGO
+ * tokens listing Kerberos first, since the follow-up requests of a longer negotiation may come on another connection.
+ * <p/>
+ * Instances are thread-safe.
+ */
+public final class NegotiateAuthenticator {
+
+    private static final Logger LOGGER = Logger.getLogger(NegotiateAuthenticator.class.getCanonicalName());
+
+    public static final String AUTHORIZATION = "Authorization";
+
+    public static final String WWW_AUTHENTICATE = "WWW-Authenticate";
+
+    public static final String COOKIE = "Cookie";
+
+    public static final String SET_COOKIE = "Set-Cookie";
+
+    public static final String SESSION_COOKIE = "NEGOTIATE_SESSION";
+
+    private static final String NEGOTIATE = "Negotiate";
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final Result CHALLENGE = new Result(null, NEGOTIATE, null, false);
+
+    // The value of each Base64 character, -1 for the others
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private static final LongAdder ACCEPTS = new LongAdder();
+
+    private static final LongAdder ACCEPT_NANOS = new LongAdder();
+
+    private static final LongAdder SESSION_HITS = new LongAdder();
+
+    private static final LongAdder SESSION_HIT_NANOS = new LongAdder();
+
+    private static final LongAdder FAILURES = new LongAdder();
+
+    private final GSSManager manager;
+
+    private final GSSCredential credential;
+
+    private final long sessionLifetimeMillis;
+
+    private final ThreadLocal<Mac> macs;
+
+    /**
+     * Create an authenticator whose session cookies are only accepted by itself, signed with a random key.
+     *
+     * @param credential the acceptor credential, or null for the default one
+     */
+    public NegotiateAuthenticator(GSSCredential credential) {
+        this(credential, randomKey());
+    }
+
+    /**
+     * Create an authenticator whose session cookies are signed with the given key, so that all the servers sharing it
+     * accept them (as long as the TLS session is the same, e.g. it's terminated on a load balancer).
+     *
+     * @param credential the acceptor credential, or null for the default one
+     * @param sessionKey the HMAC-SHA256 key of the session cookies
+     */
+    public NegotiateAuthenticator(GSSCredential credential, SecretKey sessionKey) {
+        CustomKerberosJgssProvider.install();
+        this.manager = GSSManager.getInstance();
+        this.credential = credential;
+        this.sessionLifetimeMillis = Configurations.getNegotiateSessionLifetimeSeconds() * 1000L;
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(sessionKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Failed to initialize " + MAC_ALGORITHM, e);
+            }
+        });
+    }
+
+    private static SecretKey randomKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return new SecretKeySpec(key, MAC_ALGORITHM);
+    }
+
+    /**
+     * Get the counters and latencies of the authentications of all instances.
+     */
+    public static NegotiateStatistics getStatistics() {
+        return new NegotiateStatistics(ACCEPTS.sum(), ACCEPT_NANOS.sum(), SESSION_HITS.sum(), SESSION_HIT_NANOS.sum(),
+            FAILURES.sum());
+    }
+
+    /**
+     * Authenticate a request by its session cookie if it has a valid one, otherwise by the Kerberos token in its
+     * {@value #AUTHORIZATION} header.
+     *
+     * @param authorization the {@value #AUTHORIZATION} header, or null if absent
+     * @param cookies the {@value #COOKIE} headers, or null if absent
+     * @param tlsSession the TLS session of the connection, or null if it isn't over TLS, session cookies are only
+     *     used if it has an id
+     */
+    public Result authenticate(String authorization, List<String> cookies, SSLSession tlsSession) {
+        long start = System.nanoTime();
+        byte[] tlsSessionId = tlsSession == null ? null : tlsSession.getId();
+        // Without a session id, the cookie wouldn't be bound to anything
+        boolean sessions = sessionLifetimeMillis > 0 && tlsSessionId != null && tlsSessionId.length > 0;
+        if (sessions && cookies != null) {
+            String principal = verifySession(cookies, tlsSessionId);
+            if (principal != null) {
+                SESSION_HITS.increment();
+                SESSION_HIT_NANOS.add(System.nanoTime() - start);
+                return new Result(principal, null, null, true);
+            }
+        }
+
+        byte[] token = readToken(authorization);
+        if (token == null) {
+            return CHALLENGE;
+        }
+
+        GSSContext context = null;
+        try {
+            context = manager.createContext(credential);
+            byte[] responseToken = context.acceptSecContext(token, 0, token.length);
+            if (!context.isEstablished()) {
+                LOGGER.fine("Rejecting a negotiation that needs more than one round trip");
+                FAILURES.increment();
+                return CHALLENGE;
+            }
+            String principal = context.getSrcName().toString();
+            Result result = new Result(principal,
+                responseToken == null ? null : NEGOTIATE + ' ' + Base64.getEncoder().encodeToString(responseToken),
+                sessions ? issueSession(principal, tlsSessionId) : null, false);
+            ACCEPTS.increment();
+            ACCEPT_NANOS.add(System.nanoTime() - start);
+            return result;
+        } catch (GSSException e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to accept a Negotiate token");
+            FAILURES.increment();
+            return CHALLENGE;
+        } finally {
+            if (context != null) {
+                try {
+                    context.dispose();
+                } catch (GSSException e) {
+                    LOGGER.log(Level.FINE, e, () -> "Failed to dispose a context");
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode the token of a Negotiate {@value #AUTHORIZATION} header straight from its characters, without the
+     * intermediate strings and byte arrays of splitting it and {@link java.util.Base64.Decoder}.
+     *
+     * @return the token, or null if the header is absent, is for another scheme, or is malformed
+     */
+    static byte[] readToken(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, NEGOTIATE, 0, NEGOTIATE.length())) {
+            return null;
+        }
+        int offset = NEGOTIATE.length();
+        int end = authorization.length();
+        // The scheme is separated from its token68 by at least one space (RFC 7235), e.g. not "Negotiate2 ..."
+        if (offset == end || authorization.charAt(offset) != ' ') {
+            return null;
+        }
+        while (offset < end && authorization.charAt(offset) == ' ') {
+            offset++;
+        }
+        while (end > offset && authorization.charAt(end - 1) == ' ') {
+            end--;
+        }
+        // At most two padding characters
+        for (int i = 0; i < 2 && end > offset && authorization.charAt(end - 1) == '='; i++) {
+            end--;
+        }
+        int length = end - offset;
+        if (length == 0 || length % 4 == 1) {
+            return null;
+        }
+
+        byte[] token = new byte[length / 4 * 3 + Math.max(0, length % 4 - 1)];
+        int bits = 0;
+        int bitCount = 0;
+        int pos = 0;
+        for (int i = offset; i < end; i++) {
+            char c = authorization.charAt(i);
+            int value = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                return null;
+            }
+            bits = bits << 6 | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                token[pos++] = (byte) (bits >> bitCount);
+            }
+        }
+        return token;
+    }
+
+    private String issueSession(String principal, byte[] tlsSessionId) {
+        byte[] name = principal.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = ByteBuffer.allocate(Long.BYTES + name.length)
+            .putLong(System.currentTimeMillis() + sessionLifetimeMillis)
+            .put(name)
+            .array();
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return SESSION_COOKIE + '=' + encoder.encodeToString(payload) + '.'
+            + encoder.encodeToString(sign(payload, tlsSessionId)) + "; Max-Age=" + sessionLifetimeMillis / 1000L
+            + "; Path=/; Secure; HttpOnly; SameSite=Strict";
+    }
+
+    private String verifySession(List<String> cookies, byte[] tlsSessionId) {
+        String value = findSessionCookie(cookies);
+        int dot = value == null ? -1 : value.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            byte[] payload = decoder.decode(value.substring(0, dot));
+            byte[] signature = decoder.decode(value.substring(dot + 1));
+            if (payload.length <= Long.BYTES || !MessageDigest.isEqual(signature, sign(payload, tlsSessionId))) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            if (buffer.getLong() < System.currentTimeMillis()) {
+                return null;
+            }
+            return new String(payload, Long.BYTES, payload.length - Long.BYTES, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.FINE, e, () -> "Ignoring a malformed session cookie");
+            return null;
+        }
+    }
+
+    private static String findSessionCookie(List<String> cookies) {
+        for (String header : cookies) {
+            int start = 0;
+            while (start < header.length()) {
+                int end = header.indexOf(';', start);
+                if (end < 0) {
+                    end = header.length();
+                }
+                while (start < end && header.charAt(start) == ' ') {
+                    start++;
+                }
+                if (header.startsWith(SESSION_COOKIE, start) && start + SESSION_COOKIE.length() < end
+                    && header.charAt(start + SESSION_COOKIE.length()) == '=') {
+                    return header.substring(start + SESSION_COOKIE.length() + 1, end).trim();
+                }
+                start = end + 1;
+            }
+        }
+        return null;
+    }
+
+    private byte[] sign(byte[] payload, byte[] tlsSessionId) {
+        // The payload is length-prefixed, so that no other split of the same bytes has the same HMAC
+        byte[] length = new byte[Integer.BYTES];
+        ByteArrays.writeInt(payload.length, length, 0);
+        Mac mac = macs.get();
+        mac.update(length);
+        mac.update(payload);
+        return mac.doFinal(tlsSessionId);
+    }
+
+    /**
+     * The outcome of {@link #authenticate(String, List, SSLSession)}.
+     */
+    public static final class Result {
+
+        private final String principal;
+
+        private final String wwwAuthenticate;
+
+        private final String setCookie;
+
+        private final boolean session;
+
+        private Result(String principal, String wwwAuthenticate, String setCookie, boolean session) {
+            this.principal = principal;
+            this.wwwAuthenticate = wwwAuthenticate;
+            this.setCookie = setCookie;
+            this.session = session;
+        }
+
+        /**
+         * Whether the request is authenticated, otherwise it should be answered with a 401 status.
+         */
+        public boolean isAuthenticated() {
+            return principal != null;
+        }
+
+        /**
+         * The client principal (e.g. {@code user@EXAMPLE.COM}), or null if not authenticated.
+         */
+        public String getPrincipal() {
+            return principal;
+        }
+
+        /**
+         * The value of the {@value #WWW_AUTHENTICATE} header to send, the challenge if not authenticated, or the
+         * mutual authentication token if there's one, otherwise null.
+         */
+        public String getWwwAuthenticate() {
+            return wwwAuthenticate;
+        }
+
+        /**
+         * The value of the {@value #SET_COOKIE} header to send, or null if no session cookie was issued.
+         */
+        public String getSetCookie() {
+            return setCookie;
+        }
+
+        /**
+         * Whether the request was authenticated by its session cookie rather than a Kerberos token.
+         */
+        public boolean isSession() {
+            return session;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpsExchange;
+import java.net.HttpURLConnection;
+import javax.net.ssl.SSLSession;
+import org.ietf.jgss.GSSCredential;
+
+/**
+ * HTTP Negotiate authentication for {@code com.sun.net.httpserver}, see {@link NegotiateAuthenticator}. Install it
+ * with {@link com.sun.net.httpserver.HttpContext#setAuthenticator(Authenticator)}, which runs it as a filter in front
+ * of the handler, and makes the client principal available from {@link HttpExchange#getPrincipal()}, with the part
+ * before the realm as its user name, and the realm as its realm.
+ */
+public class NegotiateHttpAuthenticator extends Authenticator {
+
+    private final NegotiateAuthenticator authenticator;
+
+    /**
+     * @param credential the acceptor credential, or null for the default one
+     */
+    public NegotiateHttpAuthenticator(GSSCredential credential) {
+        this(new NegotiateAuthenticator(credential));
+    }
+
+    public NegotiateHttpAuthenticator(NegotiateAuthenticator authenticator) {
+        this.authenticator = authenticator;
+    }
+
+    @Override
+    public Result authenticate(HttpExchange exchange) {
+        SSLSession tlsSession = exchange instanceof HttpsExchange ? ((HttpsExchange) exchange).getSSLSession() : null;
+        Headers requestHeaders = exchange.getRequestHeaders();
+        NegotiateAuthenticator.Result result = authenticator.authenticate(
+            requestHeaders.getFirst(NegotiateAuthenticator.AUTHORIZATION),
+            requestHeaders.get(NegotiateAuthenticator.COOKIE), tlsSession);
+
+        Headers responseHeaders = exchange.getResponseHeaders();
+        if (result.getWwwAuthenticate() != null) {
+            responseHeaders.add(NegotiateAuthenticator.WWW_AUTHENTICATE, result.getWwwAuthenticate());
+        }
+        if (!result.isAuthenticated()) {
+            return new Retry(HttpURLConnection.HTTP_UNAUTHORIZED);
+        }
+        if (result.getSetCookie() != null) {
+            responseHeaders.add(NegotiateAuthenticator.SET_COOKIE, result.getSetCookie());
+        }
+
+        String principal = result.getPrincipal();
+        int at = principal.lastIndexOf('@');
+        return new Success(at < 0 ? new HttpPrincipal(principal, "")
+            : new HttpPrincipal(principal.substring(0, at), principal.substring(at + 1)));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import sun.security.util.ObjectIdentifier;
+
+/**
+ * Creates the internal {@link ObjectIdentifier}s needed for the GSS token headers, see {@link IOUtils}.
+ * <p/>
+ * The multi-release JAR has a variant of this class for Java 17, which calls {@code ObjectIdentifier.of(String)}
+ * directly (see {@code src-java17}). This one calls the constructor, and only falls back to reflection where it's no
+ * longer accessible: on Java 15 and 16, and on the Java 11 updates that got {@code of(String)} backported.
+ */
+final class ObjectIdentifiers {
+
+    private ObjectIdentifiers() {
+        throw new AssertionError();
+    }
+
+    static ObjectIdentifier of(String oid) {
+        try {
+            try {
+                return new ObjectIdentifier(oid);
+            } catch (IllegalAccessError | NoSuchMethodError e) {
+                // ObjectIdentifier.of(input), from Java 15
+                Method mthd = ObjectIdentifier.class.getMethod("of", String.class);
+                return (ObjectIdentifier) mthd.invoke(null, oid);
+            }
+        } catch (IOException | NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
+            throw new IllegalStateException("Failed to get OID", e);
+        }
+    }
+}
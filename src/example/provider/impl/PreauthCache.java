@@ -0,0 +1,237 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.CacheStatistics;
+import example.provider.Configurations;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.kerberos.KeyTab;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5Util;
+import sun.security.krb5.Config;
+import sun.security.krb5.Credentials;
+import sun.security.krb5.EncryptionKey;
+import sun.security.krb5.KdcComm;
+import sun.security.krb5.KrbAsReq;
+import sun.security.krb5.KrbException;
+import sun.security.krb5.PrincipalName;
+import sun.security.krb5.internal.KDCOptions;
+import sun.security.krb5.internal.Krb5;
+import sun.security.krb5.internal.PAData;
+import sun.security.krb5.internal.crypto.EType;
+
+/**
+ * Remembers the encryption type each principal pre-authenticates with, as sent by the KDC in the PA-ETYPE-INFO2 of its
+ * {@code PREAUTH_REQUIRED} error, so that the following keytab logins of the principal send a pre-authenticated
+ * AS-REQ right away, instead of first sending one without pre-authentication just to get the error.
+ * <p/>
+ * Only the encryption type is kept: the salt and string-to-key parameters are only needed for deriving keys from
+ * passwords, the keys in keytabs are already derived. If the KDC rejects the pre-authentication (e.g. the keys were
+ * changed), the entry is replaced with the one in the new error, and the login retried once, the same as the delegate
+ * does. Used by {@link PreauthKrb5LoginModule} when enabled by {@link Configurations#isPreauthCache()}.
+ * <p/>
+ * NOTE: a real implementation would leave this to its native library, this one reaches the package-private AS-REQ
+ * and AS-REP classes of the delegate by reflection, and is disabled without them. From Java 9 it requires the
+ * {@code sun.security.krb5} package of the {@code java.security.jgss} module to be opened to this code with
+ * {@code --add-opens}.
+ */
+public final class PreauthCache {
+
+    private static final Logger LOGGER = Logger.getLogger(PreauthCache.class.getCanonicalName());
+
+    private static final Method ENCODING;
+
+    private static final Constructor<?> NEW_AS_REP;
+
+    private static final Method DECRYPT_USING_KEY_TAB;
+
+    private static final Method GET_CREDS;
+
+    static {
+        Method encoding = null;
+        Constructor<?> newAsRep = null;
+        Method decryptUsingKeyTab = null;
+        Method getCreds = null;
+        try {
+            encoding = KrbAsReq.class.getDeclaredMethod("encoding");
+            encoding.setAccessible(true);
+            Class<?> asRep = Class.forName("sun.security.krb5.KrbAsRep");
+            newAsRep = asRep.getDeclaredConstructor(byte[].class);
+            newAsRep.setAccessible(true);
+            decryptUsingKeyTab = asRep.getDeclaredMethod("decryptUsingKeyTab", KeyTab.class, KrbAsReq.class,
+                PrincipalName.class);
+            decryptUsingKeyTab.setAccessible(true);
+            getCreds = asRep.getDeclaredMethod("getCreds");
+            getCreds.setAccessible(true);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, e, () -> "Pre-authentication can't be cached");
+            encoding = null;
+        }
+        ENCODING = encoding;
+        NEW_AS_REP = newAsRep;
+        DECRYPT_USING_KEY_TAB = decryptUsingKeyTab;
+        GET_CREDS = getCreds;
+    }
+
+    private static final ConcurrentHashMap<String, Integer> ETYPES = new ConcurrentHashMap<>();
+
+    private static final LongAdder HITS = new LongAdder();
+
+    private static final LongAdder MISSES = new LongAdder();
+
+    private PreauthCache() {
+    }
+
+    /**
+     * Whether keytab logins are pre-authenticated with the cached encryption types.
+     */
+    public static boolean isEnabled() {
+        return Configurations.isPreauthCache() && ENCODING != null;
+    }
+
+    /**
+     * Get the usage counters of the cache: hits are logins done in a single round trip, misses are the ones that
+     * needed another one for the pre-authentication.
+     */
+    public static CacheStatistics getStatistics() {
+        return new CacheStatistics(HITS.sum(), MISSES.sum());
+    }
+
+    /**
+     * Whether the logins of the principal can be done here, rather than by the delegate's login module: not when
+     * referrals are enabled, which the delegate handles with extra requests.
+     */
+    static boolean supports(PrincipalName principal) {
+        if (!isEnabled() || principal.getNameType() == PrincipalName.KRB_NT_ENTERPRISE) {
+            return false;
+        }
+        try {
+            return Config.getInstance().getBooleanObject("libdefaults", "canonicalize") != Boolean.TRUE;
+        } catch (KrbException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get a ticket-granting ticket for the principal with its keys in the keytab, the same as the delegate's login
+     * module does, but pre-authenticated right away if the principal's encryption type is cached.
+     *
+     * @throws KrbException if the login fails, e.g. the keytab has no keys for the principal
+     * @throws UnavailableException if the delegate's classes can't be used, and the login should be left to it
+     */
+    static Credentials login(PrincipalName principal, KeyTab keyTab) throws KrbException, IOException {
+        String name = principal.getName();
+        Integer etype = ETYPES.get(name);
+        boolean retried = false;
+        while (true) {
+            EncryptionKey[] keys = Krb5Util.keysFromJavaxKeyTab(keyTab, principal);
+            try {
+                int[] etypes = EType.getDefaults("default_tkt_enctypes", keys);
+                EncryptionKey preauthKey = etype == null ? null : EncryptionKey.findKey(etype, keys);
+                KrbAsReq request = new KrbAsReq(preauthKey, new KDCOptions(), principal, null, null, null, null, etypes,
+                    null, null);
+                byte[] reply = new KdcComm(principal.getRealmAsString()).send((byte[]) invoke(ENCODING, request));
+
+                Object asRep;
+                try {
+                    asRep = NEW_AS_REP.newInstance((Object) reply);
+                } catch (InvocationTargetException e) {
+                    KrbException error = toKrbException(e);
+                    if (retried || error.returnCode() != Krb5.KDC_ERR_PREAUTH_REQUIRED
+                        && error.returnCode() != Krb5.KDC_ERR_PREAUTH_FAILED) {
+                        throw error;
+                    }
+                    etype = PAData.getPreferredEType(error.getError().getPA(), etypes[0]);
+                    ETYPES.put(name, etype);
+                    int preferred = etype;
+                    LOGGER.fine(() -> "Pre-authenticating " + name + " with " + EType.toString(preferred));
+                    retried = true;
+                    continue;
+                }
+
+                invoke(DECRYPT_USING_KEY_TAB, asRep, keyTab, request, principal);
+                if (retried) {
+                    MISSES.increment();
+                } else if (preauthKey != null) {
+                    HITS.increment();
+                }
+                return (Credentials) invoke(GET_CREDS, asRep);
+            } catch (ReflectiveOperationException e) {
+                throw new UnavailableException("Failed to get a ticket for " + name, e);
+            } finally {
+                for (EncryptionKey key : keys) {
+                    key.destroy();
+                }
+            }
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args)
+        throws KrbException, IOException, IllegalAccessException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw toKrbException(e);
+        }
+    }
+
+    private static KrbException toKrbException(InvocationTargetException e) throws IOException {
+        Throwable cause = e.getCause();
+        if (cause instanceof KrbException) {
+            return (KrbException) cause;
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return (KrbException) new KrbException(String.valueOf(cause)).initCause(cause);
+    }
+
+    /**
+     * Thrown when the delegate's classes can't be used by reflection, so the login has to be left to it.
+     */
+    static final class UnavailableException extends IllegalStateException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import com.sun.security.auth.module.Krb5LoginModule;
+import example.provider.Configurations;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.DestroyFailedException;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.kerberos.KeyTab;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5Util;
+import sun.security.krb5.Credentials;
+import sun.security.krb5.EncryptionKey;
+import sun.security.krb5.KrbException;
+import sun.security.krb5.PrincipalName;
+
+/**
+ * Used instead of {@link Krb5LoginModule} in the login configurations when enabled by
+ * {@link Configurations#isPreauthCache()}, doing the keytab logins of initiators itself with {@link PreauthCache}, and
+ * leaving everything else (ticket caches, passwords, acceptors, referrals) to a {@link Krb5LoginModule} it delegates
+ * to. It takes the same options and puts the same principal, ticket and keytab in the subject. The logins the KDC
+ * rejects fail here, they are only left to the delegate when {@link PreauthCache} can't use its classes.
+ */
+public final class PreauthKrb5LoginModule implements LoginModule {
+
+    private static final Logger LOGGER = Logger.getLogger(PreauthKrb5LoginModule.class.getCanonicalName());
+
+    private final Krb5LoginModule delegate = new Krb5LoginModule();
+
+    private Subject subject;
+
+    private PrincipalName principal;
+
+    private String keyTabName;
+
+    private boolean storeKey;
+
+    // Whether this login is done here rather than by the delegate
+    private boolean handled;
+
+    private Credentials credentials;
+
+    private KerberosPrincipal kerberosPrincipal;
+
+    private KerberosTicket ticket;
+
+    private KeyTab keyTab;
+
+    @Override
+    public void initialize(Subject subject, CallbackHandler callbackHandler, Map<String, ?> sharedState,
+        Map<String, ?> options) {
+        delegate.initialize(subject, callbackHandler, sharedState, options);
+        this.subject = subject;
+
+        String principalName = (String) options.get("principal");
+        keyTabName = (String) options.get("keyTab");
+        storeKey = isTrue(options, "storeKey");
+        if (!isTrue(options, "useKeyTab") || isTrue(options, "useTicketCache") || isTrue(options, "refreshKrb5Config")
+            || "false".equalsIgnoreCase((String) options.get("isInitiator")) || principalName == null
+            || principalName.equals("*")) {
+            return;
+        }
+
+        try {
+            principal = new PrincipalName(principalName, PrincipalName.KRB_NT_PRINCIPAL);
+        } catch (KrbException | RuntimeException e) {
+            // The delegate reports it
+            principal = null;
+        }
+    }
+
+    @Override
+    public boolean login() throws LoginException {
+        if (principal != null && PreauthCache.supports(principal)) {
+            KerberosPrincipal kp = new KerberosPrincipal(principal.getName());
+            KeyTab kt = keyTabName == null ? KeyTab.getInstance(kp) : KeyTab.getInstance(kp, new File(keyTabName));
+            if (hasKeys(kt)) {
+                try {
+                    credentials = PreauthCache.login(principal, kt);
+                    keyTab = kt;
+                    handled = true;
+                    return true;
+                } catch (PreauthCache.UnavailableException e) {
+                    LOGGER.log(Level.FINE, e, () -> "Failed to log in " + principal + ", leaving it to the delegate");
+                } catch (KrbException | IOException e) {
+                    // The delegate would only repeat the exchange with the KDC
+                    throw (LoginException) new LoginException(e.getMessage()).initCause(e);
+                }
+            }
+        }
+        return delegate.login();
+    }
+
+    private boolean hasKeys(KeyTab kt) {
+        EncryptionKey[] keys = Krb5Util.keysFromJavaxKeyTab(kt, principal);
+        try {
+            return keys.length > 0;
+        } finally {
+            for (EncryptionKey key : keys) {
+                key.destroy();
+            }
+        }
+    }
+
+    @Override
+    public boolean commit() throws LoginException {
+        if (!handled) {
+            return delegate.commit();
+        }
+        if (subject.isReadOnly()) {
+            clear();
+            throw new LoginException("Subject is Readonly");
+        }
+
+        kerberosPrincipal = new KerberosPrincipal(principal.getName());
+        ticket = Krb5Util.credsToTicket(credentials);
+        if (!subject.getPrincipals().contains(kerberosPrincipal)) {
+            subject.getPrincipals().add(kerberosPrincipal);
+        }
+        if (!subject.getPrivateCredentials().contains(ticket)) {
+            subject.getPrivateCredentials().add(ticket);
+        }
+        if (storeKey && !subject.getPrivateCredentials().contains(keyTab)) {
+            subject.getPrivateCredentials().add(keyTab);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean abort() throws LoginException {
+        if (!handled) {
+            return delegate.abort();
+        }
+        logout();
+        return true;
+    }
+
+    @Override
+    public boolean logout() throws LoginException {
+        if (!handled) {
+            return delegate.logout();
+        }
+        if (subject.isReadOnly()) {
+            throw new LoginException("Subject is Readonly");
+        }
+
+        if (kerberosPrincipal != null) {
+            subject.getPrincipals().remove(kerberosPrincipal);
+        }
+        if (ticket != null) {
+            subject.getPrivateCredentials().remove(ticket);
+        }
+        if (storeKey && keyTab != null) {
+            subject.getPrivateCredentials().remove(keyTab);
+        }
+        clear();
+        return true;
+    }
+
+    private void clear() {
+        if (ticket != null) {
+            try {
+                ticket.destroy();
+            } catch (DestroyFailedException e) {
+                LOGGER.log(Level.FINE, e, () -> "Failed to destroy the ticket of " + principal);
+            }
+        }
+        credentials = null;
+        kerberosPrincipal = null;
+        ticket = null;
+        keyTab = null;
+        handled = false;
+    }
+
+    private static boolean isTrue(Map<String, ?> options, String name) {
+        return "true".equalsIgnoreCase((String) options.get(name));
+    }
+}
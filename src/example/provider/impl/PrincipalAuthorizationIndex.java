@@ -0,0 +1,272 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSName;
+import sun.security.jgss.GSSNameImpl;
+import sun.security.jgss.spi.GSSNameSpi;
+
+/**
+ * Maps Kerberos principals, e.g. the source names of accepted contexts, to the roles granted to them by a set of rules,
+ * without converting the names to strings.
+ * <p/>
+ * Each rule is a principal pattern, like {@code alice@EXAMPLE.COM}, in which any component, including the realm, may be
+ * {@code *} to match any value, e.g. {@code HTTP/*@EXAMPLE.COM} or {@code batch@*}. A wildcard matches a single
+ * component only, so {@code *@EXAMPLE.COM} doesn't match {@code HTTP/server.example.com@EXAMPLE.COM}. A principal has
+ * all the roles of the rules it matches. Escaped separators aren't supported in the patterns.
+ * <p/>
+ * Principals named by a rule without wildcards are found with a single hash lookup, by the canonical form of the name
+ * that the provider's name elements compute once, see {@link CustomGSSNameSpiImpl#getPrincipalKey()}, and their roles
+ * include those of the matching wildcard rules, merged when the rules are loaded. Other principals are looked up in a
+ * trie of all the rules by the realm, then the name components, in which the rules with wildcards are merged into
+ * their literal siblings too, so the lookup follows a single path, one hash lookup per component, to the precomputed
+ * set of roles.
+ * <p/>
+ * The rules can be replaced with {@link #reload(Map)} at any time: the new trie is built aside, then published at once,
+ * so lookups never wait, and see either the old or the new rules, never a mix.
+ */
+public final class PrincipalAuthorizationIndex {
+
+    private static final String WILDCARD = "*";
+
+    private volatile Rules rules = new Rules(new Node(), Collections.emptyMap());
+
+    public PrincipalAuthorizationIndex() {
+    }
+
+    /**
+     * Create an index with an initial set of rules, see {@link #reload(Map)}.
+     */
+    public PrincipalAuthorizationIndex(Map<String, ? extends Collection<String>> rules) {
+        reload(rules);
+    }
+
+    /**
+     * Replace the rules with a new set.
+     *
+     * @param rules the roles granted to each principal pattern
+     * @throws IllegalArgumentException if a pattern is malformed, in which case the current rules are kept
+     */
+    public void reload(Map<String, ? extends Collection<String>> rules) {
+        Node root = new Node();
+        List<String[]> exactPaths = new ArrayList<>();
+        for (Map.Entry<String, ? extends Collection<String>> rule : rules.entrySet()) {
+            String[] path = parsePattern(rule.getKey());
+            Node node = root;
+            boolean exact = true;
+            for (String component : path) {
+                if (WILDCARD.equals(component)) {
+                    node = node.wildcardChild();
+                    exact = false;
+                } else {
+                    node = node.child(component);
+                }
+            }
+            node.roles.addAll(rule.getValue());
+            if (exact) {
+                exactPaths.add(path);
+            }
+        }
+        determinize(root);
+        freeze(root);
+
+        Map<PrincipalKey, Set<String>> exact = new HashMap<>(exactPaths.size() * 2);
+        for (String[] path : exactPaths) {
+            exact.put(new PrincipalKey(path), lookup(root, path));
+        }
+        this.rules = new Rules(root, exact);
+    }
+
+    /**
+     * Get the roles of a principal.
+     *
+     * @return the roles, unmodifiable, empty if it has none
+     * @throws GSSException if the name isn't a Kerberos name
+     */
+    public Set<String> getRoles(GSSNameSpi name) throws GSSException {
+        return getRoles(PrincipalKey.of(name));
+    }
+
+    /**
+     * Get the roles of a principal, e.g. the one returned by {@link org.ietf.jgss.GSSContext#getSrcName()}.
+     *
+     * @return the roles, unmodifiable, empty if it has none
+     * @throws GSSException if the name isn't a Kerberos name
+     */
+    public Set<String> getRoles(GSSName name) throws GSSException {
+        if (name instanceof GSSNameImpl) {
+            return getRoles(((GSSNameImpl) name).getElement(CustomKrb5MechFactory.GSS_KRB5_MECH_OID));
+        }
+        return getRoles(new PrincipalKey(parsePattern(name.toString())));
+    }
+
+    /**
+     * Check whether a principal has a role.
+     *
+     * @throws GSSException if the name isn't a Kerberos name
+     */
+    public boolean hasRole(GSSNameSpi name, String role) throws GSSException {
+        return getRoles(name).contains(role);
+    }
+
+    private Set<String> getRoles(PrincipalKey key) {
+        Rules current = rules;
+        Set<String> roles = current.exact.get(key);
+        return roles != null ? roles : lookup(current.root, key.path);
+    }
+
+    private static Set<String> lookup(Node root, String[] path) {
+        Node node = root;
+        for (String component : path) {
+            Node next = node.children.get(component);
+            node = next != null ? next : node.wildcard;
+            if (node == null) {
+                return Collections.emptySet();
+            }
+        }
+        return node.roles;
+    }
+
+    /**
+     * Split a pattern into its realm followed by its name components, like {@link PrincipalKey#path}.
+     */
+    private static String[] parsePattern(String pattern) {
+        int at = pattern.lastIndexOf('@');
+        if (at <= 0 || at == pattern.length() - 1) {
+            throw new IllegalArgumentException("Principal pattern without a name or realm: " + pattern);
+        }
+        String[] components = pattern.substring(0, at).split("/", -1);
+        String[] path = new String[components.length + 1];
+        path[0] = pattern.substring(at + 1);
+        for (int i = 0; i < components.length; i++) {
+            if (components[i].isEmpty()) {
+                throw new IllegalArgumentException("Empty component in principal pattern: " + pattern);
+            }
+            path[i + 1] = components[i];
+        }
+        return path;
+    }
+
+    /**
+     * Merge the wildcard child of each node into its literal siblings, so that lookups only need to fall back to the
+     * wildcard child if there's no literal one.
+     */
+    private static void determinize(Node node) {
+        if (node.wildcard != null) {
+            for (Map.Entry<String, Node> child : node.children.entrySet()) {
+                child.setValue(merge(child.getValue(), node.wildcard));
+            }
+            determinize(node.wildcard);
+        }
+        for (Node child : node.children.values()) {
+            determinize(child);
+        }
+    }
+
+    /**
+     * Create a node matching everything either of the nodes matches, without modifying them.
+     */
+    private static Node merge(Node first, Node second) {
+        if (first == null && second == null) {
+            return null;
+        }
+
+        Node merged = new Node();
+        for (Node node : new Node[] {first, second}) {
+            if (node != null) {
+                merged.roles.addAll(node.roles);
+                for (String component : node.children.keySet()) {
+                    merged.children.putIfAbsent(component, null);
+                }
+            }
+        }
+        for (Map.Entry<String, Node> child : merged.children.entrySet()) {
+            child.setValue(merge(first == null ? null : first.children.get(child.getKey()),
+                second == null ? null : second.children.get(child.getKey())));
+        }
+        merged.wildcard = merge(first == null ? null : first.wildcard, second == null ? null : second.wildcard);
+        return merged;
+    }
+
+    private static void freeze(Node node) {
+        node.roles = node.roles.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(node.roles);
+        for (Node child : node.children.values()) {
+            freeze(child);
+        }
+        if (node.wildcard != null) {
+            freeze(node.wildcard);
+        }
+    }
+
+    /**
+     * A set of rules, replaced as a whole.
+     */
+    private static final class Rules {
+
+        final Node root;
+
+        // The roles of the principals named by rules without wildcards, including those of the wildcard rules
+        final Map<PrincipalKey, Set<String>> exact;
+
+        Rules(Node root, Map<PrincipalKey, Set<String>> exact) {
+            this.root = root;
+            this.exact = exact;
+        }
+    }
+
+    /**
+     * A node of the trie, only modified until it's published.
+     */
+    private static final class Node {
+
+        final Map<String, Node> children = new HashMap<>();
+
+        Node wildcard;
+
+        // The roles of the principals whose last component is matched by this node
+        Set<String> roles = new HashSet<>();
+
+        Node child(String component) {
+            return children.computeIfAbsent(component, c -> new Node());
+        }
+
+        Node wildcardChild() {
+            if (wildcard == null) {
+                wildcard = new Node();
+            }
+            return wildcard;
+        }
+    }
+}
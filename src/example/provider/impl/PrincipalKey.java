@@ -0,0 +1,97 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.util.Arrays;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.spi.GSSNameSpi;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5NameElement;
+import sun.security.krb5.PrincipalName;
+
+/**
+ * The canonical form of a Kerberos principal for {@link PrincipalAuthorizationIndex}: its realm followed by its name
+ * components for the trie, and their concatenation with its hash computed once, for comparing keys with a single
+ * {@link String#equals(Object)}. The provider's name elements keep theirs, see
+ * {@link CustomGSSNameSpiImpl#getPrincipalKey()}.
+ */
+final class PrincipalKey {
+
+    /**
+     * The realm followed by the name components, e.g. {@code EXAMPLE.COM}, {@code HTTP},
+     * {@code server.example.com}.
+     */
+    final String[] path;
+
+    // The components separated by NUL, which can't occur in them, unlike the separators of the printed form
+    private final String joined;
+
+    private final int hash;
+
+    PrincipalKey(String[] path) {
+        this.path = path;
+        this.joined = String.join("\0", path);
+        this.hash = joined.hashCode();
+    }
+
+    /**
+     * Get the key of any name element, the cached one if it's one of ours.
+     *
+     * @throws GSSException if it isn't a Kerberos name
+     */
+    static PrincipalKey of(GSSNameSpi name) throws GSSException {
+        if (name instanceof CustomGSSNameSpiImpl) {
+            return ((CustomGSSNameSpiImpl) name).getPrincipalKey();
+        }
+
+        if (!(name instanceof Krb5NameElement)) {
+            throw new GSSException(GSSException.BAD_NAME, -1, "Not a Kerberos name: " + name);
+        }
+        PrincipalName principal = ((Krb5NameElement) name).getKrb5PrincipalName();
+        String[] components = principal.getNameStrings();
+        String[] path = new String[components.length + 1];
+        path[0] = principal.getRealmAsString();
+        System.arraycopy(components, 0, path, 1, components.length);
+        return new PrincipalKey(path);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof PrincipalKey && hash == ((PrincipalKey) other).hash
+            && joined.equals(((PrincipalKey) other).joined);
+    }
+
+    @Override
+    public String toString() {
+        return String.join("/", Arrays.asList(path).subList(1, path.length)) + "@" + path[0];
+    }
+}
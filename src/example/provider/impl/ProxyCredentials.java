@@ -0,0 +1,55 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.spi.GSSCredentialSpi;
+import sun.security.jgss.spi.GSSNameSpi;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5ProxyCredential;
+
+/**
+ * Recognizes the delegated and impersonated (S4U2Proxy) credentials of the built-in Kerberos mechanism, for
+ * {@link ProxyTicketCache}.
+ * <p/>
+ * The multi-release JAR has a variant of this class for Java 21 (see {@code src-java21}), where
+ * {@link Krb5ProxyCredential} is no longer public.
+ */
+final class ProxyCredentials {
+
+    private ProxyCredentials() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Get the name of the middle service whose ticket the credential was created with, or null if it isn't a proxy
+     * credential.
+     */
+    static GSSNameSpi getServiceName(GSSCredentialSpi cred) throws GSSException {
+        return cred instanceof Krb5ProxyCredential ? ((Krb5ProxyCredential) cred).self.getName() : null;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.CacheStatistics;
+import example.provider.Configurations;
+import java.io.InputStream;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.spi.GSSContextSpi;
+import sun.security.jgss.spi.GSSCredentialSpi;
+import sun.security.jgss.spi.GSSNameSpi;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5NameElement;
+import sun.security.krb5.Credentials;
+
+/**
+ * Keeps the constrained delegation (S4U2Proxy) service tickets per middle service, user and backend service, so that
+ * contexts initiated with delegated or impersonated credentials don't each get a new ticket from the KDC.
+ * <p/>
+ * The KDC never issues a proxy ticket outliving the evidence ticket it was requested with, so the entries expire with
+ * the ticket itself, minus the default clock skew. Concurrent requests for the same ticket share one KDC request.
+ * <p/>
+ * NOTE: a real implementation would keep these tickets in its native ticket cache, this injects them into the
+ * delegate's context through {@link Krb5ContextAccess}, so the cache is disabled when that's unavailable.
+ */
+public final class ProxyTicketCache {
+
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ExpiringCache<Key, Credentials> CACHE =
+        new ExpiringCache<>(Configurations.getProxyTicketCacheSize());
+
+    private static final ConcurrentHashMap<Key, CompletableFuture<Credentials>> IN_FLIGHT =
+        new ConcurrentHashMap<>();
+
+    private static final LongAdder HITS = new LongAdder();
+
+    private static final LongAdder MISSES = new LongAdder();
+
+    private ProxyTicketCache() {
+    }
+
+    /**
+     * Get the usage counters of the cache. Requests that waited for a concurrent one to get the ticket count as hits.
+     */
+    public static CacheStatistics getStatistics() {
+        return new CacheStatistics(HITS.sum(), MISSES.sum());
+    }
+
+    /**
+     * Get the key of the ticket needed for initiating a context, or null if it doesn't need a proxy ticket, or the
+     * cache is disabled.
+     */
+    static Key keyFor(GSSNameSpi peer, GSSCredentialSpi myInitiatorCred) throws GSSException {
+        if (!(peer instanceof Krb5NameElement) || !CACHE.isEnabled() || !Krb5ContextAccess.isAvailable()) {
+            return null;
+        }
+        GSSNameSpi service = ProxyCredentials.getServiceName(myInitiatorCred);
+        if (service == null) {
+            return null;
+        }
+        return new Key(principalOf(service), principalOf(myInitiatorCred.getName()), principalOf(peer));
+    }
+
+    /**
+     * Make the first call of {@link GSSContextSpi#initSecContext(InputStream, int)} on the delegate with the cached
+     * ticket, or get one and cache it.
+     *
+     * @param key the key returned by {@link #keyFor(GSSNameSpi, GSSCredentialSpi)}
+     */
+    static byte[] initSecContext(Key key, GSSContextSpi delegate, InputStream is, int mechTokenSize)
+        throws GSSException {
+        Credentials ticket = CACHE.get(key);
+        if (ticket != null) {
+            HITS.increment();
+            Krb5ContextAccess.setServiceCreds(delegate, ticket);
+            return delegate.initSecContext(is, mechTokenSize);
+        }
+
+        CompletableFuture<Credentials> request = new CompletableFuture<>();
+        CompletableFuture<Credentials> inFlight = IN_FLIGHT.putIfAbsent(key, request);
+        if (inFlight != null) {
+            // If the other request fails, this one gets its own ticket, without caching it
+            ticket = inFlight.join();
+            if (ticket != null) {
+                HITS.increment();
+                Krb5ContextAccess.setServiceCreds(delegate, ticket);
+            } else {
+                MISSES.increment();
+            }
+            return delegate.initSecContext(is, mechTokenSize);
+        }
+
+        try {
+            // A request may have completed between the lookup and registering this one
+            ticket = CACHE.get(key);
+            if (ticket != null) {
+                HITS.increment();
+                Krb5ContextAccess.setServiceCreds(delegate, ticket);
+                return delegate.initSecContext(is, mechTokenSize);
+            }
+
+            MISSES.increment();
+            byte[] token = delegate.initSecContext(is, mechTokenSize);
+            ticket = Krb5ContextAccess.getServiceCreds(delegate);
+            if (ticket != null) {
+                CACHE.put(key, ticket, ticket.getEndTime().getTime() - EXPIRY_MARGIN_MILLIS);
+            }
+            return token;
+        } finally {
+            request.complete(ticket);
+            IN_FLIGHT.remove(key, request);
+        }
+    }
+
+    private static String principalOf(GSSNameSpi name) {
+        return ((Krb5NameElement) name).getKrb5PrincipalName().getName();
+    }
+
+    static final class Key {
+
+        final String service;
+
+        final String user;
+
+        final String backend;
+
+        final int hash;
+
+        private Key(String service, String user, String backend) {
+            this.service = service;
+            this.user = user;
+            this.backend = backend;
+            this.hash = Objects.hash(service, user, backend);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return service.equals(key.service) && user.equals(key.user) && backend.equals(key.backend);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of values that are slow to look up, e.g. from DNS, which are refreshed in the background once their time
+ * to live has passed, so that only the first lookup of a key waits for the loader.
+ * <p/>
+ * Null values are cached as well (negative caching), with their own, usually shorter time to live. A stale value is
+ * returned while it's being refreshed, and is kept if the refresh fails, until the next lookup tries again.
+ * <p/>
+ * When full, the stale entries are evicted first, then the ones going stale first.
+ */
+final class RefreshingCache<K, V> {
+
+    private static final Logger LOGGER = Logger.getLogger(RefreshingCache.class.getCanonicalName());
+
+    // Shared by all caches, the loaders are expected to block on I/O, so these don't use the common pool
+    private static final ExecutorService REFRESHER;
+
+    static {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(4, 4, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "jgss-refresher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        REFRESHER = executor;
+    }
+
+    interface Loader<K, V> {
+
+        /**
+         * Look up the value of the key, or return null if it has none.
+         */
+        V load(K key) throws Exception;
+    }
+
+    private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+
+    private final Loader<K, V> loader;
+
+    private final long ttlMillis;
+
+    private final long negativeTtlMillis;
+
+    private final int maxSize;
+
+    private final Object evictionLock = new Object();
+
+    RefreshingCache(Loader<K, V> loader, long ttlMillis, long negativeTtlMillis, int maxSize) {
+        this.loader = loader;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the value of the key, only waiting for the loader if it hasn't been looked up yet.
+     *
+     * @throws Exception anything thrown by the loader on the first lookup, which isn't cached
+     */
+    V get(K key) throws Exception {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            V value = loader.load(key);
+            map.put(key, new Entry<>(value, staleAt(value)));
+            if (map.size() > maxSize) {
+                evict();
+            }
+            return value;
+        }
+
+        if (entry.staleAt <= System.currentTimeMillis() && entry.refreshing.compareAndSet(false, true)) {
+            REFRESHER.execute(() -> refresh(key, entry));
+        }
+        return entry.value;
+    }
+
+    /**
+     * Forget all values, e.g. after the configuration has changed.
+     */
+    void clear() {
+        map.clear();
+    }
+
+    private void refresh(K key, Entry<V> stale) {
+        try {
+            V value = loader.load(key);
+            map.replace(key, stale, new Entry<>(value, staleAt(value)));
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, e, () -> "Failed to refresh " + key + ", keeping the previous value");
+            stale.refreshing.set(false);
+        }
+    }
+
+    private void evict() {
+        synchronized (evictionLock) {
+            if (map.size() <= maxSize) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            map.values().removeIf(e -> e.staleAt <= now);
+
+            int excess = map.size() - maxSize + maxSize / 10;
+            if (excess <= 0) {
+                return;
+            }
+
+            List<Map.Entry<K, Entry<V>>> entries = new ArrayList<>(map.entrySet());
+            entries.sort(Comparator.comparingLong(e -> e.getValue().staleAt));
+            for (int i = 0; i < excess && i < entries.size(); i++) {
+                Map.Entry<K, Entry<V>> e = entries.get(i);
+                map.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private long staleAt(V value) {
+        return System.currentTimeMillis() + (value == null ? negativeTtlMillis : ttlMillis);
+    }
+
+    private static final class Entry<V> {
+
+        final V value;
+
+        final long staleAt;
+
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(V value, long staleAt) {
+            this.value = value;
+            this.staleAt = staleAt;
+        }
+    }
+}
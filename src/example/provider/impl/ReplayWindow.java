@@ -0,0 +1,337 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.Configurations;
+import example.provider.ReplayStatistics;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+import sun.security.jgss.spi.GSSContextSpi;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.krb5.EncryptedData;
+
+/**
+ * Tracks the sequence numbers of the tokens received on an established context with replay or sequence detection, in
+ * place of the delegate's own tracking (which takes a lock for every token), when enabled by
+ * {@link Configurations#isReplayWindow()}.
+ * <p/>
+ * Like the anti-replay window of IPsec (RFC 6479), the sequence numbers seen are kept in a fixed ring of bitmap words,
+ * each tagged with the block of 32 sequence numbers it holds, so that a word is reused for a later block without
+ * having to clear it separately. The tag and the bits share one long, so checking and recording a sequence number is a
+ * single compare-and-set, and many threads can receive on the same context at once. A sequence number that was
+ * recorded is never accepted again: its word either still holds its block, or a later one, which makes it too old.
+ * Anything more than {@link #size()} behind the latest sequence number is flagged as too old.
+ * <p/>
+ * Only the tokens of RFC 4121 have their sequence number in the clear, the tokens of the older encryption types are
+ * left to the delegate. The window is fed after the delegate has verified the token, so a forged sequence number can't
+ * take up room in it.
+ * <p/>
+ * NOTE: a real implementation would keep the window in its native context.
+ */
+public final class ReplayWindow {
+
+    private static final int BITS_PER_WORD = 32;
+
+    // The sequence number is 64 bits in RFC 4121, but the built-in provider only sends and reads the lower 32
+    private static final int SEQ_NUMBER_OFFSET = 12;
+
+    private static final int TOKEN_HEADER_SIZE = 16;
+
+    // The sequence numbers are unsigned, so there are 2^27 blocks of them
+    private static final int BLOCK_MASK = -1 >>> 5;
+
+    private static final LongAdder TOTAL_DUPLICATES = new LongAdder();
+
+    private static final LongAdder TOTAL_OLD_TOKENS = new LongAdder();
+
+    private static final LongAdder TOTAL_UNSEQUENCED = new LongAdder();
+
+    private static final LongAdder TOTAL_GAPS = new LongAdder();
+
+    private final boolean replayDet;
+
+    private final boolean sequenceDet;
+
+    private final int initNumber;
+
+    // Each word holds the block (sequence number / 32) in its upper half, and a bit for each number in the lower half
+    private final AtomicLongArray words;
+
+    private final int mask;
+
+    private final int size;
+
+    // The latest sequence number received
+    private final AtomicInteger latest;
+
+    private final LongAdder duplicates = new LongAdder();
+
+    private final LongAdder oldTokens = new LongAdder();
+
+    private final LongAdder unsequenced = new LongAdder();
+
+    private final LongAdder gaps = new LongAdder();
+
+    /**
+     * @param initNumber the sequence number of the first token expected
+     * @param size the minimum number of sequence numbers behind the latest one to detect duplicates of
+     */
+    ReplayWindow(boolean replayDet, boolean sequenceDet, int initNumber, int size) {
+        this.replayDet = replayDet;
+        this.sequenceDet = sequenceDet;
+        this.initNumber = initNumber;
+        // One more word than the size needs, since the word of the latest number is only partly behind it
+        int needed = (Math.max(size, 2 * BITS_PER_WORD) + BITS_PER_WORD - 1) / BITS_PER_WORD + 1;
+        int wordCount = Integer.highestOneBit(needed * 2 - 1);
+        words = new AtomicLongArray(wordCount);
+        mask = wordCount - 1;
+        this.size = (wordCount - 1) * BITS_PER_WORD;
+        latest = new AtomicInteger(initNumber - 1);
+        // Tag each word with a block before the first one expected, so that they're all free
+        int firstBlock = initNumber >>> 5;
+        for (int i = 0; i < wordCount; i++) {
+            int block = firstBlock - wordCount + ((i - firstBlock) & mask);
+            words.set(i, (long) (block & BLOCK_MASK) << 32);
+        }
+    }
+
+    /**
+     * Whether the tokens received on contexts are tracked in sliding windows.
+     */
+    static boolean isEnabled() {
+        return Configurations.isReplayWindow() && Krb5ContextAccess.isAvailable();
+    }
+
+    /**
+     * Take over the tracking of the tokens received by an established delegate context, turning off its own.
+     *
+     * @return the window, or null if the context doesn't need one, or its tokens don't have the sequence number in the
+     * clear
+     */
+    static ReplayWindow take(GSSContextSpi delegate) throws GSSException {
+        boolean replayDet = delegate.getReplayDetState();
+        boolean sequenceDet = delegate.getSequenceDetState();
+        if (!replayDet && !sequenceDet || !hasClearSequenceNumbers(Krb5ContextAccess.getKeyType(delegate))) {
+            return null;
+        }
+        int initNumber = Krb5ContextAccess.getPeerSequenceNumber(delegate);
+        Krb5ContextAccess.setPeerTracking(delegate, false, false, initNumber);
+        return new ReplayWindow(replayDet, sequenceDet, initNumber, Configurations.getReplayWindowSize());
+    }
+
+    /**
+     * Get the counters of the out of order tokens received on all contexts.
+     */
+    public static ReplayStatistics getTotalStatistics() {
+        return new ReplayStatistics(TOTAL_DUPLICATES.sum(), TOTAL_OLD_TOKENS.sum(), TOTAL_UNSEQUENCED.sum(),
+            TOTAL_GAPS.sum());
+    }
+
+    /**
+     * Record the sequence number of a token the delegate has verified, and set whether it was received out of order in
+     * its properties.
+     */
+    void check(byte[] token, int offset, MessageProp msgProp) {
+        check(readSequenceNumber(token, offset), msgProp);
+    }
+
+    void check(int seqNumber, MessageProp msgProp) {
+        boolean duplicate = false;
+        boolean old = false;
+        boolean unseq = false;
+        boolean gap = false;
+
+        int top = latest.get();
+        int distance = seqNumber - top;
+        if (seqNumber - initNumber < 0 || distance <= -size) {
+            old = true;
+        } else {
+            int block = seqNumber >>> 5;
+            int index = block & mask;
+            long bit = 1L << (seqNumber & (BITS_PER_WORD - 1));
+            while (true) {
+                long word = words.get(index);
+                int tag = (int) (word >>> 32);
+                if (tag == block) {
+                    if ((word & bit) != 0) {
+                        duplicate = true;
+                        break;
+                    }
+                    if (words.compareAndSet(index, word, word | bit)) {
+                        break;
+                    }
+                } else if ((tag - block) << 5 > 0) {
+                    // Reused by a later block since this one
+                    old = true;
+                    break;
+                } else if (words.compareAndSet(index, word, (long) block << 32 | bit)) {
+                    break;
+                }
+            }
+
+            if (!duplicate && !old) {
+                if (distance > 0) {
+                    gap = distance > 1;
+                    while (seqNumber - top > 0 && !latest.compareAndSet(top, seqNumber)) {
+                        top = latest.get();
+                    }
+                } else {
+                    unseq = true;
+                }
+            }
+        }
+
+        if (duplicate) {
+            duplicates.increment();
+            TOTAL_DUPLICATES.increment();
+        } else if (old) {
+            oldTokens.increment();
+            TOTAL_OLD_TOKENS.increment();
+        } else if (unseq) {
+            unsequenced.increment();
+            TOTAL_UNSEQUENCED.increment();
+        } else if (gap) {
+            gaps.increment();
+            TOTAL_GAPS.increment();
+        }
+        msgProp.setSupplementaryStates(duplicate, old, unseq, gap, msgProp.getMinorStatus(),
+            msgProp.getMinorString());
+    }
+
+    /**
+     * Same as {@link #check(byte[], int, MessageProp)}, for a token read from a stream.
+     */
+    void check(Header header, MessageProp msgProp) throws GSSException {
+        if (header.headerLength < TOKEN_HEADER_SIZE) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "Token header not read");
+        }
+        check(header.header, 0, msgProp);
+    }
+
+    boolean getReplayDetState() {
+        return replayDet;
+    }
+
+    boolean getSequenceDetState() {
+        return sequenceDet;
+    }
+
+    /**
+     * The number of sequence numbers behind the latest one for which duplicates are detected.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the sequence number of the next token expected.
+     */
+    int getNextSequenceNumber() {
+        return latest.get() + 1;
+    }
+
+    /**
+     * Get the exported state of the delegate with the tracking of the tokens received, which it leaves to this window:
+     * the detection flags, and the next sequence number expected.
+     */
+    ExportedContext exportTo(ExportedContext state) {
+        return state.withPeerTracking(replayDet, sequenceDet, getNextSequenceNumber());
+    }
+
+    ReplayStatistics getStatistics() {
+        return new ReplayStatistics(duplicates.sum(), oldTokens.sum(), unsequenced.sum(), gaps.sum());
+    }
+
+    private static boolean hasClearSequenceNumbers(int keyType) {
+        switch (keyType) {
+            case EncryptedData.ETYPE_DES_CBC_CRC:
+            case EncryptedData.ETYPE_DES_CBC_MD4:
+            case EncryptedData.ETYPE_DES_CBC_MD5:
+            case EncryptedData.ETYPE_DES3_CBC_HMAC_SHA1_KD:
+            case EncryptedData.ETYPE_ARCFOUR_HMAC:
+            case EncryptedData.ETYPE_ARCFOUR_HMAC_EXP:
+                // RFC 1964 tokens, with the sequence number encrypted
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static int readSequenceNumber(byte[] token, int offset) {
+        return ByteArrays.readInt(token, offset + SEQ_NUMBER_OFFSET);
+    }
+
+    /**
+     * Keeps the header of the token read through it, for {@link #check(Header, MessageProp)}.
+     */
+    static final class Header extends FilterInputStream {
+
+        private final byte[] header = new byte[TOKEN_HEADER_SIZE];
+
+        private int headerLength;
+
+        Header(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0 && headerLength < TOKEN_HEADER_SIZE) {
+                header[headerLength++] = (byte) b;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0 && headerLength < TOKEN_HEADER_SIZE) {
+                int kept = Math.min(n, TOKEN_HEADER_SIZE - headerLength);
+                System.arraycopy(b, off, header, headerLength, kept);
+                headerLength += kept;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Go through read(), so that the skipped header bytes are kept
+            long skipped = 0;
+            while (skipped < n && headerLength < TOKEN_HEADER_SIZE && read() >= 0) {
+                skipped++;
+            }
+            return skipped + (skipped < n ? super.skip(n - skipped) : 0);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.spi.GSSContextSpi;
+
+// implementation classes - a real implementation wouldn't use these
+import com.sun.security.jgss.InquireType;
+
+/**
+ * Calls {@code inquireSecContext} on a delegate context, whose signature differs between Java versions: Java 8 takes
+ * an {@link InquireType}, later versions the name of the type.
+ * <p/>
+ * The multi-release JAR has a variant of this class for Java 11, which calls the latter directly (see
+ * {@code src-java11}). This one calls the former, and only falls back to reflection where it doesn't exist: on Java 9
+ * and 10, and when the classes are used without the multi-release JAR.
+ */
+final class SecContextInquiry {
+
+    private SecContextInquiry() {
+        throw new AssertionError();
+    }
+
+    static Object inquire(GSSContextSpi context, String type) throws GSSException {
+        InquireType inquireType;
+        try {
+            inquireType = InquireType.valueOf(type);
+        } catch (IllegalArgumentException e) {
+            throw new GSSException(GSSException.UNAVAILABLE, -1, "Inquire type not supported: " + type);
+        }
+
+        try {
+            return context.inquireSecContext(inquireType);
+        } catch (NoSuchMethodError e) {
+            return inquireByName(context, type);
+        }
+    }
+
+    private static Object inquireByName(GSSContextSpi context, String type) throws GSSException {
+        try {
+            // GSSContextSpi.inquireSecContext(type), from Java 9
+            Method mthd = GSSContextSpi.class.getMethod("inquireSecContext", String.class);
+            return mthd.invoke(context, type);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof GSSException) {
+                throw (GSSException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw (GSSException) new GSSException(GSSException.FAILURE, -1, "Inquiring the context failed")
+                .initCause(e.getCause());
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw (GSSException) new GSSException(GSSException.UNAVAILABLE, -1, "Inquire type not supported: " + type)
+                .initCause(e);
+        }
+    }
+}
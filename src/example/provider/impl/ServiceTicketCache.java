@@ -0,0 +1,261 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.Configurations;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.spi.GSSContextSpi;
+import sun.security.jgss.spi.GSSCredentialSpi;
+import sun.security.jgss.spi.GSSNameSpi;
+
+// implementation classes - a real implementation wouldn't use these
+import sun.security.jgss.krb5.Krb5InitCredential;
+import sun.security.jgss.krb5.Krb5NameElement;
+import sun.security.krb5.Credentials;
+import sun.security.krb5.PrincipalName;
+
+/**
+ * Keeps the service tickets the provider gets from the KDC in a ccache file, see
+ * {@link Configurations#getServiceTicketCachePath()}, and preloads them at {@link
+ * example.provider.CustomKerberosJgssProvider#install()}, so that a restarted process initiates contexts without
+ * going to the KDC while the tickets are valid.
+ * <p/>
+ * The file may be shared by processes running as the same user: the tickets in the file are merged with the new
+ * ones on each write, and the file is replaced atomically, see {@link CCacheFile}. It keeps the default principal it
+ * was created with. It contains the session keys of the tickets, so it's only readable by its owner.
+ * <p/>
+ * The new tickets are written in the background, in batches of those got within a second, so the ones got just
+ * before the process exits may not be persisted.
+ * <p/>
+ * NOTE: a real implementation would simply use a ccache of its native library, this injects the tickets into the
+ * delegate's context through {@link Krb5ContextAccess}, so the cache is disabled when that's unavailable.
+ */
+public final class ServiceTicketCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ServiceTicketCache.class.getCanonicalName());
+
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final long WRITE_DELAY_MILLIS = 1000;
+
+    private static final Path FILE;
+
+    static {
+        String path = Configurations.getServiceTicketCachePath();
+        FILE = path == null ? null : Paths.get(path);
+    }
+
+    private static final ConcurrentHashMap<Key, Credentials> TICKETS = new ConcurrentHashMap<>();
+
+    private static final Object FILE_LOCK = new Object();
+
+    // guarded by FILE_LOCK
+    private static boolean preloaded;
+
+    // guarded by FILE_LOCK, null until read from the file or the first ticket is written
+    private static PrincipalName defaultPrincipal;
+
+    private static final AtomicBoolean WRITE_PENDING = new AtomicBoolean();
+
+    // Writes the file off the threads initiating contexts
+    private static final ScheduledThreadPoolExecutor WRITER;
+
+    static {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "jgss-ticket-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        WRITER = executor;
+    }
+
+    private ServiceTicketCache() {
+    }
+
+    /**
+     * Whether the service tickets are persisted.
+     */
+    public static boolean isEnabled() {
+        return FILE != null && Krb5ContextAccess.isAvailable();
+    }
+
+    /**
+     * Load the valid tickets from the file, if enabled. All further calls to this method are a no-op.
+     */
+    public static void preload() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (FILE_LOCK) {
+            if (preloaded) {
+                return;
+            }
+            preloaded = true;
+            try {
+                int loaded = load();
+                LOGGER.fine(() -> "Preloaded " + loaded + " service tickets from " + FILE);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Failed to preload service tickets from " + FILE);
+            }
+        }
+    }
+
+    /**
+     * Get the key of the ticket needed for initiating a context, or null if it doesn't need a service ticket of its
+     * own (e.g. it uses a proxy credential), or the cache is disabled.
+     */
+    static Key keyFor(GSSNameSpi peer, GSSCredentialSpi myInitiatorCred) throws GSSException {
+        if (!(myInitiatorCred instanceof Krb5InitCredential) || !(peer instanceof Krb5NameElement) || !isEnabled()) {
+            return null;
+        }
+        return new Key(principalOf(myInitiatorCred.getName()), principalOf(peer));
+    }
+
+    /**
+     * Make the first call of {@link GSSContextSpi#initSecContext(InputStream, int)} on the delegate with the cached
+     * ticket, or get one and schedule persisting it.
+     *
+     * @param key the key returned by {@link #keyFor(GSSNameSpi, GSSCredentialSpi)}
+     */
+    static byte[] initSecContext(Key key, GSSContextSpi delegate, InputStream is, int mechTokenSize)
+        throws GSSException {
+        Credentials ticket = TICKETS.get(key);
+        if (ticket != null && isValid(ticket, System.currentTimeMillis())) {
+            Krb5ContextAccess.setServiceCreds(delegate, ticket);
+            return delegate.initSecContext(is, mechTokenSize);
+        }
+
+        byte[] token = delegate.initSecContext(is, mechTokenSize);
+        ticket = Krb5ContextAccess.getServiceCreds(delegate);
+        if (ticket != null && isValid(ticket, System.currentTimeMillis())) {
+            TICKETS.put(key, ticket);
+            if (WRITE_PENDING.compareAndSet(false, true)) {
+                WRITER.schedule(ServiceTicketCache::persist, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return token;
+    }
+
+    // guarded by FILE_LOCK
+    private static int load() throws IOException {
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        CCacheFile.Contents contents = CCacheFile.read(FILE);
+        if (contents.defaultPrincipal != null) {
+            defaultPrincipal = contents.defaultPrincipal;
+        }
+        for (Credentials ticket : contents.credentials) {
+            if (isValid(ticket, now)) {
+                TICKETS.putIfAbsent(new Key(ticket.getClient().getName(), ticket.getServer().getName()), ticket);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    private static void persist() {
+        // The tickets added from now on schedule another write
+        WRITE_PENDING.set(false);
+        synchronized (FILE_LOCK) {
+            try {
+                // Pick up the tickets written by other processes sharing the file since the last write
+                load();
+
+                long now = System.currentTimeMillis();
+                List<Credentials> tickets = new ArrayList<>();
+                for (Map.Entry<Key, Credentials> e : TICKETS.entrySet()) {
+                    if (isValid(e.getValue(), now)) {
+                        tickets.add(e.getValue());
+                    } else {
+                        TICKETS.remove(e.getKey(), e.getValue());
+                    }
+                }
+                if (tickets.isEmpty()) {
+                    return;
+                }
+                if (defaultPrincipal == null) {
+                    defaultPrincipal = tickets.get(0).getClient();
+                }
+                CCacheFile.write(FILE, defaultPrincipal, tickets);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Failed to persist service tickets to " + FILE);
+            }
+        }
+    }
+
+    private static boolean isValid(Credentials ticket, long now) {
+        return ticket.getEndTime().getTime() - EXPIRY_MARGIN_MILLIS > now;
+    }
+
+    private static String principalOf(GSSNameSpi name) {
+        return ((Krb5NameElement) name).getKrb5PrincipalName().getName();
+    }
+
+    static final class Key {
+
+        final String client;
+
+        final String server;
+
+        final int hash;
+
+        private Key(String client, String server) {
+            this.client = client;
+            this.server = server;
+            this.hash = Objects.hash(client, server);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return client.equals(key.client) && server.equals(key.server);
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.ietf.jgss.GSSException;
+
+/**
+ * The SPNEGO (RFC 4178) negotiation tokens exchanged by {@link CustomSpNegoContextSpiImpl}, encoded and decoded
+ * without going through the DER streams of the JDK:
+ * <pre>
+ * NegotiationToken ::= CHOICE {
+ *     negTokenInit    [0] NegTokenInit,
+ *     negTokenResp    [1] NegTokenResp }
+ *
+ * NegTokenInit ::= SEQUENCE {
+ *     mechTypes       [0] SEQUENCE OF MechType,
+ *     reqFlags        [1] ContextFlags  OPTIONAL,
+ *     mechToken       [2] OCTET STRING  OPTIONAL,
+ *     mechListMIC     [3] OCTET STRING  OPTIONAL }
+ *
+ * NegTokenResp ::= SEQUENCE {
+ *     negState        [0] ENUMERATED    OPTIONAL,
+ *     supportedMech   [1] MechType      OPTIONAL,
+ *     responseToken   [2] OCTET STRING  OPTIONAL,
+ *     mechListMIC     [3] OCTET STRING  OPTIONAL }
+ * </pre>
+ * Since Kerberos is the only mechanism offered, the mechTypes field of each NegTokenInit sent is the same, so it's
+ * encoded once, and the rest of the token is written around it into a single array sized up front. The reqFlags field
+ * is left out, as the RFC recommends, the flags are negotiated by the Kerberos tokens anyway. Decoding only records
+ * where the mechanism token is, so it's passed on to the Kerberos context without copying it. The mechListMIC is
+ * only needed when the initiator didn't prefer Kerberos, or the acceptor asks for it, see
+ * {@link CustomSpNegoContextSpiImpl}.
+ */
+final class SpNegoTokens {
+
+    static final int ACCEPT_COMPLETED = 0;
+
+    static final int ACCEPT_INCOMPLETE = 1;
+
+    static final int REJECT = 2;
+
+    static final int REQUEST_MIC = 3;
+
+    // The negState field is optional after the first response
+    static final int NO_NEG_STATE = -1;
+
+    private static final int TAG_GSS_TOKEN = 0x60;
+
+    private static final int TAG_NEG_TOKEN_INIT = 0xa0;
+
+    private static final int TAG_NEG_TOKEN_RESP = 0xa1;
+
+    private static final int TAG_SEQUENCE = 0x30;
+
+    private static final int TAG_OID = 0x06;
+
+    private static final int TAG_OCTET_STRING = 0x04;
+
+    private static final int TAG_ENUMERATED = 0x0a;
+
+    // The fields of both tokens, in order
+    private static final int TAG_FIELD_0 = 0xa0;
+
+    private static final int TAG_FIELD_1 = 0xa1;
+
+    private static final int TAG_FIELD_2 = 0xa2;
+
+    private static final int TAG_FIELD_3 = 0xa3;
+
+    /**
+     * The DER encoding of the Kerberos mechanism OID, 1.2.840.113554.1.2.2.
+     */
+    static final byte[] KRB5_MECH = {
+        TAG_OID, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x12, 0x01, 0x02, 0x02};
+
+    /**
+     * The DER encoding of the mistyped Kerberos mechanism OID of older Windows versions, 1.2.840.48018.1.2.2, which
+     * some clients still list first.
+     */
+    static final byte[] MS_KRB5_MECH = {
+        TAG_OID, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x82, (byte) 0xf7, 0x12, 0x01, 0x02, 0x02};
+
+    // 1.3.6.1.5.5.2, only needed in the GSS header of the first token
+    private static final byte[] SPNEGO_MECH = {TAG_OID, 0x06, 0x2b, 0x06, 0x01, 0x05, 0x05, 0x02};
+
+    /**
+     * The DER encoding of the MechTypeList offered, which the mechListMIC of the initiator is computed over.
+     */
+    static final byte[] MECH_TYPE_LIST = encodeField(TAG_SEQUENCE, KRB5_MECH);
+
+    private static final byte[] MECH_TYPES = encodeField(TAG_FIELD_0, MECH_TYPE_LIST);
+
+    /**
+     * Encode the NegTokenInit offering Kerberos, with the optimistic Kerberos token.
+     *
+     * @param mechToken the complete (GSS-framed) Kerberos token
+     * @param framed whether to add the GSS header, i.e. it isn't added by the calling code, see
+     *     {@link example.provider.CustomKerberosJgssProvider#isRawTokenMode()}
+     */
+    static byte[] encodeInit(byte[] mechToken, boolean framed) {
+        int octetsLength = headerLength(mechToken.length) + mechToken.length;
+        int sequenceLength = MECH_TYPES.length + headerLength(octetsLength) + octetsLength;
+        int initLength = headerLength(sequenceLength) + sequenceLength;
+        int tokenLength = headerLength(initLength) + initLength;
+        int gssLength = SPNEGO_MECH.length + tokenLength;
+
+        byte[] out = new byte[framed ? headerLength(gssLength) + gssLength : tokenLength];
+        int pos = 0;
+        if (framed) {
+            pos = putHeader(out, pos, TAG_GSS_TOKEN, gssLength);
+            pos = put(out, pos, SPNEGO_MECH);
+        }
+        pos = putHeader(out, pos, TAG_NEG_TOKEN_INIT, initLength);
+        pos = putHeader(out, pos, TAG_SEQUENCE, sequenceLength);
+        pos = put(out, pos, MECH_TYPES);
+        pos = putHeader(out, pos, TAG_FIELD_2, octetsLength);
+        pos = putHeader(out, pos, TAG_OCTET_STRING, mechToken.length);
+        put(out, pos, mechToken);
+        return out;
+    }
+
+    /**
+     * Encode a NegTokenResp.
+     *
+     * @param negState the state, or {@link #NO_NEG_STATE} to leave it out
+     * @param supportedMech the DER encoding of the mechanism OID, or null to leave it out
+     * @param responseToken the complete (GSS-framed) Kerberos token, or null to leave it out
+     * @param mechListMic the MIC of the initiator's MechTypeList, or null to leave it out
+     */
+    static byte[] encodeResp(int negState, byte[] supportedMech, byte[] responseToken, byte[] mechListMic) {
+        int sequenceLength = 0;
+        if (negState != NO_NEG_STATE) {
+            sequenceLength += 5;
+        }
+        if (supportedMech != null) {
+            sequenceLength += headerLength(supportedMech.length) + supportedMech.length;
+        }
+        int octetsLength = 0;
+        if (responseToken != null) {
+            octetsLength = headerLength(responseToken.length) + responseToken.length;
+            sequenceLength += headerLength(octetsLength) + octetsLength;
+        }
+        int micOctetsLength = 0;
+        if (mechListMic != null) {
+            micOctetsLength = headerLength(mechListMic.length) + mechListMic.length;
+            sequenceLength += headerLength(micOctetsLength) + micOctetsLength;
+        }
+        int respLength = headerLength(sequenceLength) + sequenceLength;
+
+        byte[] out = new byte[headerLength(respLength) + respLength];
+        int pos = putHeader(out, 0, TAG_NEG_TOKEN_RESP, respLength);
+        pos = putHeader(out, pos, TAG_SEQUENCE, sequenceLength);
+        if (negState != NO_NEG_STATE) {
+            pos = putHeader(out, pos, TAG_FIELD_0, 3);
+            pos = putHeader(out, pos, TAG_ENUMERATED, 1);
+            out[pos++] = (byte) negState;
+        }
+        if (supportedMech != null) {
+            pos = putHeader(out, pos, TAG_FIELD_1, supportedMech.length);
+            pos = put(out, pos, supportedMech);
+        }
+        if (responseToken != null) {
+            pos = putHeader(out, pos, TAG_FIELD_2, octetsLength);
+            pos = putHeader(out, pos, TAG_OCTET_STRING, responseToken.length);
+            pos = put(out, pos, responseToken);
+        }
+        if (mechListMic != null) {
+            pos = putHeader(out, pos, TAG_FIELD_3, micOctetsLength);
+            pos = putHeader(out, pos, TAG_OCTET_STRING, mechListMic.length);
+            put(out, pos, mechListMic);
+        }
+        return out;
+    }
+
+    /**
+     * Decode a NegTokenInit, with or without the GSS header.
+     */
+    static Token decodeInit(byte[] buffer) throws GSSException {
+        Token token = new Token(buffer);
+        int end = buffer.length;
+        if (token.at(TAG_GSS_TOKEN, end)) {
+            end = token.enter(TAG_GSS_TOKEN, end);
+            int oidStart = token.pos;
+            if (!matches(buffer, oidStart, token.skip(TAG_OID, end), SPNEGO_MECH)) {
+                throw defective("Mechanism not equal to SPNEGO in token");
+            }
+        }
+        end = token.enter(TAG_NEG_TOKEN_INIT, end);
+        end = token.enter(TAG_SEQUENCE, end);
+
+        int mechTypesFieldEnd = token.enter(TAG_FIELD_0, end);
+        int mechTypesStart = token.pos;
+        int mechTypesEnd = token.enter(TAG_SEQUENCE, mechTypesFieldEnd);
+        token.mechTypes = Arrays.copyOfRange(buffer, mechTypesStart, mechTypesEnd);
+        for (int index = 0; token.pos < mechTypesEnd; index++) {
+            int oidStart = token.pos;
+            int oidEnd = token.skip(TAG_OID, mechTypesEnd);
+            if (token.mech == null) {
+                token.mech = kerberosMech(buffer, oidStart, oidEnd);
+                token.mechIndex = index;
+            }
+        }
+        token.skipField(TAG_FIELD_1, end);
+        token.readMechToken(end);
+        // The mechListMIC, if any, is ignored: it can't be verified before the Kerberos context is established
+        return token;
+    }
+
+    /**
+     * Decode a NegTokenResp.
+     */
+    static Token decodeResp(byte[] buffer) throws GSSException {
+        Token token = new Token(buffer);
+        int end = token.enter(TAG_NEG_TOKEN_RESP, buffer.length);
+        end = token.enter(TAG_SEQUENCE, end);
+
+        if (token.at(TAG_FIELD_0, end)) {
+            int stateEnd = token.enter(TAG_ENUMERATED, token.enter(TAG_FIELD_0, end));
+            if (stateEnd != token.pos + 1) {
+                throw defective("Malformed negState in SPNEGO token");
+            }
+            token.negState = buffer[token.pos++] & 0xff;
+        }
+        if (token.at(TAG_FIELD_1, end)) {
+            int fieldEnd = token.enter(TAG_FIELD_1, end);
+            int oidStart = token.pos;
+            token.mech = kerberosMech(buffer, oidStart, token.skip(TAG_OID, fieldEnd));
+            token.mechIndex = token.mech == null ? Token.UNSUPPORTED : 0;
+        }
+        token.readMechToken(end);
+        if (token.at(TAG_FIELD_3, end)) {
+            int octetsEnd = token.enter(TAG_OCTET_STRING, token.enter(TAG_FIELD_3, end));
+            token.mechListMic = Arrays.copyOfRange(buffer, token.pos, octetsEnd);
+            token.pos = octetsEnd;
+        }
+        return token;
+    }
+
+    private static byte[] kerberosMech(byte[] buffer, int start, int end) {
+        if (matches(buffer, start, end, KRB5_MECH)) {
+            return KRB5_MECH;
+        }
+        if (matches(buffer, start, end, MS_KRB5_MECH)) {
+            return MS_KRB5_MECH;
+        }
+        return null;
+    }
+
+    private static boolean matches(byte[] buffer, int start, int end, byte[] encoded) {
+        if (end - start != encoded.length) {
+            return false;
+        }
+        for (int i = 0; i < encoded.length; i++) {
+            if (buffer[start + i] != encoded[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encodeField(int tag, byte[] content) {
+        byte[] out = new byte[headerLength(content.length) + content.length];
+        put(out, putHeader(out, 0, tag, content.length), content);
+        return out;
+    }
+
+    private static int headerLength(int length) {
+        if (length < 0x80) {
+            return 2;
+        }
+        if (length < 0x100) {
+            return 3;
+        }
+        if (length < 0x10000) {
+            return 4;
+        }
+        return length < 0x1000000 ? 5 : 6;
+    }
+
+    private static int putHeader(byte[] out, int pos, int tag, int length) {
+        out[pos++] = (byte) tag;
+        if (length < 0x80) {
+            out[pos++] = (byte) length;
+            return pos;
+        }
+        int octets = headerLength(length) - 2;
+        out[pos++] = (byte) (0x80 | octets);
+        for (int shift = (octets - 1) * 8; shift >= 0; shift -= 8) {
+            out[pos++] = (byte) (length >>> shift);
+        }
+        return pos;
+    }
+
+    private static int put(byte[] out, int pos, byte[] bytes) {
+        System.arraycopy(bytes, 0, out, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    private static GSSException defective(String message) {
+        return new GSSException(GSSException.DEFECTIVE_TOKEN, -1, message);
+    }
+
+    /**
+     * The fields of a decoded token that are used, the mechanism token stays in the buffer.
+     */
+    static final class Token {
+
+        // The mechIndex of a response whose supportedMech isn't Kerberos
+        static final int UNSUPPORTED = -2;
+
+        private final byte[] buffer;
+
+        private int pos;
+
+        /**
+         * The state of a response, {@link #NO_NEG_STATE} if absent.
+         */
+        int negState = NO_NEG_STATE;
+
+        /**
+         * The encoded OID of the first Kerberos mechanism listed in a NegTokenInit, or the supportedMech of a
+         * NegTokenResp if it's Kerberos, one of {@link #KRB5_MECH} and {@link #MS_KRB5_MECH}, or null.
+         */
+        byte[] mech;
+
+        /**
+         * The position of {@link #mech} in the list of mechanisms, 0 for a response, -1 if absent, or
+         * {@link #UNSUPPORTED} for a response with another mechanism.
+         */
+        int mechIndex = -1;
+
+        /**
+         * The DER encoding of the MechTypeList of a NegTokenInit, or null for a response.
+         */
+        byte[] mechTypes;
+
+        /**
+         * The mechListMIC of a NegTokenResp, or null if absent.
+         */
+        byte[] mechListMic;
+
+        private int mechTokenOffset = -1;
+
+        private int mechTokenLength;
+
+        private Token(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * The mechToken of a NegTokenInit, or the responseToken of a NegTokenResp, or null if absent.
+         */
+        InputStream getMechToken() {
+            return mechTokenOffset < 0 ? null : new ByteArrayInputStream(buffer, mechTokenOffset, mechTokenLength);
+        }
+
+        private void readMechToken(int end) throws GSSException {
+            if (at(TAG_FIELD_2, end)) {
+                int octetsEnd = enter(TAG_OCTET_STRING, enter(TAG_FIELD_2, end));
+                mechTokenOffset = pos;
+                mechTokenLength = octetsEnd - pos;
+                pos = octetsEnd;
+            }
+        }
+
+        private boolean at(int tag, int end) {
+            return pos < end && (buffer[pos] & 0xff) == tag;
+        }
+
+        private void skipField(int tag, int end) throws GSSException {
+            if (at(tag, end)) {
+                skip(tag, end);
+            }
+        }
+
+        private int skip(int tag, int end) throws GSSException {
+            pos = enter(tag, end);
+            return pos;
+        }
+
+        /**
+         * Read the header of the element with the given tag, and return the end of its content.
+         */
+        private int enter(int tag, int end) throws GSSException {
+            if (!at(tag, end) || pos + 1 >= end) {
+                throw defective("Malformed SPNEGO token");
+            }
+            pos++;
+            int length = buffer[pos++] & 0xff;
+            if (length >= 0x80) {
+                int octets = length & 0x7f;
+                // Indefinite lengths aren't allowed in DER, and no token is anywhere near 2GB
+                if (octets == 0 || octets > 3 || pos + octets > end) {
+                    throw defective("Malformed SPNEGO token");
+                }
+                length = 0;
+                for (int i = 0; i < octets; i++) {
+                    length = length << 8 | buffer[pos++] & 0xff;
+                }
+            }
+            if (length > end - pos) {
+                throw defective("Malformed SPNEGO token");
+            }
+            return pos + length;
+        }
+    }
+
+    private SpNegoTokens() {
+        // prevent instantiation
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2023 Morgan Stanley
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *  
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *  
+ *  - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *  
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package example.provider.impl;
+
+import example.provider.CacheStatistics;
+import example.provider.Configurations;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import org.ietf.jgss.ChannelBinding;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.spi.GSSContextSpi;
+
+/**
+ * Keeps the {@code tls-server-end-point} channel bindings (RFC 5929) of TLS sessions, so that the contexts established
+ * over connections sharing a session reuse one {@link ChannelBinding}, instead of each hashing the server certificate
+ * again.
+ * <p/>
+ * The entries are keyed by the session id and the server certificate, and expire with the session, as configured
+ * in its {@link SSLSessionContext}. Sessions without an id, or that have been invalidated, aren't cached.
+ * <p/>
+ * The {@code tls-unique} binding isn't supported, since JSSE doesn't expose the Finished message it's made of, nor
+ * is it safe without the extended master secret (RFC 7627). The hash algorithm is chosen like the JDK's HTTP client
+ * does from Java 17, so the bindings match those sent by it.
+ * <p/>
+ * NOTE: the Kerberos mechanism still hashes the channel binding into the authenticator checksum of each context, as
+ * RFC 4121 requires, but that's a short MD5 over the certificate hash, rather than over the whole certificate.
+ */
+public final class TlsChannelBindingCache {
+
+    private static final byte[] PREFIX = "tls-server-end-point:".getBytes(StandardCharsets.US_ASCII);
+
+    // The JDK's default session timeout, for session contexts without one
+    private static final long MAX_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private static final ExpiringCache<Key, ChannelBinding> CACHE =
+        new ExpiringCache<>(Configurations.getChannelBindingCacheSize());
+
+    private static final LongAdder HITS = new LongAdder();
+
+    private static final LongAdder MISSES = new LongAdder();
+
+    private TlsChannelBindingCache() {
+    }
+
+    /**
+     * Get the usage counters of the cache.
+     */
+    public static CacheStatistics getStatistics() {
+        return new CacheStatistics(HITS.sum(), MISSES.sum());
+    }
+
+    /**
+     * Set the channel binding of a new context to the TLS session its tokens are exchanged over.
+     */
+    public static void attach(GSSContext context, SSLSession session) throws GSSException {
+        context.setChannelBinding(get(session, context.isInitiator()));
+    }
+
+    /**
+     * Set the channel binding of a new mechanism context, e.g. one created by
+     * {@link example.provider.CustomKerberosJgssProvider#getMechFactory(sun.security.jgss.GSSCaller)}, to the TLS
+     * session its tokens are exchanged over.
+     */
+    public static void attach(GSSContextSpi context, SSLSession session) throws GSSException {
+        context.setChannelBinding(get(session, context.isInitiator()));
+    }
+
+    /**
+     * Get the {@code tls-server-end-point} channel binding of a TLS session.
+     *
+     * @param initiator whether the caller is the TLS client, which binds to the peer's certificate, rather than its
+     *     own
+     * @throws GSSException if the server has no certificate (e.g. with a pre-shared key)
+     */
+    public static ChannelBinding get(SSLSession session, boolean initiator) throws GSSException {
+        X509Certificate certificate = serverCertificate(session, initiator);
+        byte[] id = session.getId();
+        if (!CACHE.isEnabled() || id == null || id.length == 0 || !session.isValid()) {
+            MISSES.increment();
+            return compute(certificate);
+        }
+
+        Key key = new Key(id, certificate);
+        ChannelBinding binding = CACHE.get(key);
+        if (binding != null) {
+            HITS.increment();
+            return binding;
+        }
+
+        // Concurrent misses for the same session compute the same binding, the last one is kept
+        MISSES.increment();
+        binding = compute(certificate);
+        CACHE.put(key, binding, expiresAt(session));
+        return binding;
+    }
+
+    private static X509Certificate serverCertificate(SSLSession session, boolean initiator) throws GSSException {
+        Certificate[] chain;
+        try {
+            chain = initiator ? session.getPeerCertificates() : session.getLocalCertificates();
+        } catch (SSLPeerUnverifiedException e) {
+            throw (GSSException) new GSSException(GSSException.BAD_BINDINGS, -1, "Server certificate unavailable")
+                .initCause(e);
+        }
+        if (chain == null || chain.length == 0 || !(chain[0] instanceof X509Certificate)) {
+            throw new GSSException(GSSException.BAD_BINDINGS, -1, "Server certificate unavailable");
+        }
+        return (X509Certificate) chain[0];
+    }
+
+    private static ChannelBinding compute(X509Certificate certificate) throws GSSException {
+        try {
+            byte[] hash = MessageDigest.getInstance(hashAlgorithm(certificate)).digest(certificate.getEncoded());
+            byte[] data = Arrays.copyOf(PREFIX, PREFIX.length + hash.length);
+            System.arraycopy(hash, 0, data, PREFIX.length, hash.length);
+            return new ChannelBinding(data);
+        } catch (GeneralSecurityException e) {
+            throw (GSSException) new GSSException(GSSException.BAD_BINDINGS, -1, "Failed to hash server certificate")
+                .initCause(e);
+        }
+    }
+
+    /**
+     * The hash algorithm of the certificate's signature, upgraded from MD5 and SHA-1 to SHA-256 as RFC 5929 requires,
+     * and SHA-256 for signatures without a separate hash algorithm (e.g. RSASSA-PSS, EdDSA).
+     */
+    private static String hashAlgorithm(X509Certificate certificate) {
+        String signature = certificate.getSigAlgName().toUpperCase(Locale.ROOT);
+        int with = signature.indexOf("WITH");
+        if (with <= 0) {
+            return "SHA-256";
+        }
+        String hash = signature.substring(0, with).replace("SHA", "SHA-");
+        return hash.equals("MD5") || hash.equals("SHA-1") ? "SHA-256" : hash;
+    }
+
+    private static long expiresAt(SSLSession session) {
+        SSLSessionContext context = session.getSessionContext();
+        int timeoutSeconds = context == null ? 0 : context.getSessionTimeout();
+        long lifetime = timeoutSeconds > 0 ? TimeUnit.SECONDS.toMillis(timeoutSeconds) : MAX_LIFETIME_MILLIS;
+        return session.getCreationTime() + Math.min(lifetime, MAX_LIFETIME_MILLIS);
+    }
+
+    private static final class Key {
+
+        final byte[] sessionId;
+
+        final X509Certificate certificate;
+
+        final int hash;
+
+        Key(byte[] sessionId, X509Certificate certificate) {
+            this.sessionId = sessionId;
+            this.certificate = certificate;
+            this.hash = 31 * Arrays.hashCode(sessionId) + certificate.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && Arrays.equals(sessionId, key.sessionId) && certificate.equals(key.certificate);
+        }
+    }
+}